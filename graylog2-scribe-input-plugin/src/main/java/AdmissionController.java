@@ -0,0 +1,133 @@
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import org.graylog2.plugin.buffers.BatchBuffer;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+/**
+ * Starts turning Scribe batches away before the process buffer is full, so relays back off gradually instead of
+ * all being refused at once and retrying in lockstep.
+ * <p/>
+ * Buffer usage is smoothed with a time based moving average. Once it reaches the high watermark batches are rejected
+ * at random with a probability that rises with usage, until it falls back to the low watermark. The gap between the
+ * two keeps the controller from flapping around a single threshold, and the probability starts from zero at the low
+ * watermark so acceptance ramps back up smoothly after a spike.
+ */
+class AdmissionController {
+    // Probability of rejecting a batch at the high watermark, rising to 1 as the buffer fills up
+    private static final double HIGH_WATERMARK_REJECT_PROBABILITY = 0.5;
+
+    private final BatchBuffer processBuffer;
+    private final double lowWatermark;
+    private final double highWatermark;
+    private final double smoothingNanos;
+
+    // Guarded by this
+    private boolean started;
+    private long lastUpdate;
+    private double smoothedUsage;
+    private boolean shedding;
+    private double rejectProbability;
+
+    /**
+     * @param lowWatermark    buffer usage, from 0 to 1, below which every batch is accepted again
+     * @param highWatermark   buffer usage, from 0 to 1, at which batches start being rejected
+     * @param smoothingMillis time constant of the usage moving average
+     */
+    AdmissionController(BatchBuffer processBuffer, double lowWatermark, double highWatermark, long smoothingMillis) {
+        this.processBuffer = processBuffer;
+        this.lowWatermark = lowWatermark;
+        this.highWatermark = highWatermark;
+        this.smoothingNanos = Math.max(1, smoothingMillis) * 1000000.0;
+    }
+
+    /**
+     * @return whether the next batch should be accepted
+     */
+    boolean admit() {
+        double probability;
+
+        synchronized (this) {
+            update();
+            probability = rejectProbability;
+        }
+
+        return probability <= 0 || ThreadLocalRandom.current().nextDouble() >= probability;
+    }
+
+    void registerMetrics(MetricRegistry metrics, String metricName) {
+        metrics.register(name(metricName, "smoothedBufferUsage"), new Gauge<Double>() {
+            @Override
+            public Double getValue() {
+                synchronized (AdmissionController.this) {
+                    return smoothedUsage;
+                }
+            }
+        });
+
+        metrics.register(name(metricName, "rejectProbability"), new Gauge<Double>() {
+            @Override
+            public Double getValue() {
+                synchronized (AdmissionController.this) {
+                    return rejectProbability;
+                }
+            }
+        });
+
+        metrics.register(name(metricName, "shedding"), new Gauge<Boolean>() {
+            @Override
+            public Boolean getValue() {
+                synchronized (AdmissionController.this) {
+                    return shedding;
+                }
+            }
+        });
+    }
+
+    private void update() {
+        long now = System.nanoTime();
+        double usage = Math.min(1.0, (double) processBuffer.getUsage() / processBuffer.getBufferSize());
+
+        if (!started) {
+            smoothedUsage = usage;
+            started = true;
+
+        } else {
+            // Weighted by the time since the last batch, so the average doesn't depend on the batch rate
+            double alpha = 1 - Math.exp(-(now - lastUpdate) / smoothingNanos);
+            smoothedUsage += alpha * (usage - smoothedUsage);
+
+        }
+
+        lastUpdate = now;
+
+        if (!shedding && smoothedUsage >= highWatermark) {
+            shedding = true;
+
+        } else if (shedding && smoothedUsage <= lowWatermark) {
+            shedding = false;
+
+        }
+
+        rejectProbability = shedding ? rejectProbability(smoothedUsage) : 0;
+    }
+
+    private double rejectProbability(double usage) {
+        if (usage <= lowWatermark) {
+            return 0;
+        }
+
+        if (usage < highWatermark) {
+            return HIGH_WATERMARK_REJECT_PROBABILITY * (usage - lowWatermark) / (highWatermark - lowWatermark);
+        }
+
+        if (highWatermark >= 1) {
+            return 1;
+        }
+
+        return Math.min(1, HIGH_WATERMARK_REJECT_PROBABILITY
+                + (1 - HIGH_WATERMARK_REJECT_PROBABILITY) * (usage - highWatermark) / (1 - highWatermark));
+    }
+}
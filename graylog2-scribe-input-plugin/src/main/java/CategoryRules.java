@@ -0,0 +1,192 @@
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Per category treatment of Scribe messages, decided from the category alone so dropped messages are never parsed.
+ * <p/>
+ * Rules are written as <code>category=action[,action...]</code> separated by semicolons or new lines, where a category
+ * ending in <code>*</code> matches every category starting with what comes before it. Exact categories win over
+ * prefixes and longer prefixes over shorter ones. The actions are
+ * <ul>
+ * <li><code>drop</code>, discard the messages</li>
+ * <li><code>sample:rate</code>, keep the given fraction of the messages, from 0 to 1, at random</li>
+ * <li><code>route:tag</code>, tag the messages with a scribe_route field for streams to match on</li>
+ * <li><code>raw</code>, don't parse the messages as GELF, take each whole as the message with the category as source</li>
+ * </ul>
+ * Exact categories are looked up in a HashMap and prefixes in a trie, and the outcome is remembered per category, so a
+ * message costs a single hash lookup however many rules there are.
+ */
+class CategoryRules {
+    // Bounds the memory used by the remembered outcomes if clients send ever changing categories
+    private static final int MAX_RESOLVED = 4096;
+
+    private final Map<String, Rule> exact = new HashMap<String, Rule>();
+    private final Node prefixes = new Node();
+    private final ConcurrentMap<String, Rule> resolved = new ConcurrentHashMap<String, Rule>();
+
+    /**
+     * @throws IllegalArgumentException if the rules can't be parsed
+     */
+    CategoryRules(String rules) {
+        for (String line : rules.split("[;\n]")) {
+            line = line.trim();
+
+            if (line.length() == 0) {
+                continue;
+            }
+
+            int separator = line.indexOf('=');
+
+            if (separator < 0) {
+                throw new IllegalArgumentException("Category rule without actions: " + line);
+            }
+
+            String category = line.substring(0, separator).trim();
+            Rule rule = new Rule(line.substring(separator + 1));
+
+            if (category.endsWith("*")) {
+                prefixes.add(category.substring(0, category.length() - 1)).rule = rule;
+
+            } else {
+                exact.put(category, rule);
+
+            }
+        }
+    }
+
+    /**
+     * @return the rule for the category, or null if it has none
+     */
+    Rule get(String category) {
+        if (category == null) {
+            return null;
+        }
+
+        Rule rule = resolved.get(category);
+
+        if (rule != null) {
+            return rule == Rule.NONE ? null : rule;
+        }
+
+        rule = exact.get(category);
+
+        if (rule == null) {
+            rule = prefixes.longestMatch(category);
+        }
+
+        if (resolved.size() < MAX_RESOLVED) {
+            resolved.put(category, rule == null ? Rule.NONE : rule);
+        }
+
+        return rule;
+    }
+
+    static class Rule {
+        // Remembers categories without a rule, ConcurrentHashMap can't hold nulls
+        private static final Rule NONE = new Rule("");
+
+        private boolean drop;
+        private double sampleRate = 1;
+        private String route;
+        private boolean raw;
+
+        private Rule(String actions) {
+            for (String action : actions.split(",")) {
+                action = action.trim();
+
+                if (action.length() == 0) {
+                    continue;
+                }
+
+                if (action.equals("drop")) {
+                    drop = true;
+
+                } else if (action.equals("raw")) {
+                    raw = true;
+
+                } else if (action.startsWith("sample:")) {
+                    try {
+                        sampleRate = Double.parseDouble(action.substring("sample:".length()));
+
+                    } catch (NumberFormatException e) {
+                        throw new IllegalArgumentException("Invalid sample rate: " + action);
+
+                    }
+
+                    if (!(sampleRate >= 0 && sampleRate <= 1)) {
+                        throw new IllegalArgumentException("Sample rate must be between 0 and 1: " + action);
+                    }
+
+                } else if (action.startsWith("route:") && action.length() > "route:".length()) {
+                    route = action.substring("route:".length());
+
+                } else {
+                    throw new IllegalArgumentException("Unknown category rule action: " + action);
+
+                }
+            }
+        }
+
+        /**
+         * @return whether to keep a message, drawing at random for sampled categories
+         */
+        boolean keep() {
+            return !drop && (sampleRate >= 1 || ThreadLocalRandom.current().nextDouble() < sampleRate);
+        }
+
+        /**
+         * @return the tag to add as scribe_route, or null
+         */
+        String getRoute() {
+            return route;
+        }
+
+        boolean isRaw() {
+            return raw;
+        }
+    }
+
+    private static class Node {
+        private final Map<Character, Node> children = new HashMap<Character, Node>();
+        private Rule rule;
+
+        Node add(String prefix) {
+            Node node = this;
+
+            for (int i = 0; i < prefix.length(); i++) {
+                Node child = node.children.get(prefix.charAt(i));
+
+                if (child == null) {
+                    child = new Node();
+                    node.children.put(prefix.charAt(i), child);
+                }
+
+                node = child;
+            }
+
+            return node;
+        }
+
+        Rule longestMatch(String category) {
+            Node node = this;
+            Rule match = rule;
+
+            for (int i = 0; i < category.length(); i++) {
+                node = node.children.get(category.charAt(i));
+
+                if (node == null) {
+                    break;
+                }
+
+                if (node.rule != null) {
+                    match = node.rule;
+                }
+            }
+
+            return match;
+        }
+    }
+}
@@ -0,0 +1,256 @@
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import org.apache.thrift.transport.TNonblockingSocket;
+import org.apache.thrift.transport.TNonblockingTransport;
+
+import java.net.InetAddress;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+/**
+ * Limits on what each remote address may send, so a relay sending large batches in a tight loop is answered with
+ * TRY_LATER instead of taking the workers from every other client.
+ * <p/>
+ * A Thrift connection only sends its next frame once the last one was answered, so the in-flight limit counts the
+ * batches of all connections from an address being handled at once. Byte and message rates are token buckets holding
+ * up to a second's worth. A batch is taken while its bucket isn't empty and may overdraw it, so batches larger than a
+ * second's worth still get through once, followed by a pause as long as they went over.
+ * <p/>
+ * The server hands each received frame to {@link #call}, which makes its address the current client of the worker
+ * handling it for {@link #acquire} and {@link #release}.
+ */
+class ClientLimits {
+    // Clients are forgotten, along with their rate and fair scheduling debts, after being idle this long
+    private static final long IDLE_NANOS = TimeUnit.MINUTES.toNanos(1);
+    private static final int SWEEP_THRESHOLD = 1024;
+
+    private static final ThreadLocal<Call> CURRENT = new ThreadLocal<Call>();
+
+    private final int maxInFlight;
+    private final long maxBytesPerSecond;
+    private final long maxMessagesPerSecond;
+    private final ConcurrentMap<InetAddress, Client> clients = new ConcurrentHashMap<InetAddress, Client>();
+
+    /**
+     * @param maxInFlight          batches from one address handled at once, or 0 for no limit
+     * @param maxBytesPerSecond    message bytes one address may send per second, or 0 for no limit
+     * @param maxMessagesPerSecond messages one address may send per second, or 0 for no limit
+     */
+    ClientLimits(int maxInFlight, long maxBytesPerSecond, long maxMessagesPerSecond) {
+        this.maxInFlight = maxInFlight;
+        this.maxBytesPerSecond = maxBytesPerSecond;
+        this.maxMessagesPerSecond = maxMessagesPerSecond;
+    }
+
+    /**
+     * @param transport  connection the frame was read from
+     * @param invocation the server's handling of the frame
+     */
+    Call call(TNonblockingTransport transport, Runnable invocation) {
+        return new Call(client(remoteAddress(transport)), invocation);
+    }
+
+    /**
+     * Takes a batch from the current client against its limits, to be released once handled.
+     *
+     * @return false if the client is over a limit and the batch should be answered with TRY_LATER
+     */
+    boolean acquire(int messages, long bytes) {
+        Call call = CURRENT.get();
+
+        if (call == null) {
+            // Not received through the server, e.g. processor used on its own
+            return true;
+        }
+
+        call.bytes = bytes;
+        Client client = call.client;
+
+        if (maxInFlight > 0 && client.inFlight.incrementAndGet() > maxInFlight) {
+            client.inFlight.decrementAndGet();
+            return false;
+        }
+
+        if (!client.take(messages, bytes)) {
+            if (maxInFlight > 0) {
+                client.inFlight.decrementAndGet();
+            }
+
+            return false;
+        }
+
+        call.acquired = true;
+        return true;
+    }
+
+    /**
+     * Releases the batch taken by {@link #acquire}, before its response is sent and the connection's next frame read.
+     */
+    void release() {
+        Call call = CURRENT.get();
+
+        if (call != null && call.acquired) {
+            call.acquired = false;
+
+            if (maxInFlight > 0) {
+                call.client.inFlight.decrementAndGet();
+            }
+
+            // Charged once the batch size is known, the client's next fair scheduling turns make up for it
+            call.client.addDeficit(-call.bytes);
+        }
+    }
+
+    void registerMetrics(MetricRegistry metrics, String metricName) {
+        metrics.register(name(metricName, "clients"), new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return clients.size();
+            }
+        });
+    }
+
+    private Client client(InetAddress address) {
+        Client client = clients.get(address);
+
+        if (client == null) {
+            if (clients.size() >= SWEEP_THRESHOLD) {
+                sweep();
+            }
+
+            Client created = new Client(address, maxMessagesPerSecond, maxBytesPerSecond);
+            client = clients.putIfAbsent(address, created);
+
+            if (client == null) {
+                client = created;
+            }
+        }
+
+        client.lastSeen = System.nanoTime();
+        return client;
+    }
+
+    private void sweep() {
+        long now = System.nanoTime();
+
+        for (Iterator<Client> i = clients.values().iterator(); i.hasNext(); ) {
+            Client client = i.next();
+
+            if (client.inFlight.get() == 0 && now - client.lastSeen > IDLE_NANOS) {
+                i.remove();
+            }
+        }
+    }
+
+    private static InetAddress remoteAddress(TNonblockingTransport transport) {
+        if (transport instanceof TNonblockingSocket) {
+            InetAddress address = ((TNonblockingSocket) transport).getSocketChannel().socket().getInetAddress();
+
+            if (address != null) {
+                return address;
+            }
+        }
+
+        // Closed meanwhile, or not a socket, its frame is handled as any unknown client's
+        return InetAddress.getLoopbackAddress();
+    }
+
+    /**
+     * What the input knows about one remote address.
+     */
+    static final class Client {
+        final InetAddress address;
+        final AtomicInteger inFlight = new AtomicInteger();
+        volatile long lastSeen;
+
+        private final long messagesPerSecond;
+        private final long bytesPerSecond;
+
+        // Guarded by this
+        private double messageTokens;
+        private double byteTokens;
+        private long refilledAt = System.nanoTime();
+        private long deficit;
+
+        Client(InetAddress address, long messagesPerSecond, long bytesPerSecond) {
+            this.address = address;
+            this.messagesPerSecond = messagesPerSecond;
+            this.bytesPerSecond = bytesPerSecond;
+            this.messageTokens = messagesPerSecond;
+            this.byteTokens = bytesPerSecond;
+        }
+
+        private synchronized boolean take(int messages, long bytes) {
+            long now = System.nanoTime();
+            double seconds = (now - refilledAt) / 1e9;
+            refilledAt = now;
+
+            messageTokens = Math.min(messagesPerSecond, messageTokens + seconds * messagesPerSecond);
+            byteTokens = Math.min(bytesPerSecond, byteTokens + seconds * bytesPerSecond);
+
+            if (messagesPerSecond > 0 && messageTokens <= 0 || bytesPerSecond > 0 && byteTokens <= 0) {
+                return false;
+            }
+
+            messageTokens -= messages;
+            byteTokens -= bytes;
+            return true;
+        }
+
+        /**
+         * @return the bytes this client may still send in the current fair scheduling round, negative once it sent
+         * more than its share
+         */
+        synchronized long deficit() {
+            return deficit;
+        }
+
+        synchronized void addDeficit(long bytes) {
+            deficit += bytes;
+        }
+
+        /**
+         * Forgets unused credit once the client has nothing queued, so it can't save up for a burst later.
+         */
+        synchronized void resetCredit() {
+            deficit = Math.min(0, deficit);
+        }
+    }
+
+    /**
+     * A received frame, handled on a worker with its client as the current one.
+     */
+    final class Call implements Runnable {
+        final Client client;
+        private final Runnable invocation;
+
+        // Only used by the worker handling the call
+        private long bytes;
+        private boolean acquired;
+
+        Call(Client client, Runnable invocation) {
+            this.client = client;
+            this.invocation = invocation;
+        }
+
+        @Override
+        public void run() {
+            CURRENT.set(this);
+
+            try {
+                invocation.run();
+
+            } finally {
+                // In case handling failed before the processor released the batch
+                release();
+                CURRENT.remove();
+
+            }
+        }
+    }
+}
@@ -0,0 +1,124 @@
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hands received frames to the workers by deficit round robin over their clients instead of in arrival order, so a
+ * client with many connections or large batches gets its share of the workers rather than all of them.
+ * <p/>
+ * Each client with frames waiting takes a turn in a ring, one frame per turn. A batch's size is only known once it was
+ * read, so it is charged to the client's deficit afterwards, see {@link ClientLimits#release}. A client whose deficit
+ * went negative is passed over, gaining a quantum each time, until its next turns have made up for the bytes it sent
+ * beyond its share.
+ */
+class FairScheduler extends AbstractExecutorService {
+    // Bytes a client in debt is credited per round, small enough to interleave clients sending small batches
+    private static final long QUANTUM = 64 * 1024;
+
+    private final ExecutorService workers;
+
+    // Guarded by this
+    private final Map<ClientLimits.Client, Queue<ClientLimits.Call>> waiting = new HashMap<ClientLimits.Client, Queue<ClientLimits.Call>>();
+    private final Queue<ClientLimits.Client> ring = new ArrayDeque<ClientLimits.Client>();
+
+    private final Runnable next = new Runnable() {
+        @Override
+        public void run() {
+            ClientLimits.Call call = next();
+
+            if (call != null) {
+                call.run();
+            }
+        }
+    };
+
+    /**
+     * @param workers executor the frames are handled on
+     */
+    FairScheduler(ExecutorService workers) {
+        this.workers = workers;
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        if (!(command instanceof ClientLimits.Call)) {
+            workers.execute(command);
+            return;
+        }
+
+        ClientLimits.Call call = (ClientLimits.Call) command;
+
+        synchronized (this) {
+            Queue<ClientLimits.Call> calls = waiting.get(call.client);
+
+            if (calls == null) {
+                calls = new ArrayDeque<ClientLimits.Call>();
+                waiting.put(call.client, calls);
+                ring.add(call.client);
+            }
+
+            calls.add(call);
+        }
+
+        // Whichever worker runs this handles the frame whose turn it is by then, not necessarily this one
+        workers.execute(next);
+    }
+
+    private synchronized ClientLimits.Call next() {
+        while (!ring.isEmpty()) {
+            ClientLimits.Client client = ring.poll();
+
+            if (client.deficit() < 0) {
+                client.addDeficit(QUANTUM);
+                ring.add(client);
+                continue;
+            }
+
+            Queue<ClientLimits.Call> calls = waiting.get(client);
+            ClientLimits.Call call = calls.poll();
+
+            if (calls.isEmpty()) {
+                waiting.remove(client);
+                client.resetCredit();
+
+            } else {
+                ring.add(client);
+
+            }
+
+            return call;
+        }
+
+        return null;
+    }
+
+    @Override
+    public void shutdown() {
+        workers.shutdown();
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+        return workers.shutdownNow();
+    }
+
+    @Override
+    public boolean isShutdown() {
+        return workers.isShutdown();
+    }
+
+    @Override
+    public boolean isTerminated() {
+        return workers.isTerminated();
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return workers.awaitTermination(timeout, unit);
+    }
+}
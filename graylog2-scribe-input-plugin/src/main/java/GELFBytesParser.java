@@ -0,0 +1,159 @@
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import org.graylog2.plugin.Message;
+import org.graylog2.plugin.Tools;
+import org.joda.time.DateTime;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Builds a Message straight from UTF-8 GELF bytes with a streaming parser, without first decoding the whole message
+ * into a String and then into a JsonNode tree.
+ * <p/>
+ * Mirrors GELFParser for the flat objects the Scribe appenders send. Anything else, nested objects, nulls, booleans
+ * or numbers where strings are expected, a missing level and invalid JSON, is left to GELFParser by returning null.
+ */
+class GELFBytesParser {
+    private final JsonFactory jsonFactory = new JsonFactory();
+
+    /**
+     * @return the parsed message, or null if it has to go through GELFParser instead
+     */
+    Message parse(byte[] bytes, int offset, int length) {
+        Map<String, Object> fields;
+
+        try {
+            fields = readFields(bytes, offset, length);
+
+        } catch (IOException e) {
+            return null;
+
+        }
+
+        if (fields == null) {
+            return null;
+        }
+
+        Object shortMessage = fields.get("short_message");
+        Object host = fields.get("host");
+        Object fullMessage = fields.get("full_message");
+        Object file = fields.get("file");
+        Object facility = fields.get("facility");
+        Object timestamp = fields.get("timestamp");
+        Object level = fields.get("level");
+        Object line = fields.get("line");
+
+        if (!isString(shortMessage) || !isString(host) || !isString(fullMessage) || !isString(file) || !isString(facility)
+                || !(timestamp == null || timestamp instanceof Number)
+                || !(level instanceof Long) || !(line == null || line instanceof Long)) {
+            return null;
+        }
+
+        double time = timestamp == null ? -1 : ((Number) timestamp).doubleValue();
+        DateTime ts = time <= 0 ? Tools.iso8601() : Tools.dateTimeFromDouble(time);
+
+        Message lm = new Message((String) shortMessage, (String) host, ts);
+        lm.addField("full_message", fullMessage);
+
+        if (file != null && ((String) file).length() > 0) {
+            lm.addField("file", file);
+        }
+
+        if (line != null && (Long) line > -1) {
+            lm.addField("line", line);
+        }
+
+        // Only reached with a level, GELFParser picks the default
+        lm.addField("level", ((Long) level).intValue());
+
+        if (facility != null && ((String) facility).length() > 0) {
+            lm.addField("facility", facility);
+        }
+
+        for (Map.Entry<String, Object> field : fields.entrySet()) {
+            String key = field.getKey();
+
+            if (key.equals("version")) {
+                continue;
+            }
+
+            if (key.startsWith("_") && key.length() > 1) {
+                key = key.substring(1);
+            }
+
+            if (key.equals("short_message") || key.equals("host")) {
+                continue;
+            }
+
+            if (lm.getField(key) != null || Message.RESERVED_FIELDS.contains(key)) {
+                continue;
+            }
+
+            lm.addField(key, field.getValue());
+        }
+
+        return lm;
+    }
+
+    /**
+     * @return the fields in order, a repeated field keeping its first position and last value as in an ObjectNode, or
+     * null if there are values the fast path doesn't handle
+     */
+    private Map<String, Object> readFields(byte[] bytes, int offset, int length) throws IOException {
+        JsonParser parser = jsonFactory.createParser(bytes, offset, length);
+
+        try {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                return null;
+            }
+
+            Map<String, Object> fields = new LinkedHashMap<String, Object>();
+            JsonToken token;
+
+            while ((token = parser.nextToken()) == JsonToken.FIELD_NAME) {
+                String name = parser.getCurrentName();
+                Object value;
+
+                switch (parser.nextToken()) {
+                    case VALUE_STRING:
+                        value = parser.getText();
+                        break;
+
+                    case VALUE_NUMBER_INT:
+                        if (parser.getNumberType() == JsonParser.NumberType.BIG_INTEGER) {
+                            return null;
+                        }
+
+                        value = parser.getLongValue();
+                        break;
+
+                    case VALUE_NUMBER_FLOAT:
+                        value = parser.getDoubleValue();
+                        break;
+
+                    default:
+                        return null;
+                }
+
+                if (name.equals("_id")) {
+                    return null;
+                }
+
+                fields.put(name, value);
+            }
+
+            return token == JsonToken.END_OBJECT ? fields : null;
+
+        } finally {
+            parser.close();
+
+        }
+    }
+
+    private static boolean isString(Object value) {
+        return value == null || value instanceof String;
+    }
+}
@@ -0,0 +1,305 @@
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.lz4.LZ4SafeDecompressor;
+
+import java.io.IOException;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Recognises compressed messages by their leading magic bytes, as GELF over UDP does, and decompresses them into a
+ * reusable buffer. Understands GZIP, ZLIB and LZ4 frames with independent blocks, which covers what the Scribe
+ * appender sends. GELF JSON always starts with a brace or whitespace, so it can't be mistaken for any of them, but
+ * other text can: a ZLIB header is a plain 'x' followed by one of a few bytes. Only messages expected to be GELF are
+ * checked for compression, raw categories are taken as they are.
+ * <p/>
+ * Keeps its Inflaters between messages, so it is not thread safe and needs {@link #close()} to free their native
+ * memory. Messages that would decompress to more than {@link #MAX_MESSAGE_SIZE} bytes are rejected rather than
+ * decompressed.
+ */
+class GELFDecompressor {
+    static final int MAX_MESSAGE_SIZE = 16 * 1024 * 1024;
+
+    private static final int MAX_RETAINED_SIZE = 1024 * 1024;
+    private static final int LZ4_MAGIC = 0x184D2204;
+
+    private static final int GZIP_FHCRC = 2;
+    private static final int GZIP_FEXTRA = 4;
+    private static final int GZIP_FNAME = 8;
+    private static final int GZIP_FCOMMENT = 16;
+
+    private final Inflater zlibInflater = new Inflater();
+    private final Inflater gzipInflater = new Inflater(true);
+    private final CRC32 crc = new CRC32();
+    private final LZ4SafeDecompressor lz4Decompressor = LZ4Factory.fastestInstance().safeDecompressor();
+
+    private byte[] buffer = new byte[8192];
+
+    static boolean isCompressed(byte[] bytes, int offset, int length) {
+        if (length > 0 && bytes[offset] == '{') {
+            // The common case, plain GELF
+            return false;
+        }
+
+        return isGzip(bytes, offset, length) || isZlib(bytes, offset, length) || isLZ4(bytes, offset, length);
+    }
+
+    /**
+     * Checks a message that was decoded as a String by the generated processor, so it can at least be told apart from
+     * broken JSON. The decoding has already lost the compressed bytes.
+     */
+    static boolean isCompressed(String message) {
+        if (message.length() == 0) {
+            return false;
+        }
+
+        char first = message.charAt(0);
+
+        if (first == '{' || message.length() < 2) {
+            return false;
+        }
+
+        // Bytes past 0x7f were decoded as replacement characters or merged with their successors, so any non-ASCII
+        // second character may have been the second magic byte
+        char second = message.charAt(1);
+        return first == 0x1f && second >= 0x80
+                || first == 0x78 && (second == 0x01 || second == 0x5e || second >= 0x80)
+                || message.startsWith("\u0004\"M\u0018");
+    }
+
+    /**
+     * @return the decompressed message, valid until the next call
+     */
+    byte[] buffer() {
+        return buffer;
+    }
+
+    /**
+     * Decompresses a message recognised by {@link #isCompressed(byte[], int, int)} into {@link #buffer()}.
+     *
+     * @return the length of the decompressed message
+     * @throws IOException if the message is corrupt, truncated or too large
+     */
+    int decompress(byte[] bytes, int offset, int length) throws IOException {
+        if (buffer.length > MAX_RETAINED_SIZE) {
+            buffer = new byte[MAX_RETAINED_SIZE];
+        }
+
+        try {
+            if (isGzip(bytes, offset, length)) {
+                return gunzip(bytes, offset, length);
+            }
+
+            if (isZlib(bytes, offset, length)) {
+                return inflate(zlibInflater, bytes, offset, length);
+            }
+
+            if (isLZ4(bytes, offset, length)) {
+                return unLZ4(bytes, offset, length);
+            }
+
+        } catch (DataFormatException e) {
+            throw new IOException("Invalid compressed message", e);
+
+        } catch (RuntimeException e) {
+            // Bounds violations from a truncated frame or corrupt LZ4 block
+            throw new IOException("Invalid compressed message", e);
+
+        }
+
+        throw new IOException("Message is not compressed");
+    }
+
+    /**
+     * Ends the Inflaters, rather than leaving their native zlib state to finalization. The decompressor can't be used
+     * afterwards.
+     */
+    void close() {
+        zlibInflater.end();
+        gzipInflater.end();
+    }
+
+    private int gunzip(byte[] bytes, int offset, int length) throws IOException, DataFormatException {
+        int end = offset + length;
+        int flags = bytes[offset + 3] & 0xff;
+        int position = offset + 10;
+
+        if ((flags & GZIP_FEXTRA) != 0) {
+            position += 2 + readShortLE(bytes, position);
+        }
+
+        if ((flags & GZIP_FNAME) != 0) {
+            position = skipZeroTerminated(bytes, position, end);
+        }
+
+        if ((flags & GZIP_FCOMMENT) != 0) {
+            position = skipZeroTerminated(bytes, position, end);
+        }
+
+        if ((flags & GZIP_FHCRC) != 0) {
+            position += 2;
+        }
+
+        if (position > end) {
+            throw new IOException("Truncated GZIP header");
+        }
+
+        int decompressed = inflate(gzipInflater, bytes, position, end - position);
+        int trailer = end - gzipInflater.getRemaining();
+
+        if (end - trailer < 8) {
+            throw new IOException("Truncated GZIP trailer");
+        }
+
+        crc.reset();
+        crc.update(buffer, 0, decompressed);
+
+        if (readIntLE(bytes, trailer) != (int) crc.getValue() || readIntLE(bytes, trailer + 4) != decompressed) {
+            throw new IOException("GZIP checksum mismatch");
+        }
+
+        return decompressed;
+    }
+
+    private int inflate(Inflater inflater, byte[] bytes, int offset, int length) throws IOException, DataFormatException {
+        int decompressed = 0;
+
+        inflater.reset();
+        inflater.setInput(bytes, offset, length);
+
+        while (!inflater.finished()) {
+            if (decompressed == buffer.length) {
+                grow(decompressed + 1);
+            }
+
+            int inflated = inflater.inflate(buffer, decompressed, buffer.length - decompressed);
+
+            if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                throw new IOException("Truncated deflate stream");
+            }
+
+            decompressed += inflated;
+        }
+
+        return decompressed;
+    }
+
+    private int unLZ4(byte[] bytes, int offset, int length) throws IOException {
+        int end = offset + length;
+        int flags = bytes[offset + 4] & 0xff;
+        int blockDescriptor = bytes[offset + 5] & 0xff;
+        int position = offset + 6;
+
+        if ((flags >> 6) != 1) {
+            throw new IOException("Unsupported LZ4 frame version");
+        }
+
+        if ((flags & 0x20) == 0) {
+            throw new IOException("Linked LZ4 blocks are not supported");
+        }
+
+        if ((flags & 0x01) != 0) {
+            throw new IOException("LZ4 dictionaries are not supported");
+        }
+
+        boolean blockChecksums = (flags & 0x10) != 0;
+        int maxBlockSize = 1 << (8 + 2 * ((blockDescriptor >> 4) & 7));
+
+        if ((flags & 0x08) != 0) {
+            if (end - position < 8) {
+                throw new IOException("Truncated LZ4 frame");
+            }
+
+            long contentSize = readIntLE(bytes, position) & 0xffffffffL | (long) readIntLE(bytes, position + 4) << 32;
+
+            if (contentSize < 0 || contentSize > MAX_MESSAGE_SIZE) {
+                throw new IOException("Message larger than " + MAX_MESSAGE_SIZE + " bytes");
+            }
+
+            position += 8;
+        }
+
+        // Header checksum
+        position++;
+
+        int decompressed = 0;
+
+        while (true) {
+            if (end - position < 4) {
+                throw new IOException("Truncated LZ4 frame");
+            }
+
+            int blockLength = readIntLE(bytes, position);
+            position += 4;
+
+            if (blockLength == 0) {
+                return decompressed;
+            }
+
+            boolean uncompressed = blockLength < 0;
+            blockLength &= 0x7fffffff;
+
+            if (blockLength > end - position) {
+                throw new IOException("Truncated LZ4 block");
+            }
+
+            if (uncompressed) {
+                ensureCapacity(decompressed + blockLength);
+                System.arraycopy(bytes, position, buffer, decompressed, blockLength);
+                decompressed += blockLength;
+
+            } else {
+                ensureCapacity(decompressed + Math.min(maxBlockSize, MAX_MESSAGE_SIZE - decompressed));
+                decompressed += lz4Decompressor.decompress(bytes, position, blockLength, buffer, decompressed, buffer.length - decompressed);
+
+            }
+
+            position += blockLength + (blockChecksums ? 4 : 0);
+        }
+    }
+
+    private void ensureCapacity(int capacity) throws IOException {
+        if (capacity > buffer.length) {
+            grow(capacity);
+        }
+    }
+
+    private void grow(int capacity) throws IOException {
+        if (capacity > MAX_MESSAGE_SIZE) {
+            throw new IOException("Message larger than " + MAX_MESSAGE_SIZE + " bytes");
+        }
+
+        byte[] grown = new byte[Math.min(MAX_MESSAGE_SIZE, Math.max(capacity, buffer.length * 2))];
+        System.arraycopy(buffer, 0, grown, 0, buffer.length);
+        buffer = grown;
+    }
+
+    private static boolean isGzip(byte[] bytes, int offset, int length) {
+        return length >= 18 && bytes[offset] == 0x1f && bytes[offset + 1] == (byte) 0x8b && bytes[offset + 2] == 8;
+    }
+
+    private static boolean isZlib(byte[] bytes, int offset, int length) {
+        // Deflate with a 32K window, and the header check bits
+        return length >= 6 && bytes[offset] == 0x78 && (0x7800 | bytes[offset + 1] & 0xff) % 31 == 0;
+    }
+
+    private static boolean isLZ4(byte[] bytes, int offset, int length) {
+        return length >= 11 && readIntLE(bytes, offset) == LZ4_MAGIC;
+    }
+
+    private static int skipZeroTerminated(byte[] bytes, int position, int end) {
+        while (position < end && bytes[position] != 0) {
+            position++;
+        }
+
+        return position + 1;
+    }
+
+    private static int readShortLE(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xff) | (bytes[offset + 1] & 0xff) << 8;
+    }
+
+    private static int readIntLE(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xff) | (bytes[offset + 1] & 0xff) << 8 | (bytes[offset + 2] & 0xff) << 16 | (bytes[offset + 3] & 0xff) << 24;
+    }
+}
@@ -0,0 +1,90 @@
+import scribe.thrift.LogEntry;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * The entries of one Log() call as read by {@link ScribeGELFRawProcessor}, each message left as a slice of the buffer
+ * it was received in. Only valid while the call is being processed.
+ */
+class LogEntrySlices {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private String[] categories = new String[64];
+    private byte[][] buffers = new byte[64][];
+    private int[] offsets = new int[64];
+    private int[] lengths = new int[64];
+    private int size;
+
+    /**
+     * @param buffer the buffer holding the message, or null if the entry had no message
+     */
+    void add(String category, byte[] buffer, int offset, int length) {
+        if (size == offsets.length) {
+            // Grown as entries arrive rather than trusting the list size sent by the client
+            categories = Arrays.copyOf(categories, size * 2);
+            buffers = Arrays.copyOf(buffers, size * 2);
+            offsets = Arrays.copyOf(offsets, size * 2);
+            lengths = Arrays.copyOf(lengths, size * 2);
+        }
+
+        categories[size] = category;
+        buffers[size] = buffer;
+        offsets[size] = offset;
+        lengths[size] = length;
+        size++;
+    }
+
+    /**
+     * Drops the references to the received buffers, the message slices can't be used afterwards.
+     */
+    void clear() {
+        for (int i = 0; i < size; i++) {
+            categories[i] = null;
+            buffers[i] = null;
+        }
+
+        size = 0;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return the total size of the messages, as received
+     */
+    long bytes() {
+        long bytes = 0;
+
+        for (int i = 0; i < size; i++) {
+            bytes += lengths[i];
+        }
+
+        return bytes;
+    }
+
+    String getCategory(int index) {
+        return categories[index];
+    }
+
+    byte[] getBuffer(int index) {
+        return buffers[index];
+    }
+
+    int getOffset(int index) {
+        return offsets[index];
+    }
+
+    int getLength(int index) {
+        return lengths[index];
+    }
+
+    String getMessage(int index) {
+        return buffers[index] == null ? null : new String(buffers[index], offsets[index], lengths[index], UTF8);
+    }
+
+    LogEntry getEntry(int index) {
+        return new LogEntry(categories[index], getMessage(index));
+    }
+}
@@ -0,0 +1,42 @@
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Reusable per call state, such as parse buffers and Inflaters, handed to whichever thread handles the next call.
+ * <p/>
+ * Used instead of ThreadLocals so the state is reused as well when every Log() call runs on a virtual thread of its
+ * own. The pool ends up holding about as many objects as were ever in use at once, up to maxIdle, and taking and
+ * releasing one doesn't allocate.
+ */
+abstract class ObjectPool<T> {
+    private final BlockingQueue<T> idle;
+
+    ObjectPool(int maxIdle) {
+        this.idle = new ArrayBlockingQueue<T>(maxIdle);
+    }
+
+    protected abstract T create();
+
+    /**
+     * Called for an object dropped on release because the pool is full, to free what it holds outside the heap.
+     */
+    protected void discard(T object) {
+    }
+
+    /**
+     * @return an idle object, or a new one if there is none
+     */
+    T take() {
+        T object = idle.poll();
+        return object != null ? object : create();
+    }
+
+    /**
+     * Returns an object once the caller is done with it, it is discarded if the pool already holds maxIdle.
+     */
+    void release(T object) {
+        if (!idle.offer(object)) {
+            discard(object);
+        }
+    }
+}
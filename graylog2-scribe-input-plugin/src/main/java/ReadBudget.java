@@ -0,0 +1,162 @@
+import org.apache.thrift.transport.TNonblockingServerTransport;
+import org.apache.thrift.transport.TNonblockingSocket;
+import org.apache.thrift.transport.TTransport;
+import org.apache.thrift.transport.TTransportException;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Stops selecting a connection for reads while its server's read buffer budget can't hold its next frame.
+ * <p/>
+ * Thrift's non-blocking servers check the budget once a frame's size has been read, and if the frame doesn't fit leave
+ * the connection registered for reads to try again. The unread frame keeps the socket readable, so the selector thread
+ * spins until the budget frees up. Thrift then calls read with the full 4 byte size buffer, which is how a connection
+ * accepted through {@link #listenOn(TNonblockingServerTransport)} notices it is waiting: it drops its read interest
+ * and is parked until a frame is handled or a connection closes, the only things that free up budget.
+ * <p/>
+ * One per server, as each server keeps its own budget.
+ */
+class ReadBudget {
+    // Thrift reads a frame's size into a buffer of its own, and the frame into one at least a byte larger
+    private static final int FRAME_SIZE_BYTES = 4;
+
+    private final Set<BudgetedSocket> parked = Collections.newSetFromMap(new ConcurrentHashMap<BudgetedSocket, Boolean>());
+
+    /**
+     * @return a server transport accepting connections from the given one that park while waiting for budget
+     */
+    TNonblockingServerTransport listenOn(final TNonblockingServerTransport socket) {
+        return new TNonblockingServerTransport() {
+            @Override
+            public void registerSelector(Selector selector) {
+                socket.registerSelector(selector);
+            }
+
+            @Override
+            public void listen() throws TTransportException {
+                socket.listen();
+            }
+
+            @Override
+            public void close() {
+                socket.close();
+            }
+
+            @Override
+            public void interrupt() {
+                socket.interrupt();
+            }
+
+            @Override
+            protected TTransport acceptImpl() throws TTransportException {
+                TNonblockingSocket accepted = (TNonblockingSocket) socket.accept();
+
+                try {
+                    return new BudgetedSocket(accepted.getSocketChannel());
+
+                } catch (IOException e) {
+                    accepted.close();
+                    throw new TTransportException(e);
+
+                }
+            }
+        };
+    }
+
+    /**
+     * @return the invocation, followed by resuming parked connections once its frame has freed up budget
+     */
+    Runnable releasing(final Runnable invocation) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    invocation.run();
+
+                } finally {
+                    released();
+
+                }
+            }
+        };
+    }
+
+    /**
+     * @return how many connections are waiting for budget
+     */
+    int getParked() {
+        return parked.size();
+    }
+
+    private void released() {
+        for (BudgetedSocket socket : parked) {
+            if (parked.remove(socket)) {
+                socket.resume();
+            }
+        }
+    }
+
+    private class BudgetedSocket extends TNonblockingSocket {
+        private volatile SelectionKey key;
+
+        BudgetedSocket(SocketChannel channel) throws IOException {
+            super(channel);
+        }
+
+        @Override
+        public SelectionKey registerSelector(Selector selector, int interests) throws IOException {
+            key = super.registerSelector(selector, interests);
+            return key;
+        }
+
+        @Override
+        public int read(ByteBuffer buffer) throws IOException {
+            if (buffer.capacity() == FRAME_SIZE_BYTES && !buffer.hasRemaining()) {
+                // Called on the selector thread, which doesn't select the key again until it is resumed
+                key.interestOps(0);
+                parked.add(this);
+                return 0;
+            }
+
+            // Budget freed up between parking and Thrift checking it again, and Thrift went on to read the frame
+            if (parked.remove(this)) {
+                key.interestOps(SelectionKey.OP_READ);
+            }
+
+            return super.read(buffer);
+        }
+
+        @Override
+        public void close() {
+            parked.remove(this);
+            super.close();
+
+            // Thrift returns the budget of the frame being read before closing its transport
+            released();
+        }
+
+        /**
+         * Registers the connection for reads again, from whichever thread freed up budget.
+         */
+        void resume() {
+            SelectionKey key = this.key;
+
+            try {
+                key.interestOps(SelectionKey.OP_READ);
+                key.selector().wakeup();
+
+            } catch (CancelledKeyException e) {
+                // Closed meanwhile
+
+            }
+        }
+    }
+}
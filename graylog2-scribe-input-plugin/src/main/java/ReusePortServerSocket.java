@@ -0,0 +1,148 @@
+import org.apache.thrift.transport.TNonblockingServerTransport;
+import org.apache.thrift.transport.TNonblockingSocket;
+import org.apache.thrift.transport.TTransportException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Non-blocking server socket bound with SO_REUSEPORT, so several of them can listen on the same port and the kernel
+ * spreads incoming connections over them.
+ * <p/>
+ * Otherwise the same as TNonblockingServerSocket, which binds in its constructor and leaves no way to set the option
+ * first. SO_REUSEPORT needs Java 9 or later on Linux or BSD and is looked up reflectively, so the plugin still builds
+ * and runs on older JVMs, which keep listening on a single socket.
+ */
+class ReusePortServerSocket extends TNonblockingServerTransport {
+    private static final Logger LOG = LoggerFactory.getLogger(ReusePortServerSocket.class);
+
+    private static final SocketOption<Boolean> SO_REUSEPORT = reusePortOption();
+
+    private final ServerSocketChannel channel;
+
+    /**
+     * @throws UnsupportedOperationException if the JVM or OS has no SO_REUSEPORT
+     */
+    ReusePortServerSocket(InetSocketAddress address) throws TTransportException {
+        if (SO_REUSEPORT == null) {
+            throw new UnsupportedOperationException("SO_REUSEPORT needs Java 9 or later");
+        }
+
+        try {
+            channel = ServerSocketChannel.open();
+
+        } catch (IOException e) {
+            throw new TTransportException("Could not create ServerSocket on address " + address, e);
+
+        }
+
+        try {
+            if (!channel.supportedOptions().contains(SO_REUSEPORT)) {
+                throw new UnsupportedOperationException("SO_REUSEPORT isn't supported on this platform");
+            }
+
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            channel.setOption(SO_REUSEPORT, true);
+            channel.bind(address);
+
+        } catch (IOException e) {
+            closeQuietly();
+            throw new TTransportException("Could not create ServerSocket on address " + address, e);
+
+        } catch (RuntimeException e) {
+            closeQuietly();
+            throw e;
+
+        }
+    }
+
+    static boolean isAvailable() {
+        if (SO_REUSEPORT == null) {
+            return false;
+        }
+
+        try {
+            ServerSocketChannel probe = ServerSocketChannel.open();
+
+            try {
+                return probe.supportedOptions().contains(SO_REUSEPORT);
+
+            } finally {
+                probe.close();
+
+            }
+
+        } catch (IOException e) {
+            return false;
+
+        }
+    }
+
+    @Override
+    public void listen() throws TTransportException {
+        // Bound and non-blocking since the constructor
+    }
+
+    @Override
+    protected TNonblockingSocket acceptImpl() throws TTransportException {
+        try {
+            SocketChannel socketChannel = channel.accept();
+            return socketChannel != null ? new TNonblockingSocket(socketChannel) : null;
+
+        } catch (IOException e) {
+            throw new TTransportException(e);
+
+        }
+    }
+
+    @Override
+    public void registerSelector(Selector selector) {
+        try {
+            channel.register(selector, SelectionKey.OP_ACCEPT);
+
+        } catch (ClosedChannelException e) {
+            // Stopping, the selector won't select it
+        }
+    }
+
+    @Override
+    public void close() {
+        closeQuietly();
+    }
+
+    @Override
+    public void interrupt() {
+        close();
+    }
+
+    private void closeQuietly() {
+        try {
+            channel.close();
+
+        } catch (IOException e) {
+            LOG.warn("Could not close server socket", e);
+
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static SocketOption<Boolean> reusePortOption() {
+        try {
+            return (SocketOption<Boolean>) StandardSocketOptions.class.getField("SO_REUSEPORT").get(null);
+
+        } catch (Exception e) {
+            return null;
+
+        }
+    }
+}
@@ -1,11 +1,14 @@
+import org.apache.thrift.TProcessor;
 import org.apache.thrift.protocol.TBinaryProtocol;
 import org.apache.thrift.protocol.TProtocolFactory;
 import org.apache.thrift.server.THsHaServer;
 import org.apache.thrift.server.TServer;
+import org.apache.thrift.server.TThreadedSelectorServer;
 import org.apache.thrift.transport.*;
 import org.graylog2.plugin.configuration.Configuration;
 import org.graylog2.plugin.configuration.ConfigurationException;
 import org.graylog2.plugin.configuration.ConfigurationRequest;
+import org.graylog2.plugin.configuration.fields.BooleanField;
 import org.graylog2.plugin.configuration.fields.ConfigurationField;
 import org.graylog2.plugin.configuration.fields.NumberField;
 import org.graylog2.plugin.configuration.fields.TextField;
@@ -16,7 +19,12 @@ import org.slf4j.LoggerFactory;
 import scribe.thrift.scribe;
 
 import java.net.InetSocketAddress;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * @author James Furness
@@ -27,8 +35,9 @@ public class ScribeGELFInput extends MessageInput {
 
     public static final String NAME = "Scribe GELF Input";
 
-    private TNonblockingServerTransport socket;
-    private TServer server;
+    private final List<TNonblockingServerTransport> sockets = new CopyOnWriteArrayList<TNonblockingServerTransport>();
+    private final List<TServer> servers = new CopyOnWriteArrayList<TServer>();
+    private ForkJoinPool parsePool;
 
     @Override
     public void checkConfiguration() throws ConfigurationException {
@@ -41,6 +50,29 @@ public class ScribeGELFInput extends MessageInput {
     public static final String PORT = "scribe_port";
     public static final String MAX_LENGTH = "scribe_max_message_length";
     public static final String WORKER_THREADS = "scribe_worker_threads";
+    public static final String PARALLEL_PARSE_THRESHOLD = "scribe_parallel_parse_threshold";
+    public static final String PARSE_PARALLELISM = "scribe_parse_parallelism";
+    public static final String RAW_PROCESSOR = "scribe_raw_processor";
+    public static final String CHUNKED_INSERT_TIMEOUT = "scribe_chunked_insert_timeout";
+    public static final String ADMISSION_HIGH_WATERMARK = "scribe_admission_high_watermark";
+    public static final String ADMISSION_LOW_WATERMARK = "scribe_admission_low_watermark";
+    public static final String ADMISSION_SMOOTHING = "scribe_admission_smoothing";
+    public static final String SERVER_ENGINE = "scribe_server_engine";
+    public static final String SELECTOR_THREADS = "scribe_selector_threads";
+    public static final String ACCEPT_QUEUE_SIZE = "scribe_accept_queue_size";
+    public static final String CATEGORY_RULES = "scribe_category_rules";
+    public static final String METRICS_SAMPLE_INTERVAL = "scribe_metrics_sample_interval";
+    public static final String VIRTUAL_THREADS = "scribe_virtual_threads";
+    public static final String VIRTUAL_THREAD_MAX_CALLS = "scribe_virtual_thread_max_calls";
+    public static final String LISTENER_SHARDS = "scribe_listener_shards";
+    public static final String CLIENT_MAX_IN_FLIGHT = "scribe_client_max_in_flight";
+    public static final String CLIENT_MAX_BYTES_PER_SECOND = "scribe_client_max_bytes_per_second";
+    public static final String CLIENT_MAX_MESSAGES_PER_SECOND = "scribe_client_max_messages_per_second";
+    public static final String FAIR_SCHEDULING = "scribe_fair_scheduling";
+    public static final String READ_BUFFER_BUDGET = "scribe_read_buffer_budget";
+
+    public static final String ENGINE_HSHA = "hsha";
+    public static final String ENGINE_THREADED_SELECTOR = "threaded_selector";
 
     @Override
     public void launch() throws MisfireException {
@@ -48,20 +80,126 @@ public class ScribeGELFInput extends MessageInput {
         int port = (int) configuration.getInt(PORT);
         int thrift_length = (int) configuration.getInt(MAX_LENGTH);
         int worker_threads = (int) configuration.getInt(WORKER_THREADS);
+        int parallel_parse_threshold = configuration.intIsSet(PARALLEL_PARSE_THRESHOLD) ? (int) configuration.getInt(PARALLEL_PARSE_THRESHOLD) : 0;
+        int parse_parallelism = configuration.intIsSet(PARSE_PARALLELISM) && configuration.getInt(PARSE_PARALLELISM) > 0
+                ? (int) configuration.getInt(PARSE_PARALLELISM)
+                : Runtime.getRuntime().availableProcessors();
+        long chunked_insert_timeout = configuration.intIsSet(CHUNKED_INSERT_TIMEOUT) ? configuration.getInt(CHUNKED_INSERT_TIMEOUT) : 0;
+        int admission_high_watermark = configuration.intIsSet(ADMISSION_HIGH_WATERMARK) ? (int) configuration.getInt(ADMISSION_HIGH_WATERMARK) : 0;
+        int admission_low_watermark = configuration.intIsSet(ADMISSION_LOW_WATERMARK) ? (int) configuration.getInt(ADMISSION_LOW_WATERMARK) : 50;
+        long admission_smoothing = configuration.intIsSet(ADMISSION_SMOOTHING) ? configuration.getInt(ADMISSION_SMOOTHING) : 1000;
+        String server_engine = configuration.stringIsSet(SERVER_ENGINE) ? configuration.getString(SERVER_ENGINE) : ENGINE_HSHA;
+        int selector_threads = configuration.intIsSet(SELECTOR_THREADS) ? (int) configuration.getInt(SELECTOR_THREADS) : 2;
+        int accept_queue_size = configuration.intIsSet(ACCEPT_QUEUE_SIZE) ? (int) configuration.getInt(ACCEPT_QUEUE_SIZE) : 4;
+        String category_rules = configuration.stringIsSet(CATEGORY_RULES) ? configuration.getString(CATEGORY_RULES) : null;
+        int metrics_sample_interval = configuration.intIsSet(METRICS_SAMPLE_INTERVAL) ? (int) configuration.getInt(METRICS_SAMPLE_INTERVAL) : 16;
+        boolean virtual_threads = configuration.boolIsSet(VIRTUAL_THREADS) && configuration.getBoolean(VIRTUAL_THREADS);
+        int virtual_thread_max_calls = configuration.intIsSet(VIRTUAL_THREAD_MAX_CALLS) ? (int) configuration.getInt(VIRTUAL_THREAD_MAX_CALLS) : 64;
+        int listener_shards = configuration.intIsSet(LISTENER_SHARDS) ? (int) configuration.getInt(LISTENER_SHARDS) : 1;
+        int client_max_in_flight = configuration.intIsSet(CLIENT_MAX_IN_FLIGHT) ? (int) configuration.getInt(CLIENT_MAX_IN_FLIGHT) : 0;
+        long client_max_bytes_per_second = configuration.intIsSet(CLIENT_MAX_BYTES_PER_SECOND) ? configuration.getInt(CLIENT_MAX_BYTES_PER_SECOND) : 0;
+        long client_max_messages_per_second = configuration.intIsSet(CLIENT_MAX_MESSAGES_PER_SECOND) ? configuration.getInt(CLIENT_MAX_MESSAGES_PER_SECOND) : 0;
+        boolean fair_scheduling = configuration.boolIsSet(FAIR_SCHEDULING) && configuration.getBoolean(FAIR_SCHEDULING);
+        long read_buffer_budget = configuration.intIsSet(READ_BUFFER_BUDGET) ? configuration.getInt(READ_BUFFER_BUDGET) : 0;
 
         LOG.info("Starting Scribe server on port: " + port);
 
-        scribe.Processor<ScribeGELFProcessor> processor = new scribe.Processor<ScribeGELFProcessor>(
-                new ScribeGELFProcessor(
-                        graylogServer,
-                        this
-                )
+        if (parallel_parse_threshold > 0) {
+            LOG.info("Parsing batches of " + parallel_parse_threshold + " or more messages on " + parse_parallelism + " threads");
+            parsePool = new ForkJoinPool(parse_parallelism);
+        }
+
+        AdmissionController admissionController = null;
+
+        if (admission_high_watermark > 0) {
+            if (admission_low_watermark >= admission_high_watermark) {
+                // Only the high watermark was lowered below the default low one
+                admission_low_watermark = admission_high_watermark / 2;
+            }
+
+            LOG.info("Rejecting batches early once the process buffer is " + admission_high_watermark + "% full, until it drains to " + admission_low_watermark + "%");
+            admissionController = new AdmissionController(
+                    graylogServer.getProcessBuffer(),
+                    admission_low_watermark / 100.0,
+                    admission_high_watermark / 100.0,
+                    admission_smoothing
+            );
+        }
+
+        CategoryRules categoryRules = null;
+
+        if (category_rules != null && category_rules.trim().length() > 0) {
+            LOG.info("Applying category rules: " + category_rules);
+            categoryRules = new CategoryRules(category_rules);
+        }
+
+        ClientLimits clientLimits = null;
+
+        if (client_max_in_flight > 0 || client_max_bytes_per_second > 0 || client_max_messages_per_second > 0 || fair_scheduling) {
+            LOG.info("Limiting each client address to " + client_max_in_flight + " batches at once, " + client_max_bytes_per_second + " bytes and " + client_max_messages_per_second + " messages per second (0 is unlimited)");
+            clientLimits = new ClientLimits(client_max_in_flight, client_max_bytes_per_second, client_max_messages_per_second);
+        }
+
+        if (fair_scheduling) {
+            LOG.info("Scheduling batches across clients by deficit round robin");
+        }
+
+        ScribeGELFProcessor handler = new ScribeGELFProcessor(
+                graylogServer,
+                this,
+                parsePool,
+                parallel_parse_threshold,
+                chunked_insert_timeout,
+                admissionController,
+                categoryRules,
+                metrics_sample_interval,
+                clientLimits
         );
 
+        if (virtual_threads && !VirtualThreadExecutor.isAvailable()) {
+            LOG.warn("Virtual threads need Java 21 or later, using a pool of " + worker_threads + " worker threads instead");
+            virtual_threads = false;
+
+        } else if (virtual_threads) {
+            LOG.info("Running each Log() call on a virtual thread, up to " + virtual_thread_max_calls + " at once");
+
+        }
+
+        if (listener_shards > 1 && !ReusePortServerSocket.isAvailable()) {
+            LOG.warn("SO_REUSEPORT needs Java 9 or later on Linux or BSD, listening on a single socket instead of " + listener_shards);
+            listener_shards = 1;
+
+        } else if (listener_shards > 1) {
+            LOG.info("Listening on " + listener_shards + " SO_REUSEPORT sockets, each with its own selector and workers");
+
+        }
+
+        TProcessor processor;
+
+        if (configuration.boolIsSet(RAW_PROCESSOR) && configuration.getBoolean(RAW_PROCESSOR)) {
+            LOG.info("Parsing GELF straight from the received Thrift frames");
+            processor = new ScribeGELFRawProcessor(handler, thrift_length);
+
+        } else {
+            processor = new scribe.Processor<ScribeGELFProcessor>(handler);
+
+        }
+
+        InetSocketAddress address = new InetSocketAddress(host, port);
+
         try {
-            socket = new TNonblockingServerSocket(new InetSocketAddress(host, port));
+            if (listener_shards > 1) {
+                for (int i = 0; i < listener_shards; i++) {
+                    sockets.add(new ReusePortServerSocket(address));
+                }
+
+            } else {
+                sockets.add(new TNonblockingServerSocket(address));
+
+            }
 
         } catch (TTransportException e) {
+            closeSockets();
             throw new RuntimeException(String.format("Unable to create scribe server socket to %s:%s", host, port), e);
 
         }
@@ -79,28 +217,110 @@ public class ScribeGELFInput extends MessageInput {
         outTransportFactory = new TFramedTransport.Factory(thrift_length);
         LOG.info("Using TFastFramedTransport with a max frame size of " + String.valueOf(thrift_length) + " bytes");
 
-        // ThreadPool Server
-        THsHaServer.Args args = new THsHaServer.Args(socket)
-                .inputTransportFactory(inTransportFactory)
-                .outputTransportFactory(outTransportFactory)
-                .inputProtocolFactory(tProtocolFactory)
-                .outputProtocolFactory(tProtocolFactory)
-                .processor(processor)
-                .workerThreads(worker_threads);
-
-        server = new THsHaServer(args);
-        server.serve();
+        if (ENGINE_THREADED_SELECTOR.equals(server_engine)) {
+            LOG.info("Using TThreadedSelectorServer with " + selector_threads + " selector threads");
+        }
+
+        // Each shard's server accounts for its own read buffers, the budget is split between them
+        long shard_read_buffer_budget = Long.MAX_VALUE;
+
+        if (read_buffer_budget > 0) {
+            shard_read_buffer_budget = read_buffer_budget / sockets.size();
+
+            if (shard_read_buffer_budget < thrift_length) {
+                LOG.warn("Read buffer budget of " + read_buffer_budget + " bytes split over " + sockets.size() + " listener shards can't hold a frame of " + thrift_length + " bytes, raising it to one frame per shard");
+                shard_read_buffer_budget = thrift_length;
+            }
+
+            LOG.info("Reading at most " + shard_read_buffer_budget * sockets.size() + " bytes of frames at once, further frames wait in the socket buffers");
+        }
+
+        // Every shard shares the handler, so its metrics cover the whole input
+        for (int i = 0; i < sockets.size(); i++) {
+            TNonblockingServerTransport socket = sockets.get(i);
+            ReadBudget readBudget = null;
+
+            if (read_buffer_budget > 0) {
+                readBudget = new ReadBudget();
+                socket = readBudget.listenOn(socket);
+            }
+
+            String workerName = sockets.size() > 1 ? "scribe-worker-" + i : "scribe-worker";
+            ExecutorService workerExecutor = virtual_threads ? new VirtualThreadExecutor(workerName, virtual_thread_max_calls) : null;
+
+            if (fair_scheduling) {
+                workerExecutor = new FairScheduler(workerExecutor != null ? workerExecutor : Executors.newFixedThreadPool(worker_threads));
+            }
+
+            if (ENGINE_THREADED_SELECTOR.equals(server_engine)) {
+                // Accepting on one thread, reading and writing on a pool of selector threads
+                TThreadedSelectorServer.Args args = new TThreadedSelectorServer.Args(socket)
+                        .inputTransportFactory(inTransportFactory)
+                        .outputTransportFactory(outTransportFactory)
+                        .inputProtocolFactory(tProtocolFactory)
+                        .outputProtocolFactory(tProtocolFactory)
+                        .processor(processor)
+                        .workerThreads(worker_threads)
+                        .selectorThreads(selector_threads)
+                        .acceptQueueSizePerThread(accept_queue_size);
+
+                args.maxReadBufferBytes = shard_read_buffer_budget;
+
+                if (workerExecutor != null) {
+                    args.executorService(workerExecutor);
+                }
+
+                servers.add(clientLimits != null || readBudget != null ? new LimitedThreadedSelectorServer(args, clientLimits, readBudget) : new TThreadedSelectorServer(args));
+
+            } else {
+                // ThreadPool Server
+                THsHaServer.Args args = new THsHaServer.Args(socket)
+                        .inputTransportFactory(inTransportFactory)
+                        .outputTransportFactory(outTransportFactory)
+                        .inputProtocolFactory(tProtocolFactory)
+                        .outputProtocolFactory(tProtocolFactory)
+                        .processor(processor)
+                        .workerThreads(worker_threads);
+
+                args.maxReadBufferBytes = shard_read_buffer_budget;
+
+                if (workerExecutor != null) {
+                    args.executorService(workerExecutor);
+                }
+
+                servers.add(clientLimits != null || readBudget != null ? new LimitedHsHaServer(args, clientLimits, readBudget) : new THsHaServer(args));
+
+            }
+        }
+
+        // The first shard is served on the launching thread like a single socket, the others on threads of their own
+        for (int i = 1; i < servers.size(); i++) {
+            final TServer shard = servers.get(i);
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    shard.serve();
+                }
+            }, "scribe-shard-" + i);
+
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        servers.get(0).serve();
     }
 
     @Override
     public void stop() {
-        if (socket != null) {
-            socket.close();
-        }
+        closeSockets();
 
-        if (server != null) {
+        for (TServer server : servers) {
             server.stop();
         }
+
+        if (parsePool != null) {
+            parsePool.shutdown();
+        }
     }
 
     @Override
@@ -140,6 +360,163 @@ public class ScribeGELFInput extends MessageInput {
                 ConfigurationField.Optional.OPTIONAL)
         );
 
+        cr.addField(new NumberField(
+                PARALLEL_PARSE_THRESHOLD,
+                "Parallel parse threshold",
+                0,
+                "Scribe batches with at least this many messages are parsed in parallel, keeping their order. 0 parses every batch on its worker thread.",
+                ConfigurationField.Optional.OPTIONAL)
+        );
+
+        cr.addField(new NumberField(
+                PARSE_PARALLELISM,
+                "Parse parallelism",
+                Runtime.getRuntime().availableProcessors(),
+                "Number of threads shared by all workers for parsing large batches in parallel.",
+                ConfigurationField.Optional.OPTIONAL)
+        );
+
+        cr.addField(new NumberField(
+                CHUNKED_INSERT_TIMEOUT,
+                "Chunked insert timeout",
+                0,
+                "Milliseconds to wait for room for each chunk of a batch larger than the process buffer. If the first chunk doesn't fit in time the client is asked to retry the batch, if a later one doesn't the rest of the batch is dropped and counted as abandonedMessages. 0 rejects such batches.",
+                ConfigurationField.Optional.OPTIONAL)
+        );
+
+        cr.addField(new NumberField(
+                ADMISSION_HIGH_WATERMARK,
+                "Early rejection high watermark",
+                0,
+                "Process buffer usage, in percent, at which batches start being randomly rejected with TRY_LATER before the buffer is full. 0 only rejects batches that don't fit.",
+                ConfigurationField.Optional.OPTIONAL)
+        );
+
+        cr.addField(new NumberField(
+                ADMISSION_LOW_WATERMARK,
+                "Early rejection low watermark",
+                50,
+                "Process buffer usage, in percent, below which every batch is accepted again after early rejection started.",
+                ConfigurationField.Optional.OPTIONAL)
+        );
+
+        cr.addField(new NumberField(
+                ADMISSION_SMOOTHING,
+                "Early rejection smoothing",
+                1000,
+                "Time constant in milliseconds of the moving average of process buffer usage used for early rejection.",
+                ConfigurationField.Optional.OPTIONAL)
+        );
+
+        cr.addField(new TextField(
+                SERVER_ENGINE,
+                "Scribe server engine",
+                ENGINE_HSHA,
+                "Thrift server to receive Scribe connections with. " + ENGINE_HSHA + " reads every connection on a single selector thread, " + ENGINE_THREADED_SELECTOR + " spreads connections over several selector threads for large numbers of relays.",
+                ConfigurationField.Optional.OPTIONAL
+        ));
+
+        cr.addField(new NumberField(
+                SELECTOR_THREADS,
+                "Selector threads",
+                2,
+                "Number of selector threads reading connections, " + ENGINE_THREADED_SELECTOR + " engine only.",
+                ConfigurationField.Optional.OPTIONAL)
+        );
+
+        cr.addField(new NumberField(
+                ACCEPT_QUEUE_SIZE,
+                "Accept queue size",
+                4,
+                "Number of accepted connections that can wait for each selector thread to register them, " + ENGINE_THREADED_SELECTOR + " engine only.",
+                ConfigurationField.Optional.OPTIONAL)
+        );
+
+        cr.addField(new BooleanField(
+                RAW_PROCESSOR,
+                "Parse from received bytes",
+                false,
+                "Parse GELF messages straight from the received Thrift frames instead of decoding them into Strings first. Required to read GZIP, ZLIB or LZ4 compressed messages.")
+        );
+
+        cr.addField(new TextField(
+                CATEGORY_RULES,
+                "Category rules",
+                "",
+                "Treatment of messages by Scribe category, applied before parsing, as category=action[,action] separated by semicolons. A category ending in * matches by prefix. Actions are drop, sample:rate (0-1), route:tag (adds a scribe_route field) and raw (the whole message as text, not GELF). For example debug.*=drop;noisy=sample:0.1;payments.*=route:payments",
+                ConfigurationField.Optional.OPTIONAL
+        ));
+
+        cr.addField(new BooleanField(
+                VIRTUAL_THREADS,
+                "Virtual thread workers",
+                false,
+                "Run each Log() call on a virtual thread of its own instead of the worker threadpool, so calls blocked on parsing or a full process buffer don't stall the rest. Needs Java 21 or later, older JVMs keep using the worker threadpool.")
+        );
+
+        cr.addField(new NumberField(
+                VIRTUAL_THREAD_MAX_CALLS,
+                "Virtual thread concurrent calls",
+                64,
+                "Maximum number of Log() calls handled at once on virtual threads, further calls wait for one to finish.",
+                ConfigurationField.Optional.OPTIONAL)
+        );
+
+        cr.addField(new NumberField(
+                LISTENER_SHARDS,
+                "Listener shards",
+                1,
+                "Number of sockets listening on the port with SO_REUSEPORT, each with its own selector and worker threads, so the kernel spreads connections over them. Needs Java 9 or later on Linux or BSD, otherwise a single socket is used.",
+                ConfigurationField.Optional.OPTIONAL)
+        );
+
+        cr.addField(new NumberField(
+                READ_BUFFER_BUDGET,
+                "Read buffer budget",
+                0,
+                "Maximum bytes of received frames held in memory at once across all connections. Once reached, connections aren't read until handled frames free some up, and clients are held back by TCP flow control. At least the max message length, 0 is unlimited.",
+                ConfigurationField.Optional.OPTIONAL)
+        );
+
+        cr.addField(new NumberField(
+                CLIENT_MAX_IN_FLIGHT,
+                "Client batches in flight",
+                0,
+                "Maximum number of batches from one client address handled at once, further batches are answered with TRY_LATER. 0 is unlimited.",
+                ConfigurationField.Optional.OPTIONAL)
+        );
+
+        cr.addField(new NumberField(
+                CLIENT_MAX_BYTES_PER_SECOND,
+                "Client bytes per second",
+                0,
+                "Message bytes one client address may send per second, batches beyond it are answered with TRY_LATER. 0 is unlimited.",
+                ConfigurationField.Optional.OPTIONAL)
+        );
+
+        cr.addField(new NumberField(
+                CLIENT_MAX_MESSAGES_PER_SECOND,
+                "Client messages per second",
+                0,
+                "Messages one client address may send per second, batches beyond it are answered with TRY_LATER. 0 is unlimited.",
+                ConfigurationField.Optional.OPTIONAL)
+        );
+
+        cr.addField(new BooleanField(
+                FAIR_SCHEDULING,
+                "Fair scheduling",
+                false,
+                "Hand batches waiting for a worker out by deficit round robin over client addresses instead of in arrival order, so clients sending more or larger batches don't hold up the others.")
+        );
+
+        cr.addField(new NumberField(
+                METRICS_SAMPLE_INTERVAL,
+                "Stage metrics sample interval",
+                16,
+                "Measure the batch size, bytes received and the decode, parse, field, insert and batch latencies of one in this many Log() calls. 1 measures every call, 0 none.",
+                ConfigurationField.Optional.OPTIONAL)
+        );
+
         return cr;
     }
 
@@ -167,6 +544,88 @@ public class ScribeGELFInput extends MessageInput {
         return config.stringIsSet(HOST)
                 && config.intIsSet(PORT) && config.getInt(PORT) > 0
                 && config.intIsSet(MAX_LENGTH) && config.getInt(MAX_LENGTH) > 0
-                && config.intIsSet(WORKER_THREADS) && config.getInt(WORKER_THREADS) > 0;
+                && config.intIsSet(WORKER_THREADS) && config.getInt(WORKER_THREADS) > 0
+                && (!config.intIsSet(PARALLEL_PARSE_THRESHOLD) || config.getInt(PARALLEL_PARSE_THRESHOLD) >= 0)
+                && (!config.intIsSet(PARSE_PARALLELISM) || config.getInt(PARSE_PARALLELISM) >= 0)
+                && (!config.intIsSet(CHUNKED_INSERT_TIMEOUT) || config.getInt(CHUNKED_INSERT_TIMEOUT) >= 0)
+                && (!config.intIsSet(ADMISSION_HIGH_WATERMARK) || config.getInt(ADMISSION_HIGH_WATERMARK) >= 0 && config.getInt(ADMISSION_HIGH_WATERMARK) <= 100)
+                && (!config.intIsSet(ADMISSION_LOW_WATERMARK) || config.getInt(ADMISSION_LOW_WATERMARK) >= 0 && config.getInt(ADMISSION_LOW_WATERMARK) <= 100)
+                && (!config.intIsSet(ADMISSION_HIGH_WATERMARK) || !config.intIsSet(ADMISSION_LOW_WATERMARK) || config.getInt(ADMISSION_HIGH_WATERMARK) == 0
+                        || config.getInt(ADMISSION_LOW_WATERMARK) < config.getInt(ADMISSION_HIGH_WATERMARK))
+                && (!config.intIsSet(ADMISSION_SMOOTHING) || config.getInt(ADMISSION_SMOOTHING) > 0)
+                && (!config.stringIsSet(SERVER_ENGINE) || ENGINE_HSHA.equals(config.getString(SERVER_ENGINE)) || ENGINE_THREADED_SELECTOR.equals(config.getString(SERVER_ENGINE)))
+                && (!config.intIsSet(SELECTOR_THREADS) || config.getInt(SELECTOR_THREADS) > 0)
+                && (!config.intIsSet(ACCEPT_QUEUE_SIZE) || config.getInt(ACCEPT_QUEUE_SIZE) > 0)
+                && (!config.stringIsSet(CATEGORY_RULES) || isValidCategoryRules(config.getString(CATEGORY_RULES)))
+                && (!config.intIsSet(METRICS_SAMPLE_INTERVAL) || config.getInt(METRICS_SAMPLE_INTERVAL) >= 0)
+                && (!config.intIsSet(VIRTUAL_THREAD_MAX_CALLS) || config.getInt(VIRTUAL_THREAD_MAX_CALLS) > 0)
+                && (!config.intIsSet(LISTENER_SHARDS) || config.getInt(LISTENER_SHARDS) > 0)
+                && (!config.intIsSet(CLIENT_MAX_IN_FLIGHT) || config.getInt(CLIENT_MAX_IN_FLIGHT) >= 0)
+                && (!config.intIsSet(CLIENT_MAX_BYTES_PER_SECOND) || config.getInt(CLIENT_MAX_BYTES_PER_SECOND) >= 0)
+                && (!config.intIsSet(CLIENT_MAX_MESSAGES_PER_SECOND) || config.getInt(CLIENT_MAX_MESSAGES_PER_SECOND) >= 0)
+                && (!config.intIsSet(READ_BUFFER_BUDGET) || config.getInt(READ_BUFFER_BUDGET) == 0 || config.getInt(READ_BUFFER_BUDGET) >= config.getInt(MAX_LENGTH));
+    }
+
+    private void closeSockets() {
+        for (TNonblockingServerTransport socket : sockets) {
+            socket.close();
+        }
+    }
+
+    private static boolean isValidCategoryRules(String rules) {
+        try {
+            new CategoryRules(rules);
+            return true;
+
+        } catch (IllegalArgumentException e) {
+            LOG.error("Invalid " + CATEGORY_RULES + ": " + e.getMessage());
+            return false;
+
+        }
+    }
+
+    /**
+     * Makes the client of each received frame known to the processor for {@link ClientLimits}, and resumes connections
+     * waiting for {@link ReadBudget} once a frame is handled. Either may be null.
+     */
+    private static class LimitedHsHaServer extends THsHaServer {
+        private final ClientLimits clientLimits;
+        private final ReadBudget readBudget;
+
+        LimitedHsHaServer(Args args, ClientLimits clientLimits, ReadBudget readBudget) {
+            super(args);
+            this.clientLimits = clientLimits;
+            this.readBudget = readBudget;
+        }
+
+        @Override
+        protected Runnable getRunnable(FrameBuffer frameBuffer) {
+            return limit(frameBuffer.trans_, super.getRunnable(frameBuffer), clientLimits, readBudget);
+        }
+    }
+
+    private static class LimitedThreadedSelectorServer extends TThreadedSelectorServer {
+        private final ClientLimits clientLimits;
+        private final ReadBudget readBudget;
+
+        LimitedThreadedSelectorServer(Args args, ClientLimits clientLimits, ReadBudget readBudget) {
+            super(args);
+            this.clientLimits = clientLimits;
+            this.readBudget = readBudget;
+        }
+
+        @Override
+        protected Runnable getRunnable(FrameBuffer frameBuffer) {
+            return limit(frameBuffer.trans_, super.getRunnable(frameBuffer), clientLimits, readBudget);
+        }
+    }
+
+    private static Runnable limit(TNonblockingTransport client, Runnable invocation, ClientLimits clientLimits, ReadBudget readBudget) {
+        if (readBudget != null) {
+            invocation = readBudget.releasing(invocation);
+        }
+
+        // Outermost, FairScheduler queues calls by their client
+        return clientLimits != null ? clientLimits.call(client, invocation) : invocation;
     }
 }
@@ -1,10 +1,10 @@
 import com.codahale.metrics.Meter;
 import com.codahale.metrics.MetricRegistry;
 import org.apache.thrift.TException;
-import org.drools.core.util.ArrayUtils;
 import org.graylog2.inputs.gelf.gelf.GELFParser;
 import org.graylog2.plugin.InputHost;
 import org.graylog2.plugin.Message;
+import org.graylog2.plugin.Tools;
 import org.graylog2.plugin.buffers.BatchBuffer;
 import org.graylog2.plugin.buffers.BufferOutOfCapacityException;
 import org.graylog2.plugin.buffers.ProcessingDisabledException;
@@ -15,7 +15,12 @@ import scribe.thrift.LogEntry;
 import scribe.thrift.ResultCode;
 import scribe.thrift.scribe;
 
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 import static com.codahale.metrics.MetricRegistry.name;
 
@@ -25,6 +30,11 @@ import static com.codahale.metrics.MetricRegistry.name;
  */
 public class ScribeGELFProcessor extends GELFParser implements scribe.Iface {
     private static final Logger LOG = LoggerFactory.getLogger(ScribeGELFInput.class);
+    private static final long CHUNK_RETRY_INTERVAL = 10;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    // Don't let one huge batch pin a huge scratch array to every worker thread
+    private static final int MAX_RETAINED_SCRATCH = 64 * 1024;
+    private static final int MAX_POOLED = 256;
 
     private final MessageInput messageInput;
     private final BatchBuffer processBuffer;
@@ -32,10 +42,70 @@ public class ScribeGELFProcessor extends GELFParser implements scribe.Iface {
     private final Meter incompleteMessages;
     private final Meter deferredMessages;
     private final Meter processedMessages;
+    private final Meter rejectedEarlyMessages;
+    private final Meter compressedMessages;
+    private final Meter filteredMessages;
+    private final Meter throttledMessages;
+    private final Meter abandonedMessages;
+    private final ForkJoinPool parsePool;
+    private final int parallelParseThreshold;
+    private final long chunkedInsertTimeout;
+    private final AdmissionController admissionController;
+    private final CategoryRules categoryRules;
+    private final ClientLimits clientLimits;
+    private final StageMetrics stageMetrics;
+    private final GELFBytesParser bytesParser = new GELFBytesParser();
+
+    // Parsing runs on the worker and parse pool threads, each compressed message borrows Inflaters from here
+    private final ObjectPool<GELFDecompressor> decompressors = new ObjectPool<GELFDecompressor>(MAX_POOLED) {
+        @Override
+        protected GELFDecompressor create() {
+            return new GELFDecompressor();
+        }
+
+        @Override
+        protected void discard(GELFDecompressor decompressor) {
+            decompressor.close();
+        }
+    };
+
+    // Each call parses its batch into a scratch array reused by later calls
+    private final ObjectPool<Scratch> scratches = new ObjectPool<Scratch>(MAX_POOLED) {
+        @Override
+        protected Scratch create() {
+            return new Scratch();
+        }
+    };
+
+    private volatile boolean compressedWithoutRawProcessorLogged;
 
     public ScribeGELFProcessor(InputHost server, MessageInput messageInput) {
+        this(server, messageInput, null, 0, 0, null, null, 0, null);
+    }
+
+    /**
+     * @param parsePool              pool that batches of at least parallelParseThreshold entries are parsed on, or
+     *                               null to always parse on the calling worker thread
+     * @param parallelParseThreshold smallest batch that is split across the parse pool
+     * @param chunkedInsertTimeout   time in milliseconds to wait for room for each chunk of a batch larger than the
+     *                               process buffer, or 0 to reject such batches
+     * @param admissionController    decides whether to take batches while the process buffer still has room, or null
+     *                               to take them for as long as they fit
+     * @param categoryRules          how messages are treated by category, or null to parse every one as GELF
+     * @param metricsSampleInterval  measure the stages of one in this many Log() calls, or 0 to measure none
+     * @param clientLimits           limits on what each remote address may send, or null for none
+     */
+    public ScribeGELFProcessor(InputHost server, MessageInput messageInput, ForkJoinPool parsePool, int parallelParseThreshold, long chunkedInsertTimeout,
+                               AdmissionController admissionController, CategoryRules categoryRules, int metricsSampleInterval,
+                               ClientLimits clientLimits) {
         super(server);
         this.messageInput = messageInput;
+        this.parsePool = parsePool;
+        this.parallelParseThreshold = parallelParseThreshold;
+        this.chunkedInsertTimeout = chunkedInsertTimeout;
+        this.admissionController = admissionController;
+        this.categoryRules = categoryRules;
+        this.clientLimits = clientLimits;
         this.processBuffer = server.getProcessBuffer();
 
         MetricRegistry metrics = server.metrics();
@@ -44,45 +114,162 @@ public class ScribeGELFProcessor extends GELFParser implements scribe.Iface {
         this.incompleteMessages = metrics.meter(name(metricName, "incompleteMessages"));
         this.deferredMessages = metrics.meter(name(metricName, "deferredMessages"));
         this.processedMessages = metrics.meter(name(metricName, "processedMessages"));
+        this.rejectedEarlyMessages = metrics.meter(name(metricName, "rejectedEarlyMessages"));
+        this.compressedMessages = metrics.meter(name(metricName, "compressedMessages"));
+        this.filteredMessages = metrics.meter(name(metricName, "filteredMessages"));
+        this.throttledMessages = metrics.meter(name(metricName, "throttledMessages"));
+        this.abandonedMessages = metrics.meter(name(metricName, "abandonedMessages"));
+        this.stageMetrics = new StageMetrics(metrics, metricName, metricsSampleInterval);
+
+        if (admissionController != null) {
+            admissionController.registerMetrics(metrics, metricName);
+        }
+
+        if (clientLimits != null) {
+            clientLimits.registerMetrics(metrics, metricName);
+        }
     }
 
     @Override
     public ResultCode Log(List<LogEntry> messages) throws TException {
+        return log(new LogEntryList(messages), stageMetrics.sample());
+    }
+
+    /**
+     * Log() for a batch read by {@link ScribeGELFRawProcessor}, parsing the messages straight from their bytes.
+     *
+     * @param sampled whether the raw processor measured decoding the batch, and its handling should be measured too
+     */
+    ResultCode log(LogEntrySlices messages, boolean sampled) {
+        return log(new SliceEntries(messages), sampled);
+    }
+
+    StageMetrics stageMetrics() {
+        return stageMetrics;
+    }
+
+    private ResultCode log(Entries messages, boolean sampled) {
+        if (clientLimits == null) {
+            return measure(messages, sampled);
+        }
+
+        if (!clientLimits.acquire(messages.size(), messages.bytes())) {
+            LOG.debug("Client over its limits, returning TRY_LATER. Incoming message count: " + messages.size());
+            throttledMessages.mark(messages.size());
+            deferredMessages.mark(messages.size());
+            return ResultCode.TRY_LATER;
+        }
+
+        try {
+            return measure(messages, sampled);
+
+        } finally {
+            clientLimits.release();
+
+        }
+    }
+
+    private ResultCode measure(Entries messages, boolean sampled) {
+        if (!sampled) {
+            return handle(messages, false);
+        }
+
+        long start = System.nanoTime();
+
+        try {
+            stageMetrics.batch(messages.size());
+            return handle(messages, true);
+
+        } finally {
+            stageMetrics.handled(System.nanoTime() - start);
+
+        }
+    }
+
+    private ResultCode handle(Entries messages, boolean sampled) {
         incomingMessages.mark(messages.size());
 
-        if (processBuffer.getBufferSize() < messages.size()) {
+        boolean chunked = processBuffer.getBufferSize() < messages.size();
+
+        if (chunked && chunkedInsertTimeout <= 0) {
             // Could also try processing the batch in chunks here, but better that the Scribe and downstream publishers are configured correctly to split messages into manageable chunks so the Scribe message can be atomically published to the RingBuffer
-            throw new IllegalStateException("Process buffer too small (" + processBuffer.getBufferSize() + ") for bulk insert of " + messages.size() + " messages received from Scribe. Increase process buffer size or decrease Scribe publisher max batch sizes and configured max_size on buffer file storage.");
+            throw new IllegalStateException("Process buffer too small (" + processBuffer.getBufferSize() + ") for bulk insert of " + messages.size() + " messages received from Scribe. Increase process buffer size or decrease Scribe publisher max batch sizes and configured max_size on buffer file storage, or enable chunked inserts.");
+        }
+
+        if (admissionController != null && !admissionController.admit()) {
+            LOG.debug("Process buffer filling up, returning TRY_LATER early. Buffer capacity: " + processBuffer.getUsage() + ", Incoming message count: " + messages.size());
+            rejectedEarlyMessages.mark(messages.size());
+            deferredMessages.mark(messages.size());
+            return ResultCode.TRY_LATER;
         }
 
-        if (!processBuffer.hasCapacity(messages.size())) {
+        if (!chunked && !processBuffer.hasCapacity(messages.size())) {
             LOG.warn("Process buffer over capacity, returning TRY_LATER. Buffer capacity: " + processBuffer.getUsage() + ", Incoming message count: " + messages.size());
             deferredMessages.mark(messages.size());
             return ResultCode.TRY_LATER;
         }
 
-        Message[] translatedMessages = new Message[messages.size()];
-        int i = 0;
+        Scratch scratch = scratches.take();
+        Message[] parsedMessages = scratch.get(messages.size());
 
-        for (LogEntry message : messages) {
-            Message lm = parse(message.getMessage(), messageInput);
+        try {
+            return insert(messages, parsedMessages, parse(messages, parsedMessages, sampled), chunked, sampled);
 
-            if (!lm.isComplete()) {
-                incompleteMessages.mark();
-                LOG.debug("Skipping incomplete message: " + message);
-                continue;
-            }
+        } finally {
+            scratch.clear(messages.size());
+            scratches.release(scratch);
 
-            lm.addField("scribe_category", message.getCategory());
+        }
+    }
+
+    /**
+     * Parses the batch into the first entries of parsedMessages, in order.
+     *
+     * @return the number of complete messages, which are moved to the front of parsedMessages
+     */
+    private int parse(Entries messages, Message[] parsedMessages, boolean sampled) {
+        int complete;
+
+        if (parsePool != null && messages.size() >= parallelParseThreshold) {
+            ParseTask task = new ParseTask(messages, parsedMessages, 0, messages.size(), leafSize(messages.size()), sampled);
+            parsePool.invoke(task);
+            complete = task.complete;
+
+        } else {
+            complete = parse(messages, parsedMessages, 0, messages.size(), sampled);
 
-            translatedMessages[i++] = lm;
         }
 
-        if (i < translatedMessages.length) {
-            // Resize array due to incomplete messages
-            translatedMessages = (Message[]) ArrayUtils.copyOf(translatedMessages, i, Message.class);
+        if (complete < messages.size()) {
+            // Close up the gaps left by incomplete messages, which were kept to preserve the batch order
+            int i = 0;
+
+            for (int j = 0; j < messages.size(); j++) {
+                if (parsedMessages[j] != null) {
+                    parsedMessages[i++] = parsedMessages[j];
+                }
+            }
+
+            Arrays.fill(parsedMessages, complete, messages.size(), null);
         }
 
+        return complete;
+    }
+
+    /**
+     * Inserts the first complete entries of parsedMessages into the process buffer.
+     */
+    private ResultCode insert(Entries messages, Message[] parsedMessages, int complete, boolean chunked, boolean sampled) {
+        if (chunked) {
+            return insertChunked(parsedMessages, complete);
+        }
+
+        // The process buffer takes whole arrays, so this is the one array allocated per call
+        Message[] translatedMessages = new Message[complete];
+        System.arraycopy(parsedMessages, 0, translatedMessages, 0, complete);
+
+        long insertStart = sampled ? System.nanoTime() : 0;
+
         try {
             processBuffer.insertFailFast(translatedMessages, messageInput);
             processedMessages.mark(translatedMessages.length);
@@ -98,6 +285,400 @@ public class ScribeGELFProcessor extends GELFParser implements scribe.Iface {
             deferredMessages.mark(translatedMessages.length);
             return ResultCode.TRY_LATER;
 
+        } finally {
+            if (sampled) {
+                stageMetrics.inserted(System.nanoTime() - insertStart);
+            }
+
+        }
+    }
+
+    /**
+     * Inserts a batch that can't fit the process buffer in one go as a sequence of smaller chunks. The first chunk waits
+     * for room up to the chunked insert timeout, and if the deadline passes TRY_LATER is returned with nothing inserted.
+     * Once the first chunk is in, the client must not send the batch again, so OK is returned even if a later chunk
+     * finds no room within the timeout, or the worker is interrupted, and the rest of the batch is dropped.
+     */
+    private ResultCode insertChunked(Message[] translatedMessages, int length) {
+        // A quarter of the buffer rather than all of it, so a chunk fits while other inputs keep publishing
+        int chunkSize = Math.max(1, processBuffer.getBufferSize() / 4);
+        // Restarted after every chunk, each gets the full timeout to find room
+        long deadline = System.currentTimeMillis() + chunkedInsertTimeout;
+        boolean interrupted = false;
+        int inserted = 0;
+
+        try {
+            while (inserted < length) {
+                int count = Math.min(chunkSize, length - inserted);
+                Message[] chunk = new Message[count];
+                System.arraycopy(translatedMessages, inserted, chunk, 0, count);
+
+                while (true) {
+                    try {
+                        if (processBuffer.hasCapacity(count)) {
+                            processBuffer.insertFailFast(chunk, messageInput);
+                            processedMessages.mark(count);
+                            inserted += count;
+                            deadline = System.currentTimeMillis() + chunkedInsertTimeout;
+                            break;
+                        }
+
+                    } catch (BufferOutOfCapacityException e) {
+                        // Another input took the room first, wait for more below
+
+                    } catch (ProcessingDisabledException e) {
+                        if (inserted == 0) {
+                            LOG.warn("Processing disabled, returning TRY_LATER for " + length + " messages to insert in chunks. Buffer capacity: " + processBuffer.getUsage());
+                            deferredMessages.mark(length);
+                            return ResultCode.TRY_LATER;
+                        }
+
+                        // Part of the batch is in already, wait for processing to resume below
+
+                    }
+
+                    if (interrupted || System.currentTimeMillis() >= deadline) {
+                        if (inserted == 0) {
+                            LOG.warn("Process buffer over capacity, returning TRY_LATER for " + length + " messages to insert in chunks. Buffer capacity: " + processBuffer.getUsage());
+                            deferredMessages.mark(length);
+                            return ResultCode.TRY_LATER;
+                        }
+
+                        // Retrying the batch would duplicate the messages already inserted, so the rest are lost
+                        LOG.warn((interrupted ? "Interrupted" : "No room in the process buffer for " + chunkedInsertTimeout + "ms") + ", dropping the last " + (length - inserted) + " of " + length + " messages inserted in chunks. Buffer capacity: " + processBuffer.getUsage());
+                        abandonedMessages.mark(length - inserted);
+                        return ResultCode.OK;
+                    }
+
+                    try {
+                        Thread.sleep(CHUNK_RETRY_INTERVAL);
+
+                    } catch (InterruptedException e) {
+                        // Gives up on the rest of the batch, the flag is restored below
+                        interrupted = true;
+
+                    }
+                }
+            }
+
+            return ResultCode.OK;
+
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+
+        }
+    }
+
+    /**
+     * Parses entries [from, to) into the same positions of translatedMessages, leaving incomplete messages null.
+     * Entries that can't be parsed at all, such as corrupt compressed messages, count as incomplete. Entries dropped by
+     * their category's rule are left null too, without being parsed.
+     *
+     * @param sampled whether to measure parsing and adding the fields of each message
+     * @return the number of complete messages
+     */
+    private int parse(Entries messages, Message[] translatedMessages, int from, int to, boolean sampled) {
+        int complete = 0;
+
+        for (int i = from; i < to; i++) {
+            long parseStart = sampled ? System.nanoTime() : 0;
+            String category = messages.getCategory(i);
+            CategoryRules.Rule rule = categoryRules == null ? null : categoryRules.get(category);
+
+            if (rule != null && !rule.keep()) {
+                filteredMessages.mark();
+                continue;
+            }
+
+            Message lm = rule != null && rule.isRaw() ? parseRaw(messages.getText(i), category) : messages.parse(i);
+
+            if (lm == null || !lm.isComplete()) {
+                incompleteMessages.mark();
+
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("Skipping incomplete message: " + messages.getEntry(i));
+                }
+                continue;
+            }
+
+            long fieldStart = sampled ? System.nanoTime() : 0;
+
+            lm.addField("scribe_category", category);
+
+            if (rule != null && rule.getRoute() != null) {
+                lm.addField("scribe_route", rule.getRoute());
+            }
+
+            if (sampled) {
+                stageMetrics.parsed(fieldStart - parseStart, System.nanoTime() - fieldStart);
+            }
+
+            translatedMessages[i] = lm;
+            complete++;
+        }
+
+        return complete;
+    }
+
+    /**
+     * Takes a whole message as the short message, for categories that don't carry GELF.
+     */
+    private Message parseRaw(String text, String category) {
+        if (text == null || text.length() == 0) {
+            return null;
+        }
+
+        return new Message(text, category, Tools.iso8601());
+    }
+
+    /**
+     * @return whether a message decoded by the generated processor can be parsed
+     */
+    private boolean isReadable(String message) {
+        if (message != null && GELFDecompressor.isCompressed(message)) {
+            // Already mangled by decoding it as a String
+            if (!compressedWithoutRawProcessorLogged) {
+                compressedWithoutRawProcessorLogged = true;
+                LOG.warn("Received compressed messages, which can only be read with scribe_raw_processor enabled. Dropping them.");
+            }
+
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Decompresses a message into the given {@link GELFDecompressor}.
+     *
+     * @return the decompressed length, or -1 if the message is corrupt
+     */
+    private int decompress(GELFDecompressor decompressor, byte[] buffer, int offset, int length) {
+        try {
+            length = decompressor.decompress(buffer, offset, length);
+
+        } catch (IOException e) {
+            LOG.debug("Skipping message that could not be decompressed", e);
+            return -1;
+
+        }
+
+        compressedMessages.mark();
+        return length;
+    }
+
+    private int leafSize(int batchSize) {
+        // A few chunks per thread so a slow chunk doesn't leave the rest of the pool idle
+        return Math.max(64, batchSize / (parsePool.getParallelism() * 4));
+    }
+
+    /**
+     * A worker thread's array to parse batches into, before the complete messages are copied into an array of their
+     * own for the process buffer.
+     */
+    private static class Scratch {
+        private Message[] messages = new Message[64];
+
+        /**
+         * @return an array of at least size entries, all null
+         */
+        Message[] get(int size) {
+            if (messages.length < size) {
+                messages = new Message[Math.max(size, messages.length * 2)];
+            }
+
+            return messages;
+        }
+
+        /**
+         * Drops the references to the first size messages.
+         */
+        void clear(int size) {
+            if (messages.length > MAX_RETAINED_SCRATCH) {
+                messages = new Message[64];
+
+            } else {
+                Arrays.fill(messages, 0, size, null);
+
+            }
+        }
+    }
+
+    private class ParseTask extends RecursiveAction {
+        private final Entries messages;
+        private final Message[] translatedMessages;
+        private final int from;
+        private final int to;
+        private final int leafSize;
+        private final boolean sampled;
+
+        private int complete;
+
+        ParseTask(Entries messages, Message[] translatedMessages, int from, int to, int leafSize, boolean sampled) {
+            this.messages = messages;
+            this.translatedMessages = translatedMessages;
+            this.from = from;
+            this.to = to;
+            this.leafSize = leafSize;
+            this.sampled = sampled;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= leafSize) {
+                complete = parse(messages, translatedMessages, from, to, sampled);
+                return;
+            }
+
+            int middle = (from + to) >>> 1;
+            ParseTask left = new ParseTask(messages, translatedMessages, from, middle, leafSize, sampled);
+            ParseTask right = new ParseTask(messages, translatedMessages, middle, to, leafSize, sampled);
+            invokeAll(left, right);
+
+            complete = left.complete + right.complete;
+        }
+    }
+
+    /**
+     * The entries of one Log() call, however they were read.
+     */
+    private interface Entries {
+        int size();
+
+        /**
+         * @return the total size of the messages
+         */
+        long bytes();
+
+        String getCategory(int index);
+
+        /**
+         * @return the parsed message, or null if it couldn't be read
+         */
+        Message parse(int index);
+
+        /**
+         * @return the message as text, as it was sent
+         */
+        String getText(int index);
+
+        LogEntry getEntry(int index);
+    }
+
+    private class LogEntryList implements Entries {
+        private final List<LogEntry> messages;
+
+        LogEntryList(List<LogEntry> messages) {
+            this.messages = messages;
+        }
+
+        @Override
+        public int size() {
+            return messages.size();
+        }
+
+        @Override
+        public long bytes() {
+            long bytes = 0;
+
+            for (LogEntry message : messages) {
+                // Characters rather than bytes, close enough for limits
+                bytes += message.getMessage() != null ? message.getMessage().length() : 0;
+            }
+
+            return bytes;
+        }
+
+        @Override
+        public String getCategory(int index) {
+            return messages.get(index).getCategory();
+        }
+
+        @Override
+        public Message parse(int index) {
+            String message = messages.get(index).getMessage();
+            return isReadable(message) ? ScribeGELFProcessor.this.parse(message, messageInput) : null;
+        }
+
+        @Override
+        public String getText(int index) {
+            return messages.get(index).getMessage();
+        }
+
+        @Override
+        public LogEntry getEntry(int index) {
+            return messages.get(index);
+        }
+    }
+
+    private class SliceEntries implements Entries {
+        private final LogEntrySlices messages;
+
+        SliceEntries(LogEntrySlices messages) {
+            this.messages = messages;
+        }
+
+        @Override
+        public int size() {
+            return messages.size();
+        }
+
+        @Override
+        public long bytes() {
+            return messages.bytes();
+        }
+
+        @Override
+        public String getCategory(int index) {
+            return messages.getCategory(index);
+        }
+
+        @Override
+        public Message parse(int index) {
+            byte[] buffer = messages.getBuffer(index);
+
+            if (buffer == null) {
+                return ScribeGELFProcessor.this.parse(messages.getMessage(index), messageInput);
+            }
+
+            int offset = messages.getOffset(index);
+            int length = messages.getLength(index);
+
+            if (!GELFDecompressor.isCompressed(buffer, offset, length)) {
+                Message lm = bytesParser.parse(buffer, offset, length);
+
+                // Anything the streaming parser doesn't handle gets the full GELFParser treatment
+                return lm != null ? lm : ScribeGELFProcessor.this.parse(messages.getMessage(index), messageInput);
+            }
+
+            GELFDecompressor decompressor = decompressors.take();
+
+            try {
+                length = decompress(decompressor, buffer, offset, length);
+
+                if (length < 0) {
+                    return null;
+                }
+
+                Message lm = bytesParser.parse(decompressor.buffer(), 0, length);
+                return lm != null ? lm : ScribeGELFProcessor.this.parse(new String(decompressor.buffer(), 0, length, UTF8), messageInput);
+
+            } finally {
+                decompressors.release(decompressor);
+
+            }
+        }
+
+        @Override
+        public String getText(int index) {
+            return messages.getMessage(index);
+        }
+
+        @Override
+        public LogEntry getEntry(int index) {
+            return messages.getEntry(index);
         }
     }
 }
@@ -0,0 +1,267 @@
+import org.apache.thrift.TApplicationException;
+import org.apache.thrift.TException;
+import org.apache.thrift.TProcessor;
+import org.apache.thrift.protocol.TField;
+import org.apache.thrift.protocol.TList;
+import org.apache.thrift.protocol.TMessage;
+import org.apache.thrift.protocol.TMessageType;
+import org.apache.thrift.protocol.TProtocol;
+import org.apache.thrift.protocol.TProtocolException;
+import org.apache.thrift.protocol.TProtocolUtil;
+import org.apache.thrift.protocol.TType;
+import org.apache.thrift.transport.TTransport;
+import scribe.thrift.scribe;
+
+import java.nio.charset.Charset;
+
+/**
+ * Replacement for the generated scribe.Processor that reads Log() calls without deserializing LogEntry objects. Each
+ * message is left as a slice of the received frame and parsed from there by {@link ScribeGELFProcessor}, so it is
+ * never decoded into a String, and categories come from a small cache instead of being decoded for every entry.
+ */
+public class ScribeGELFRawProcessor implements TProcessor {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final ScribeGELFProcessor processor;
+    private final int maxLength;
+    private final CategoryCache categories = new CategoryCache(64);
+
+    // Calls read their entries into batches reused by later calls
+    private final ObjectPool<LogEntrySlices> batches = new ObjectPool<LogEntrySlices>(256) {
+        @Override
+        protected LogEntrySlices create() {
+            return new LogEntrySlices();
+        }
+    };
+
+    /**
+     * @param maxLength Longest string accepted when the transport doesn't hold the whole frame in its buffer
+     */
+    public ScribeGELFRawProcessor(ScribeGELFProcessor processor, int maxLength) {
+        this.processor = processor;
+        this.maxLength = maxLength;
+    }
+
+    @Override
+    public boolean process(TProtocol in, TProtocol out) throws TException {
+        TMessage message = in.readMessageBegin();
+
+        if (!"Log".equals(message.name)) {
+            TProtocolUtil.skip(in, TType.STRUCT);
+            in.readMessageEnd();
+            writeException(out, message, new TApplicationException(TApplicationException.UNKNOWN_METHOD, "Invalid method name: '" + message.name + "'"));
+            return true;
+        }
+
+        LogEntrySlices batch = batches.take();
+        StageMetrics stageMetrics = processor.stageMetrics();
+        boolean sampled = stageMetrics.sample();
+
+        try {
+            try {
+                long start = sampled ? System.nanoTime() : 0;
+                readLogArgs(in, batch);
+
+                if (sampled) {
+                    stageMetrics.decoded(System.nanoTime() - start, batch.bytes());
+                }
+
+            } catch (TProtocolException e) {
+                in.readMessageEnd();
+                writeException(out, message, new TApplicationException(TApplicationException.PROTOCOL_ERROR, e.getMessage()));
+                return true;
+
+            }
+
+            in.readMessageEnd();
+
+            scribe.Log_result result = new scribe.Log_result();
+            result.setSuccess(processor.log(batch, sampled));
+
+            out.writeMessageBegin(new TMessage("Log", TMessageType.REPLY, message.seqid));
+            result.write(out);
+            out.writeMessageEnd();
+            out.getTransport().flush();
+            return true;
+
+        } finally {
+            batch.clear();
+            batches.release(batch);
+
+        }
+    }
+
+    private void readLogArgs(TProtocol in, LogEntrySlices batch) throws TException {
+        in.readStructBegin();
+
+        while (true) {
+            TField field = in.readFieldBegin();
+
+            if (field.type == TType.STOP) {
+                break;
+            }
+
+            if (field.id == 1 && field.type == TType.LIST) {
+                TList list = in.readListBegin();
+
+                for (int i = 0; i < list.size; i++) {
+                    readLogEntry(in, batch);
+                }
+
+                in.readListEnd();
+
+            } else {
+                TProtocolUtil.skip(in, field.type);
+
+            }
+
+            in.readFieldEnd();
+        }
+
+        in.readStructEnd();
+    }
+
+    private void readLogEntry(TProtocol in, LogEntrySlices batch) throws TException {
+        TTransport transport = in.getTransport();
+        String category = null;
+        byte[] buffer = null;
+        int offset = 0;
+        int length = 0;
+
+        in.readStructBegin();
+
+        while (true) {
+            TField field = in.readFieldBegin();
+
+            if (field.type == TType.STOP) {
+                break;
+            }
+
+            if (field.id == 1 && field.type == TType.STRING) {
+                length = readLength(in);
+
+                if (transport.getBytesRemainingInBuffer() >= length) {
+                    category = categories.get(transport.getBuffer(), transport.getBufferPosition(), length);
+                    transport.consumeBuffer(length);
+
+                } else {
+                    byte[] bytes = new byte[length];
+                    transport.readAll(bytes, 0, length);
+                    category = categories.get(bytes, 0, length);
+
+                }
+
+            } else if (field.id == 2 && field.type == TType.STRING) {
+                length = readLength(in);
+
+                if (transport.getBytesRemainingInBuffer() >= length) {
+                    buffer = transport.getBuffer();
+                    offset = transport.getBufferPosition();
+                    transport.consumeBuffer(length);
+
+                } else {
+                    // Not reading from a buffered transport, the message has to be copied out
+                    buffer = new byte[length];
+                    offset = 0;
+                    transport.readAll(buffer, 0, length);
+
+                }
+
+            } else {
+                TProtocolUtil.skip(in, field.type);
+
+            }
+
+            in.readFieldEnd();
+        }
+
+        in.readStructEnd();
+
+        batch.add(category, buffer, offset, length);
+    }
+
+    private int readLength(TProtocol in) throws TException {
+        int length = in.readI32();
+
+        if (length < 0) {
+            throw new TProtocolException(TProtocolException.NEGATIVE_SIZE, "Negative length: " + length);
+        }
+
+        // Checked before anything is allocated, a small frame could otherwise claim a string of gigabytes
+        int remaining = in.getTransport().getBytesRemainingInBuffer();
+
+        if (remaining >= 0 && length > remaining) {
+            throw new TProtocolException(TProtocolException.SIZE_LIMIT, "Length " + length + " exceeds the " + remaining + " bytes left in the frame");
+        }
+
+        if (remaining < 0 && length > maxLength) {
+            throw new TProtocolException(TProtocolException.SIZE_LIMIT, "Length " + length + " exceeds the maximum of " + maxLength);
+        }
+
+        return length;
+    }
+
+    private void writeException(TProtocol out, TMessage message, TApplicationException e) throws TException {
+        out.writeMessageBegin(new TMessage(message.name, TMessageType.EXCEPTION, message.seqid));
+        e.write(out);
+        out.writeMessageEnd();
+        out.getTransport().flush();
+    }
+
+    /**
+     * Maps encoded categories to Strings. A batch usually has a handful of categories repeated on every entry, so a
+     * small direct mapped table catches almost all of them. Entries are immutable, so racing worker threads at worst
+     * overwrite each other's entry and decode the category again.
+     */
+    private static class CategoryCache {
+        private final Entry[] entries;
+
+        CategoryCache(int size) {
+            entries = new Entry[Integer.highestOneBit(size - 1) << 1];
+        }
+
+        String get(byte[] buffer, int offset, int length) {
+            int hash = 1;
+
+            for (int i = offset; i < offset + length; i++) {
+                hash = 31 * hash + buffer[i];
+            }
+
+            int index = (hash ^ hash >>> 16) & (entries.length - 1);
+            Entry entry = entries[index];
+
+            if (entry != null && entry.matches(buffer, offset, length)) {
+                return entry.category;
+            }
+
+            entry = new Entry(buffer, offset, length);
+            entries[index] = entry;
+            return entry.category;
+        }
+
+        private static class Entry {
+            private final byte[] bytes;
+            private final String category;
+
+            Entry(byte[] buffer, int offset, int length) {
+                this.bytes = new byte[length];
+                System.arraycopy(buffer, offset, bytes, 0, length);
+                this.category = new String(bytes, UTF8);
+            }
+
+            boolean matches(byte[] buffer, int offset, int length) {
+                if (length != bytes.length) {
+                    return false;
+                }
+
+                for (int i = 0; i < length; i++) {
+                    if (bytes[i] != buffer[offset + i]) {
+                        return false;
+                    }
+                }
+
+                return true;
+            }
+        }
+    }
+}
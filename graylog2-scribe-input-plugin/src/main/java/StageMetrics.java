@@ -0,0 +1,81 @@
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+/**
+ * Sizes and latencies of the stages a Log() call goes through, so it shows where the time goes between Thrift decoding,
+ * GELF parsing, adding the Scribe fields and inserting into the process buffer.
+ * <p/>
+ * Only one in every sampleInterval calls is measured, decided once per call, so the others don't read the clock or
+ * touch a reservoir at all.
+ */
+class StageMetrics {
+    private final int sampleInterval;
+
+    private final Histogram batchSize;
+    private final Histogram bytesReceived;
+    private final Histogram parseNanos;
+    private final Histogram fieldNanos;
+    private final Timer decodeTime;
+    private final Timer insertTime;
+    private final Timer batchTime;
+
+    /**
+     * @param sampleInterval measure one in this many calls, 1 for every call or 0 for none
+     */
+    StageMetrics(MetricRegistry metrics, String metricName, int sampleInterval) {
+        this.sampleInterval = sampleInterval;
+        this.batchSize = metrics.histogram(name(metricName, "batchSize"));
+        this.bytesReceived = metrics.histogram(name(metricName, "bytesReceived"));
+        this.parseNanos = metrics.histogram(name(metricName, "parseNanosPerMessage"));
+        this.fieldNanos = metrics.histogram(name(metricName, "fieldNanosPerMessage"));
+        this.decodeTime = metrics.timer(name(metricName, "decodeTime"));
+        this.insertTime = metrics.timer(name(metricName, "insertTime"));
+        this.batchTime = metrics.timer(name(metricName, "batchTime"));
+    }
+
+    /**
+     * @return whether to measure the call about to be handled
+     */
+    boolean sample() {
+        return sampleInterval == 1 || sampleInterval > 1 && ThreadLocalRandom.current().nextInt(sampleInterval) == 0;
+    }
+
+    /**
+     * Records the Thrift decoding of a call's arguments, raw processor only.
+     *
+     * @param bytes the size of the messages read, as received
+     */
+    void decoded(long nanos, long bytes) {
+        decodeTime.update(nanos, TimeUnit.NANOSECONDS);
+        bytesReceived.update(bytes);
+    }
+
+    void batch(int size) {
+        batchSize.update(size);
+    }
+
+    /**
+     * Records one message, parsed in parseNanos and given its Scribe fields in fieldNanos.
+     */
+    void parsed(long parseNanos, long fieldNanos) {
+        this.parseNanos.update(parseNanos);
+        this.fieldNanos.update(fieldNanos);
+    }
+
+    void inserted(long nanos) {
+        insertTime.update(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Records the handling of a decoded batch, from parsing to the process buffer accepting or refusing it.
+     */
+    void handled(long nanos) {
+        batchTime.update(nanos, TimeUnit.NANOSECONDS);
+    }
+}
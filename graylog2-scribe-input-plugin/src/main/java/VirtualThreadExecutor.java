@@ -0,0 +1,102 @@
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs every task on a virtual thread of its own, at most maxConcurrency of them at once. Tasks beyond that wait as
+ * parked virtual threads instead of queueing for a fixed pool of platform threads, so calls blocked on a full process
+ * buffer don't hold up the threads the rest need.
+ * <p/>
+ * Virtual threads need Java 21 and are created reflectively, so the plugin still builds and runs on older JVMs, which
+ * keep using the worker pool.
+ */
+class VirtualThreadExecutor extends AbstractExecutorService {
+    private final ExecutorService threads;
+    private final Semaphore permits;
+
+    /**
+     * @throws UnsupportedOperationException if the JVM has no virtual threads
+     */
+    VirtualThreadExecutor(String name, int maxConcurrency) {
+        this.threads = newThreadPerTaskExecutor(name);
+        this.permits = new Semaphore(maxConcurrency);
+    }
+
+    static boolean isAvailable() {
+        try {
+            Thread.class.getMethod("ofVirtual");
+            return true;
+
+        } catch (NoSuchMethodException e) {
+            return false;
+
+        }
+    }
+
+    @Override
+    public void execute(final Runnable command) {
+        threads.execute(new Runnable() {
+            @Override
+            public void run() {
+                permits.acquireUninterruptibly();
+
+                try {
+                    command.run();
+
+                } finally {
+                    permits.release();
+
+                }
+            }
+        });
+    }
+
+    @Override
+    public void shutdown() {
+        threads.shutdown();
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+        return threads.shutdownNow();
+    }
+
+    @Override
+    public boolean isShutdown() {
+        return threads.isShutdown();
+    }
+
+    @Override
+    public boolean isTerminated() {
+        return threads.isTerminated();
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return threads.awaitTermination(timeout, unit);
+    }
+
+    /**
+     * Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name(name + "-", 0).factory())
+     */
+    private static ExecutorService newThreadPerTaskExecutor(String name) {
+        try {
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, name + "-", 0L);
+            ThreadFactory factory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+            Method newExecutor = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+
+            return (ExecutorService) newExecutor.invoke(null, factory);
+
+        } catch (Exception e) {
+            throw new UnsupportedOperationException("Virtual threads need Java 21 or later", e);
+
+        }
+    }
+}
@@ -0,0 +1,102 @@
+import org.graylog2.plugin.Message;
+import org.graylog2.plugin.buffers.BatchBuffer;
+import org.graylog2.plugin.inputs.MessageInput;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class AdmissionControllerTest {
+    private static final int BUFFER_SIZE = 1000;
+    // Long enough for the moving average to settle on the new usage
+    private static final long SETTLE_MILLIS = 30;
+
+    private final FakeBuffer processBuffer = new FakeBuffer();
+    private final AdmissionController controller = new AdmissionController(processBuffer, 0.5, 0.8, 1);
+
+    @Test
+    public void admitsEverythingBelowHighWatermark() {
+        processBuffer.usage = 700;
+
+        assertEquals(1000, admitted(1000));
+    }
+
+    @Test
+    public void rejectsEverythingWhenFull() {
+        processBuffer.usage = BUFFER_SIZE;
+
+        assertEquals(0, admitted(1000));
+    }
+
+    @Test
+    public void keepsSheddingUntilLowWatermark() throws InterruptedException {
+        processBuffer.usage = 900;
+        admitted(1);
+
+        // Between the watermarks, a sixth of the batches are still rejected
+        processBuffer.usage = 600;
+        Thread.sleep(SETTLE_MILLIS);
+        int admitted = admitted(10000);
+        assertTrue("admitted " + admitted, admitted > 7500 && admitted < 9000);
+
+        processBuffer.usage = 400;
+        Thread.sleep(SETTLE_MILLIS);
+        admitted(1);
+        assertEquals(1000, admitted(1000));
+
+        // Back between the watermarks without having reached the high one
+        processBuffer.usage = 600;
+        Thread.sleep(SETTLE_MILLIS);
+        assertEquals(1000, admitted(1000));
+    }
+
+    @Test
+    public void smoothsOutSpikes() {
+        AdmissionController slow = new AdmissionController(processBuffer, 0.5, 0.8, 60000);
+        processBuffer.usage = 0;
+        slow.admit();
+
+        processBuffer.usage = BUFFER_SIZE;
+        int admitted = 0;
+
+        for (int i = 0; i < 1000; i++) {
+            admitted += slow.admit() ? 1 : 0;
+        }
+
+        assertEquals(1000, admitted);
+    }
+
+    private int admitted(int batches) {
+        int admitted = 0;
+
+        for (int i = 0; i < batches; i++) {
+            admitted += controller.admit() ? 1 : 0;
+        }
+
+        return admitted;
+    }
+
+    private static class FakeBuffer implements BatchBuffer {
+        volatile long usage;
+
+        @Override
+        public int getBufferSize() {
+            return BUFFER_SIZE;
+        }
+
+        @Override
+        public boolean hasCapacity(int n) {
+            return usage + n <= BUFFER_SIZE;
+        }
+
+        @Override
+        public long getUsage() {
+            return usage;
+        }
+
+        @Override
+        public void insertFailFast(Message[] messages, MessageInput input) {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -0,0 +1,84 @@
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class CategoryRulesTest {
+    private final CategoryRules rules = new CategoryRules("app.*=route:app; app.web.*=route:web\n app.web.access=raw ; debug*=drop");
+
+    @Test
+    public void exactCategoryWinsOverPrefix() {
+        CategoryRules.Rule rule = rules.get("app.web.access");
+
+        assertTrue(rule.isRaw());
+        assertNull(rule.getRoute());
+    }
+
+    @Test
+    public void longestPrefixWins() {
+        assertEquals("web", rules.get("app.web.errors").getRoute());
+        assertEquals("app", rules.get("app.worker").getRoute());
+        assertEquals("app", rules.get("app.").getRoute());
+    }
+
+    @Test
+    public void prefixMatchesWithoutSeparator() {
+        assertFalse(rules.get("debugging").keep());
+        assertFalse(rules.get("debug").keep());
+    }
+
+    @Test
+    public void categoryWithoutRule() {
+        assertNull(rules.get("app"));
+        assertNull(rules.get("other"));
+        assertNull(rules.get(null));
+
+        // Remembered outcomes don't change the answer
+        assertNull(rules.get("other"));
+        assertEquals("web", rules.get("app.web.errors").getRoute());
+    }
+
+    @Test
+    public void sampling() {
+        CategoryRules.Rule none = new CategoryRules("a=sample:0").get("a");
+        CategoryRules.Rule all = new CategoryRules("a=sample:1").get("a");
+        CategoryRules.Rule half = new CategoryRules("a=sample:0.5,route:x").get("a");
+        int kept = 0;
+
+        for (int i = 0; i < 10000; i++) {
+            assertFalse(none.keep());
+            assertTrue(all.keep());
+            kept += half.keep() ? 1 : 0;
+        }
+
+        assertTrue("kept " + kept, kept > 4000 && kept < 6000);
+        assertEquals("x", half.getRoute());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void ruleWithoutActions() {
+        new CategoryRules("a");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownAction() {
+        new CategoryRules("a=explode");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void sampleRateOutOfRange() {
+        new CategoryRules("a=sample:2");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidSampleRate() {
+        new CategoryRules("a=sample:x");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void routeWithoutTag() {
+        new CategoryRules("a=route:");
+    }
+}
@@ -0,0 +1,106 @@
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ClientLimitsTest {
+    @Test
+    public void acquiresOutsideOfCall() {
+        ClientLimits limits = new ClientLimits(1, 1, 1);
+
+        assertTrue(limits.acquire(1000, 1000000));
+        assertTrue(limits.acquire(1000, 1000000));
+        limits.release();
+    }
+
+    @Test
+    public void limitsBatchesInFlight() throws Exception {
+        final ClientLimits limits = new ClientLimits(1, 0, 0);
+        final CountDownLatch acquired = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(1);
+        final AtomicBoolean first = new AtomicBoolean();
+
+        Thread holder = new Thread(limits.call(null, new Runnable() {
+            @Override
+            public void run() {
+                first.set(limits.acquire(1, 1));
+                acquired.countDown();
+                await(done);
+            }
+        }));
+        holder.start();
+        assertTrue(acquired.await(5, TimeUnit.SECONDS));
+        assertTrue(first.get());
+
+        // Unknown transports count as the same client
+        assertFalse(acquire(limits, 1, 1));
+
+        done.countDown();
+        holder.join();
+
+        assertTrue(acquire(limits, 1, 1));
+    }
+
+    @Test
+    public void batchOverdrawsMessageRate() {
+        ClientLimits limits = new ClientLimits(0, 0, 10);
+
+        assertTrue(acquire(limits, 20, 0));
+        assertFalse(acquire(limits, 1, 0));
+    }
+
+    @Test
+    public void batchOverdrawsByteRate() {
+        ClientLimits limits = new ClientLimits(0, 1000, 0);
+
+        assertTrue(acquire(limits, 1, 1500));
+        assertFalse(acquire(limits, 1, 1));
+    }
+
+    @Test
+    public void releaseChargesDeficit() {
+        final ClientLimits limits = new ClientLimits(0, 0, 0);
+        ClientLimits.Call call = limits.call(null, new Runnable() {
+            @Override
+            public void run() {
+                assertTrue(limits.acquire(10, 1000));
+                limits.release();
+                // Released once only
+                limits.release();
+            }
+        });
+
+        call.run();
+
+        assertEquals(-1000, call.client.deficit());
+        assertEquals(0, call.client.inFlight.get());
+    }
+
+    private static boolean acquire(final ClientLimits limits, final int messages, final long bytes) {
+        final AtomicBoolean acquired = new AtomicBoolean();
+
+        limits.call(null, new Runnable() {
+            @Override
+            public void run() {
+                acquired.set(limits.acquire(messages, bytes));
+            }
+        }).run();
+
+        return acquired.get();
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+
+        }
+    }
+}
@@ -0,0 +1,130 @@
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+public class FairSchedulerTest {
+    private final ClientLimits limits = new ClientLimits(0, 0, 0);
+    private final ClientLimits.Client a = client(1);
+    private final ClientLimits.Client b = client(2);
+
+    private final ManualExecutor workers = new ManualExecutor();
+    private final FairScheduler scheduler = new FairScheduler(workers);
+    private final List<String> handled = new ArrayList<String>();
+
+    @Test
+    public void takesClientsInTurn() {
+        submit(a, "a1");
+        submit(a, "a2");
+        submit(a, "a3");
+        submit(b, "b1");
+        workers.runAll();
+
+        assertEquals(Arrays.asList("a1", "b1", "a2", "a3"), handled);
+    }
+
+    @Test
+    public void passesOverClientInDebt() {
+        a.addDeficit(-100000);
+        submit(a, "a1");
+        submit(b, "b1");
+        submit(b, "b2");
+        workers.runAll();
+
+        assertEquals(Arrays.asList("b1", "b2", "a1"), handled);
+    }
+
+    @Test
+    public void forgetsCreditOnceIdle() {
+        a.addDeficit(1000000);
+        submit(a, "a1");
+        workers.runAll();
+
+        assertEquals(0, a.deficit());
+    }
+
+    @Test
+    public void runsOtherTasksDirectly() {
+        scheduler.execute(new Runnable() {
+            @Override
+            public void run() {
+                handled.add("other");
+            }
+        });
+        workers.runAll();
+
+        assertEquals(Collections.singletonList("other"), handled);
+    }
+
+    private void submit(ClientLimits.Client client, final String name) {
+        scheduler.execute(limits.new Call(client, new Runnable() {
+            @Override
+            public void run() {
+                handled.add(name);
+            }
+        }));
+    }
+
+    private static ClientLimits.Client client(int address) {
+        try {
+            return new ClientLimits.Client(InetAddress.getByAddress(new byte[]{10, 0, 0, (byte) address}), 0, 0);
+
+        } catch (Exception e) {
+            throw new AssertionError(e);
+
+        }
+    }
+
+    /**
+     * Queues tasks until they are run one by one on the test thread.
+     */
+    private static class ManualExecutor extends AbstractExecutorService {
+        private final Queue<Runnable> tasks = new ArrayDeque<Runnable>();
+
+        void runAll() {
+            Runnable task;
+
+            while ((task = tasks.poll()) != null) {
+                task.run();
+            }
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            tasks.add(command);
+        }
+
+        @Override
+        public void shutdown() {
+        }
+
+        @Override
+        public List<Runnable> shutdownNow() {
+            return new ArrayList<Runnable>(tasks);
+        }
+
+        @Override
+        public boolean isShutdown() {
+            return false;
+        }
+
+        @Override
+        public boolean isTerminated() {
+            return false;
+        }
+
+        @Override
+        public boolean awaitTermination(long timeout, TimeUnit unit) {
+            return true;
+        }
+    }
+}
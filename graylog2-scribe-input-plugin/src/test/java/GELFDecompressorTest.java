@@ -0,0 +1,213 @@
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Factory;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class GELFDecompressorTest {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final String MESSAGE = message(2000);
+
+    private final GELFDecompressor decompressor = new GELFDecompressor();
+
+    @Test
+    public void gzipRoundTrip() throws IOException {
+        assertRoundTrip(gzip(MESSAGE));
+    }
+
+    @Test
+    public void zlibRoundTrip() throws IOException {
+        assertRoundTrip(zlib(MESSAGE));
+    }
+
+    @Test
+    public void lz4RoundTrip() throws IOException {
+        assertRoundTrip(lz4(MESSAGE, false));
+    }
+
+    @Test
+    public void lz4UncompressedBlockRoundTrip() throws IOException {
+        assertRoundTrip(lz4(MESSAGE, true));
+    }
+
+    @Test
+    public void largerThanBufferRoundTrip() throws IOException {
+        String large = message(200000);
+        byte[] compressed = zlib(large);
+
+        assertEquals(large, decompress(compressed, 0, compressed.length));
+    }
+
+    @Test
+    public void roundTripAtOffset() throws IOException {
+        byte[] compressed = gzip(MESSAGE);
+        byte[] padded = new byte[compressed.length + 20];
+        System.arraycopy(compressed, 0, padded, 10, compressed.length);
+
+        assertTrue(GELFDecompressor.isCompressed(padded, 10, compressed.length));
+        assertEquals(MESSAGE, decompress(padded, 10, compressed.length));
+    }
+
+    @Test
+    public void closeEndsTheInflaters() throws IOException {
+        decompressor.close();
+
+        assertRejected(gzip(MESSAGE));
+        assertRejected(zlib(MESSAGE));
+    }
+
+    @Test
+    public void truncatedMessagesAreRejected() throws IOException {
+        for (byte[] compressed : new byte[][]{gzip(MESSAGE), zlib(MESSAGE), lz4(MESSAGE, false), lz4(MESSAGE, true)}) {
+            assertRejected(Arrays.copyOf(compressed, compressed.length / 2));
+            assertRejected(Arrays.copyOf(compressed, compressed.length - 1));
+        }
+    }
+
+    @Test
+    public void corruptMessagesAreRejected() throws IOException {
+        for (byte[] compressed : new byte[][]{gzip(MESSAGE), zlib(MESSAGE), lz4(MESSAGE, false)}) {
+            for (int i = compressed.length / 3; i < compressed.length; i += 7) {
+                compressed[i] ^= 0x55;
+            }
+
+            assertRejected(compressed);
+        }
+    }
+
+    @Test
+    public void gzipChecksumMismatchIsRejected() throws IOException {
+        byte[] compressed = gzip(MESSAGE);
+        compressed[compressed.length - 8] ^= 1;
+
+        assertRejected(compressed);
+    }
+
+    @Test
+    public void oversizedMessagesAreRejected() throws IOException {
+        assertRejected(zlib(new String(new char[GELFDecompressor.MAX_MESSAGE_SIZE + 1]).replace('\0', 'a')));
+    }
+
+    @Test
+    public void decompressorIsReusableAfterRejecting() throws IOException {
+        byte[] compressed = zlib(MESSAGE);
+
+        assertRejected(Arrays.copyOf(compressed, compressed.length / 2));
+        assertEquals(MESSAGE, decompress(compressed, 0, compressed.length));
+    }
+
+    @Test
+    public void plainTextStartingWithXIsNotCompressed() {
+        assertFalse(GELFDecompressor.isCompressed("x is null"));
+        assertFalse(GELFDecompressor.isCompressed("x"));
+        assertFalse(GELFDecompressor.isCompressed("{\"short_message\":\"x\"}"));
+    }
+
+    @Test
+    public void zlibDecodedAsStringIsCompressed() {
+        // 0x78 0x9c, the second byte decoded as a replacement character
+        assertTrue(GELFDecompressor.isCompressed("x\ufffd\u0001abc"));
+        assertTrue(GELFDecompressor.isCompressed("x\u0001abc"));
+    }
+
+    @Test
+    public void jsonBytesAreNotCompressed() {
+        byte[] json = "{\"short_message\":\"x\",\"host\":\"h\"}".getBytes(UTF8);
+
+        assertFalse(GELFDecompressor.isCompressed(json, 0, json.length));
+    }
+
+    private void assertRoundTrip(byte[] compressed) throws IOException {
+        assertTrue(GELFDecompressor.isCompressed(compressed, 0, compressed.length));
+        assertEquals(MESSAGE, decompress(compressed, 0, compressed.length));
+    }
+
+    private void assertRejected(byte[] compressed) {
+        try {
+            decompress(compressed, 0, compressed.length);
+            fail("Decompressed invalid message");
+
+        } catch (IOException e) {
+            // Expected
+
+        }
+    }
+
+    private String decompress(byte[] compressed, int offset, int length) throws IOException {
+        int decompressed = decompressor.decompress(compressed, offset, length);
+        return new String(decompressor.buffer(), 0, decompressed, UTF8);
+    }
+
+    private static String message(int length) {
+        StringBuilder message = new StringBuilder("{\"short_message\":\"");
+
+        for (int i = 0; message.length() < length; i++) {
+            message.append("at org.example.Service.call(Service.java:").append(i % 100).append(")\\n");
+        }
+
+        return message.append("\",\"host\":\"example\"}").toString();
+    }
+
+    private static byte[] gzip(String message) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        write(new GZIPOutputStream(out), message);
+        return out.toByteArray();
+    }
+
+    private static byte[] zlib(String message) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        write(new DeflaterOutputStream(out), message);
+        return out.toByteArray();
+    }
+
+    private static void write(OutputStream out, String message) throws IOException {
+        out.write(message.getBytes(UTF8));
+        out.close();
+    }
+
+    /**
+     * @return a single block LZ4 frame with independent blocks, as the Scribe appender writes them
+     */
+    private static byte[] lz4(String message, boolean uncompressedBlock) {
+        byte[] bytes = message.getBytes(UTF8);
+        LZ4Compressor compressor = LZ4Factory.fastestInstance().fastCompressor();
+        byte[] block = new byte[compressor.maxCompressedLength(bytes.length)];
+        int blockLength = compressor.compress(bytes, 0, bytes.length, block, 0, block.length);
+
+        if (uncompressedBlock) {
+            block = bytes;
+            blockLength = bytes.length;
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeIntLE(out, 0x184D2204);
+        // Version 01, independent blocks, content size, 4MB blocks, and the header checksum which isn't verified
+        out.write(0x68);
+        out.write(0x70);
+        writeIntLE(out, bytes.length);
+        writeIntLE(out, 0);
+        out.write(0);
+        writeIntLE(out, uncompressedBlock ? blockLength | 0x80000000 : blockLength);
+        out.write(block, 0, blockLength);
+        writeIntLE(out, 0);
+        return out.toByteArray();
+    }
+
+    private static void writeIntLE(ByteArrayOutputStream out, int value) {
+        out.write(value);
+        out.write(value >>> 8);
+        out.write(value >>> 16);
+        out.write(value >>> 24);
+    }
+}
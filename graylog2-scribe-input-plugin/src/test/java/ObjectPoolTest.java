@@ -0,0 +1,44 @@
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class ObjectPoolTest {
+    private final List<Object> discarded = new ArrayList<Object>();
+
+    private final ObjectPool<Object> pool = new ObjectPool<Object>(1) {
+        @Override
+        protected Object create() {
+            return new Object();
+        }
+
+        @Override
+        protected void discard(Object object) {
+            discarded.add(object);
+        }
+    };
+
+    @Test
+    public void reusesReleasedObjects() {
+        Object object = pool.take();
+        pool.release(object);
+
+        assertSame(object, pool.take());
+    }
+
+    @Test
+    public void discardsObjectsReleasedOnceFull() {
+        Object first = pool.take();
+        Object second = pool.take();
+
+        pool.release(first);
+        pool.release(second);
+
+        assertEquals(1, discarded.size());
+        assertSame(second, discarded.get(0));
+        assertSame(first, pool.take());
+    }
+}
@@ -0,0 +1,148 @@
+import org.apache.thrift.TProcessor;
+import org.apache.thrift.protocol.TProtocol;
+import org.apache.thrift.server.THsHaServer;
+import org.apache.thrift.server.TServer;
+import org.apache.thrift.transport.TNonblockingServerSocket;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.DataOutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ReadBudgetTest {
+    private static final int FRAME_SIZE = 60;
+
+    private final ReadBudget readBudget = new ReadBudget();
+    private final CountDownLatch handling = new CountDownLatch(1);
+    private final CountDownLatch release = new CountDownLatch(1);
+    private final AtomicInteger handled = new AtomicInteger();
+    private final List<Socket> clients = new ArrayList<Socket>();
+    private TServer server;
+
+    @After
+    public void tearDown() throws Exception {
+        release.countDown();
+
+        for (Socket client : clients) {
+            client.close();
+        }
+
+        if (server != null) {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void parksConnectionsUntilAFrameIsHandled() throws Exception {
+        int port = start(FRAME_SIZE + 40);
+
+        // Takes the whole budget until released
+        send(port);
+        assertTrue(handling.await(5, TimeUnit.SECONDS));
+
+        send(port);
+        waitFor(new Condition() {
+            @Override
+            public boolean holds() {
+                return readBudget.getParked() == 1;
+            }
+        });
+        assertEquals(1, handled.get());
+
+        release.countDown();
+        waitFor(new Condition() {
+            @Override
+            public boolean holds() {
+                return handled.get() == 2;
+            }
+        });
+        assertEquals(0, readBudget.getParked());
+    }
+
+    private int start(long maxReadBufferBytes) throws Exception {
+        ServerSocket probe = new ServerSocket(0);
+        int port = probe.getLocalPort();
+        probe.close();
+
+        TProcessor processor = new TProcessor() {
+            @Override
+            public boolean process(TProtocol in, TProtocol out) {
+                handled.incrementAndGet();
+                handling.countDown();
+
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+
+                }
+
+                return true;
+            }
+        };
+
+        THsHaServer.Args args = new THsHaServer.Args(readBudget.listenOn(new TNonblockingServerSocket(new InetSocketAddress("127.0.0.1", port))))
+                .processor(processor)
+                .workerThreads(2);
+        args.maxReadBufferBytes = maxReadBufferBytes;
+
+        server = new THsHaServer(args) {
+            @Override
+            protected Runnable getRunnable(FrameBuffer frameBuffer) {
+                return readBudget.releasing(super.getRunnable(frameBuffer));
+            }
+        };
+
+        Thread serving = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                server.serve();
+            }
+        }, "read-budget-test-server");
+        serving.setDaemon(true);
+        serving.start();
+
+        waitFor(new Condition() {
+            @Override
+            public boolean holds() {
+                return server.isServing();
+            }
+        });
+
+        return port;
+    }
+
+    private void send(int port) throws Exception {
+        Socket client = new Socket("127.0.0.1", port);
+        clients.add(client);
+
+        DataOutputStream out = new DataOutputStream(client.getOutputStream());
+        out.writeInt(FRAME_SIZE);
+        out.write(new byte[FRAME_SIZE]);
+        out.flush();
+    }
+
+    private static void waitFor(Condition condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+
+        while (!condition.holds()) {
+            assertTrue("Timed out", System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+    }
+
+    private interface Condition {
+        boolean holds();
+    }
+}
@@ -0,0 +1,166 @@
+import com.codahale.metrics.MetricRegistry;
+import org.apache.thrift.protocol.TBinaryProtocol;
+import org.apache.thrift.protocol.TField;
+import org.apache.thrift.protocol.TList;
+import org.apache.thrift.protocol.TMessage;
+import org.apache.thrift.protocol.TMessageType;
+import org.apache.thrift.protocol.TStruct;
+import org.apache.thrift.protocol.TType;
+import org.apache.thrift.transport.TMemoryBuffer;
+import org.apache.thrift.transport.TMemoryInputTransport;
+import org.graylog2.plugin.InputHost;
+import org.graylog2.plugin.Message;
+import org.graylog2.plugin.buffers.BatchBuffer;
+import org.graylog2.plugin.inputs.MessageInput;
+import org.junit.Before;
+import org.junit.Test;
+import scribe.thrift.LogEntry;
+import scribe.thrift.ResultCode;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ScribeGELFProcessorTest {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final List<Message> inserted = new ArrayList<Message>();
+    private int bufferSize = 1024;
+    private int capacity = Integer.MAX_VALUE;
+    private InputHost host;
+    private ScribeGELFProcessor processor;
+
+    @Before
+    public void setUp() {
+        final MetricRegistry metrics = new MetricRegistry();
+        final BatchBuffer processBuffer = new BatchBuffer() {
+            @Override
+            public int getBufferSize() {
+                return bufferSize;
+            }
+
+            @Override
+            public boolean hasCapacity(int n) {
+                return inserted.size() + n <= capacity;
+            }
+
+            @Override
+            public long getUsage() {
+                return inserted.size();
+            }
+
+            @Override
+            public void insertFailFast(Message[] messages, MessageInput input) {
+                inserted.addAll(Arrays.asList(messages));
+            }
+        };
+
+        host = new InputHost() {
+            @Override
+            public BatchBuffer getProcessBuffer() {
+                return processBuffer;
+            }
+
+            @Override
+            public MetricRegistry metrics() {
+                return metrics;
+            }
+        };
+
+        processor = new ScribeGELFProcessor(host, new ScribeGELFInput(), null, 0, 0, null, new CategoryRules("legacy.*=raw"), 0, null);
+    }
+
+    @Test
+    public void rawMessageStartingWithXIsKept() throws Exception {
+        // 'x' is the first ZLIB magic byte, and "x " even passes the ZLIB header check
+        assertEquals(ResultCode.OK, processor.Log(Collections.singletonList(new LogEntry("legacy.access", "x is null"))));
+
+        assertEquals(1, inserted.size());
+        assertEquals("x is null", inserted.get(0).getField("message"));
+        assertEquals("legacy.access", inserted.get(0).getField("scribe_category"));
+    }
+
+    @Test
+    public void rawMessageStartingWithXIsKeptByRawProcessor() {
+        LogEntrySlices slices = new LogEntrySlices();
+        byte[] bytes = "x is null".getBytes(UTF8);
+        slices.add("legacy.access", bytes, 0, bytes.length);
+
+        assertEquals(ResultCode.OK, processor.log(slices, false));
+
+        assertEquals(1, inserted.size());
+        assertEquals("x is null", inserted.get(0).getField("message"));
+    }
+
+    @Test
+    public void rawProcessorRejectsLengthBeyondFrame() throws Exception {
+        // A message claiming a gigabyte in a frame of a few bytes
+        TMemoryBuffer call = new TMemoryBuffer(64);
+        TBinaryProtocol writer = new TBinaryProtocol(call);
+        writer.writeMessageBegin(new TMessage("Log", TMessageType.CALL, 1));
+        writer.writeStructBegin(new TStruct("Log_args"));
+        writer.writeFieldBegin(new TField("messages", TType.LIST, (short) 1));
+        writer.writeListBegin(new TList(TType.STRUCT, 1));
+        writer.writeStructBegin(new TStruct("LogEntry"));
+        writer.writeFieldBegin(new TField("message", TType.STRING, (short) 2));
+        writer.writeI32(1 << 30);
+        writer.writeI32(0);
+
+        TMemoryBuffer reply = new TMemoryBuffer(64);
+        byte[] frame = Arrays.copyOf(call.getArray(), call.length());
+        new ScribeGELFRawProcessor(processor, 1024).process(new TBinaryProtocol(new TMemoryInputTransport(frame)), new TBinaryProtocol(reply));
+
+        assertEquals(TMessageType.EXCEPTION, new TBinaryProtocol(reply).readMessageBegin().type);
+        assertEquals(0, inserted.size());
+    }
+
+    @Test
+    public void chunkedInsertDropsTheRestOnceAChunkFindsNoRoom() throws Exception {
+        bufferSize = 4;
+        capacity = 2;
+        processor = new ScribeGELFProcessor(host, new ScribeGELFInput(), null, 0, 20, null, new CategoryRules("legacy.*=raw"), 0, null);
+
+        List<LogEntry> entries = new ArrayList<LogEntry>();
+
+        for (int i = 0; i < 6; i++) {
+            entries.add(new LogEntry("legacy.access", "line " + i));
+        }
+
+        // Only the first chunk of one fits, the batch must not be sent again
+        long start = System.currentTimeMillis();
+        assertEquals(ResultCode.OK, processor.Log(entries));
+
+        assertEquals(2, inserted.size());
+        assertTrue(System.currentTimeMillis() - start < 5000);
+    }
+
+    @Test
+    public void chunkedInsertGivesUpWhenInterrupted() throws Exception {
+        bufferSize = 4;
+        capacity = 2;
+        processor = new ScribeGELFProcessor(host, new ScribeGELFInput(), null, 0, 60000, null, new CategoryRules("legacy.*=raw"), 0, null);
+
+        List<LogEntry> entries = new ArrayList<LogEntry>();
+
+        for (int i = 0; i < 6; i++) {
+            entries.add(new LogEntry("legacy.access", "line " + i));
+        }
+
+        Thread.currentThread().interrupt();
+
+        try {
+            assertEquals(ResultCode.OK, processor.Log(entries));
+            assertEquals(2, inserted.size());
+            assertTrue(Thread.currentThread().isInterrupted());
+
+        } finally {
+            Thread.interrupted();
+
+        }
+    }
+}
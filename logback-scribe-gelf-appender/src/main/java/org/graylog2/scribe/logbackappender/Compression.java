@@ -0,0 +1,29 @@
+package org.graylog2.scribe.logbackappender;
+
+/**
+ * How {@link ScribeBlockingGELFAppender} compresses each GELF message before sending it. Graylog's Scribe input
+ * recognises the compressed messages by their leading magic bytes, like GELF over UDP, so the setting only has to be
+ * changed on the appenders.
+ */
+public enum Compression {
+    /**
+     * Send the GELF JSON as it is.
+     */
+    NONE,
+
+    /**
+     * GZIP (RFC 1952), starting with 0x1f 0x8b.
+     */
+    GZIP,
+
+    /**
+     * ZLIB (RFC 1950), starting with 0x78.
+     */
+    ZLIB,
+
+    /**
+     * LZ4 frame format, starting with 0x04 0x22 0x4d 0x18. Cheaper than GZIP or ZLIB for a lower ratio, and needs
+     * net.jpountz.lz4:lz4 on the classpath.
+     */
+    LZ4
+}
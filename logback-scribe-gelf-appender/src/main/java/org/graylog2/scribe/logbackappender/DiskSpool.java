@@ -0,0 +1,546 @@
+package org.graylog2.scribe.logbackappender;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Write-ahead spool of fixed size memory mapped segment files, holding entries that couldn't be sent until they are
+ * replayed.
+ * <p/>
+ * Entries are appended to the newest segment as [length][CRC32][category length][category][message] records, and a
+ * new segment is started once a record doesn't fit, up to a cap on the number of segments. Segments are deleted once
+ * every record in them has been replayed.
+ * <p/>
+ * The read position lives in a separate file with two checksummed slots that are written alternately, so a crash in
+ * the middle of an update leaves the previous position intact. The position only moves after a batch has been
+ * delivered, so entries may be sent twice after a crash but aren't lost. It is written to the mapped file on every
+ * commit, which survives the process dying, but only forced to disk once a second and before the spool waits for
+ * entries, so committing doesn't cost an fsync per batch. Losing power may therefore replay up to a second's worth of
+ * batches again. A record cut short by a crash fails its
+ * checksum and ends its segment. After a restart a new segment is started for writing, older ones are only read.
+ * <p/>
+ * Thread safe, appends and reads are serialized on the spool.
+ */
+class DiskSpool {
+    private static final String SEGMENT_SUFFIX = ".segment";
+    private static final String OFFSET_FILE = "offset";
+    // Length and CRC32, followed by the record
+    private static final int RECORD_HEADER = 8;
+    // Generation, segment sequence, offset and CRC32
+    private static final int OFFSET_SLOT = 24;
+    private static final long OFFSET_SYNC_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+
+    private final File directory;
+    private final int segmentSize;
+    private final int maxSegments;
+    private final CRC32 crc = new CRC32();
+    private final Map<String, LogEntryBatch> batches = new HashMap<String, LogEntryBatch>();
+
+    private RandomAccessFile offsetFile;
+    private FileLock lock;
+    private MappedByteBuffer offsets;
+    private long generation;
+    private boolean offsetsSynced = true;
+    private long offsetsSyncedAt = System.nanoTime();
+    private boolean open;
+
+    // Everything before the read position has been delivered
+    private long readSequence;
+    private int readOffset;
+    // Highest segment sequence on disk, readSequence - 1 if there are none
+    private long lastSequence;
+
+    private MappedByteBuffer readSegment;
+    private long readSegmentSequence = -1;
+    private MappedByteBuffer writeSegment;
+    private long writeSequence = -1;
+    private int writeOffset;
+
+    // The batch handed out by read(), and where the read position moves to once it is committed
+    private LogEntryBatch readBatch;
+    private int readMaxBytes;
+    private long pendingSequence;
+    private int pendingOffset;
+
+    private byte[] scratch = new byte[4096];
+
+    /**
+     * @param segmentSize size of each segment file, bounding the largest entry that can be spooled
+     * @param maxBytes    total size of the segment files, above which entries are refused
+     */
+    DiskSpool(File directory, int segmentSize, long maxBytes) {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.maxSegments = (int) Math.max(2, Math.min(Integer.MAX_VALUE, maxBytes / segmentSize));
+    }
+
+    /**
+     * Takes the spool directory, creating it if needed, and recovers the read position and any spooled entries.
+     *
+     * @throws IOException if the directory can't be used, or another process holds it
+     */
+    synchronized void open() throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create spool directory " + directory);
+        }
+
+        offsetFile = new RandomAccessFile(new File(directory, OFFSET_FILE), "rw");
+
+        try {
+            lock = offsetFile.getChannel().tryLock();
+
+        } catch (OverlappingFileLockException e) {
+            lock = null;
+
+        }
+
+        if (lock == null) {
+            offsetFile.close();
+            throw new IOException("Spool directory " + directory + " is in use by another appender");
+        }
+
+        offsets = offsetFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, 2 * OFFSET_SLOT);
+        readOffsets();
+
+        List<Long> sequences = segmentSequences();
+
+        for (Long sequence : sequences) {
+            if (sequence < readSequence) {
+                segmentFile(sequence).delete();
+            }
+        }
+
+        lastSequence = sequences.isEmpty() ? readSequence - 1 : Math.max(readSequence - 1, sequences.get(sequences.size() - 1));
+
+        if (!sequences.isEmpty() && sequences.get(0) > readSequence) {
+            // The segment being read is gone, carry on with the next one
+            readSequence = sequences.get(0);
+            readOffset = 0;
+        }
+
+        skipDelivered();
+        open = true;
+    }
+
+    synchronized void close() {
+        if (!open) {
+            return;
+        }
+
+        open = false;
+
+        if (writeSegment != null) {
+            writeSegment.force();
+        }
+
+        syncOffsets();
+        writeSegment = null;
+        readSegment = null;
+        offsets = null;
+
+        try {
+            lock.release();
+            offsetFile.close();
+
+        } catch (IOException e) {
+            // Released by the OS on exit anyway
+
+        }
+
+        notifyAll();
+    }
+
+    /**
+     * @return whether every spooled entry has been delivered
+     */
+    synchronized boolean isEmpty() {
+        return readSequence > lastSequence || (readSequence == writeSequence && readOffset >= writeOffset);
+    }
+
+    /**
+     * @return roughly how many bytes of spooled entries are waiting to be delivered
+     */
+    synchronized long getPendingBytes() {
+        if (isEmpty()) {
+            return 0;
+        }
+
+        long end = (lastSequence - readSequence) * segmentSize + (lastSequence == writeSequence ? writeOffset : segmentSize);
+        return Math.max(0, end - readOffset);
+    }
+
+    /**
+     * Waits up to the given time for entries to replay.
+     */
+    synchronized void awaitEntries(long timeout) throws InterruptedException {
+        if (open && isEmpty()) {
+            syncOffsets();
+            wait(timeout);
+        }
+    }
+
+    /**
+     * @return false if the entry wasn't spooled because the spool is closed or full, or the entry doesn't fit a segment
+     */
+    synchronized boolean append(ByteBuffer category, ByteBuffer message) throws IOException {
+        int categoryLength = category.remaining();
+        int messageLength = message.remaining();
+        int length = 2 + categoryLength + messageLength;
+
+        if (!open || categoryLength > 0xffff || RECORD_HEADER + length > segmentSize) {
+            return false;
+        }
+
+        if (writeSegment == null || writeSegment.capacity() - writeOffset < RECORD_HEADER + length) {
+            if (!startSegment()) {
+                return false;
+            }
+        }
+
+        if (scratch.length < length) {
+            scratch = new byte[Math.max(length, scratch.length * 2)];
+        }
+
+        scratch[0] = (byte) (categoryLength >>> 8);
+        scratch[1] = (byte) categoryLength;
+        category.duplicate().get(scratch, 2, categoryLength);
+        message.duplicate().get(scratch, 2 + categoryLength, messageLength);
+
+        crc.reset();
+        crc.update(scratch, 0, length);
+
+        writeSegment.putInt(writeOffset, length);
+        writeSegment.putInt(writeOffset + 4, (int) crc.getValue());
+        writeSegment.position(writeOffset + RECORD_HEADER);
+        writeSegment.put(scratch, 0, length);
+        writeOffset += RECORD_HEADER + length;
+
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * Reads the oldest undelivered entries of a single category, without removing them until {@link #commit()} is
+     * called. Each call starts again from the oldest undelivered entry.
+     *
+     * @return a batch only valid until the next call, or null if there is nothing to replay
+     */
+    synchronized LogEntryBatch read(int maxEntries, int maxBytes) throws IOException {
+        releaseBatch();
+
+        if (!open) {
+            return null;
+        }
+
+        long sequence = readSequence;
+        int offset = readOffset;
+        LogEntryBatch batch = null;
+
+        while (sequence <= lastSequence && (batch == null || batch.size() < maxEntries)) {
+            ByteBuffer segment = segment(sequence);
+            int length = segment == null ? -1 : readRecord(segment, offset, sequence == writeSequence ? writeOffset : segment.capacity());
+
+            if (length < 0) {
+                if (sequence == writeSequence) {
+                    break;
+                }
+
+                // The end of a full segment, or of one cut short by a crash
+                sequence++;
+                offset = 0;
+                continue;
+            }
+
+            int categoryLength = (scratch[0] & 0xff) << 8 | scratch[1] & 0xff;
+            int messageLength = length - 2 - categoryLength;
+
+            if (batch == null) {
+                batch = batch(new String(scratch, 2, categoryLength, UTF8Buffer.UTF8));
+
+            } else if (!isCategory(batch.category(), categoryLength)
+                    || batch.bytes(batch.size()) + categoryLength + messageLength > maxBytes) {
+                break;
+
+            }
+
+            batch.messages().write(scratch, 2 + categoryLength, messageLength);
+            batch.commit();
+            offset += RECORD_HEADER + length;
+        }
+
+        if (batch == null) {
+            // Only went past the ends of segments, nothing to deliver first
+            if (sequence != readSequence || offset != readOffset) {
+                moveReadPosition(sequence, offset);
+            }
+
+            return null;
+        }
+
+        readBatch = batch;
+        readMaxBytes = maxBytes;
+        pendingSequence = sequence;
+        pendingOffset = offset;
+        return batch;
+    }
+
+    /**
+     * Removes the entries returned by the last {@link #read(int, int)} once they have been delivered.
+     */
+    synchronized void commit() throws IOException {
+        if (readBatch == null || !open) {
+            return;
+        }
+
+        releaseBatch();
+        moveReadPosition(pendingSequence, pendingOffset);
+    }
+
+    private void releaseBatch() {
+        if (readBatch != null) {
+            readBatch.clear(readMaxBytes);
+            readBatch = null;
+        }
+    }
+
+    private LogEntryBatch batch(String category) {
+        LogEntryBatch batch = batches.get(category);
+
+        if (batch == null) {
+            // Already compressed when they were spooled, if they were going to be
+            batch = new LogEntryBatch(category, Compression.NONE, 0);
+            batches.put(category, batch);
+        }
+
+        return batch;
+    }
+
+    private boolean isCategory(ByteBuffer category, int categoryLength) {
+        if (category.remaining() != categoryLength) {
+            return false;
+        }
+
+        for (int i = 0; i < categoryLength; i++) {
+            if (category.get(category.position() + i) != scratch[2 + i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Copies the record at the given offset into the scratch array.
+     *
+     * @return the record's length, or -1 if there is no intact record there
+     */
+    private int readRecord(ByteBuffer segment, int offset, int limit) {
+        if (limit - offset < RECORD_HEADER + 2) {
+            return -1;
+        }
+
+        int length = segment.getInt(offset);
+
+        if (length < 2 || length > limit - offset - RECORD_HEADER) {
+            return -1;
+        }
+
+        if (scratch.length < length) {
+            scratch = new byte[Math.max(length, scratch.length * 2)];
+        }
+
+        ByteBuffer record = segment.duplicate();
+        record.position(offset + RECORD_HEADER);
+        record.get(scratch, 0, length);
+
+        crc.reset();
+        crc.update(scratch, 0, length);
+
+        if ((int) crc.getValue() != segment.getInt(offset + 4)) {
+            return -1;
+        }
+
+        int categoryLength = (scratch[0] & 0xff) << 8 | scratch[1] & 0xff;
+        return categoryLength <= length - 2 ? length : -1;
+    }
+
+    /**
+     * @return the mapped segment, or null if its file has gone
+     */
+    private ByteBuffer segment(long sequence) throws IOException {
+        if (sequence == writeSequence) {
+            return writeSegment;
+        }
+
+        if (sequence != readSegmentSequence) {
+            File file = segmentFile(sequence);
+            readSegment = file.exists() ? map(file, -1) : null;
+            readSegmentSequence = sequence;
+        }
+
+        return readSegment;
+    }
+
+    /**
+     * Moves the read position past the segments with no intact record left to read, so a spool that was drained before
+     * it was closed opens empty.
+     */
+    private void skipDelivered() throws IOException {
+        while (readSequence <= lastSequence) {
+            ByteBuffer segment = segment(readSequence);
+
+            if (segment != null && readRecord(segment, readOffset, segment.capacity()) >= 0) {
+                return;
+            }
+
+            moveReadPosition(readSequence + 1, 0);
+        }
+    }
+
+    private boolean startSegment() throws IOException {
+        long sequence = lastSequence + 1;
+
+        // Counting every segment from the one being read up to the new one
+        if (sequence - readSequence + 1 > maxSegments) {
+            return false;
+        }
+
+        if (writeSegment != null) {
+            writeSegment.force();
+        }
+
+        writeSegment = map(segmentFile(sequence), segmentSize);
+        writeSequence = sequence;
+        writeOffset = 0;
+        lastSequence = sequence;
+        return true;
+    }
+
+    private void moveReadPosition(long sequence, int offset) {
+        for (long s = readSequence; s < sequence; s++) {
+            if (s == readSegmentSequence) {
+                readSegment = null;
+                readSegmentSequence = -1;
+            }
+
+            // Left for the next open() to delete if it is still mapped somewhere it can't be deleted
+            segmentFile(s).delete();
+        }
+
+        readSequence = sequence;
+        readOffset = offset;
+        writeOffsets();
+    }
+
+    private void readOffsets() {
+        byte[] slot = new byte[OFFSET_SLOT];
+
+        for (int i = 0; i < 2; i++) {
+            offsets.position(i * OFFSET_SLOT);
+            offsets.get(slot);
+
+            ByteBuffer fields = ByteBuffer.wrap(slot);
+            long slotGeneration = fields.getLong(0);
+
+            crc.reset();
+            crc.update(slot, 0, OFFSET_SLOT - 4);
+
+            if (slotGeneration > generation && (int) crc.getValue() == fields.getInt(OFFSET_SLOT - 4)) {
+                generation = slotGeneration;
+                readSequence = fields.getLong(8);
+                readOffset = fields.getInt(16);
+            }
+        }
+    }
+
+    private void writeOffsets() {
+        generation++;
+
+        byte[] slot = new byte[OFFSET_SLOT];
+        ByteBuffer fields = ByteBuffer.wrap(slot);
+        fields.putLong(0, generation);
+        fields.putLong(8, readSequence);
+        fields.putInt(16, readOffset);
+
+        crc.reset();
+        crc.update(slot, 0, OFFSET_SLOT - 4);
+        fields.putInt(OFFSET_SLOT - 4, (int) crc.getValue());
+
+        // Alternate slots, so the other one still holds the previous position if this write is torn
+        offsets.position((int) (generation & 1) * OFFSET_SLOT);
+        offsets.put(slot);
+        offsetsSynced = false;
+
+        if (System.nanoTime() - offsetsSyncedAt >= OFFSET_SYNC_INTERVAL) {
+            syncOffsets();
+        }
+    }
+
+    private void syncOffsets() {
+        if (!offsetsSynced) {
+            offsets.force();
+            offsetsSynced = true;
+            offsetsSyncedAt = System.nanoTime();
+        }
+    }
+
+    private List<Long> segmentSequences() {
+        String[] names = directory.list(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(SEGMENT_SUFFIX);
+            }
+        });
+
+        List<Long> sequences = new ArrayList<Long>();
+
+        if (names != null) {
+            for (String name : names) {
+                try {
+                    sequences.add(Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())));
+
+                } catch (NumberFormatException e) {
+                    // Not one of ours
+
+                }
+            }
+        }
+
+        Collections.sort(sequences);
+        return sequences;
+    }
+
+    private File segmentFile(long sequence) {
+        return new File(directory, String.format("%019d", sequence) + SEGMENT_SUFFIX);
+    }
+
+    /**
+     * @param size the size to map, extending the file if needed, or -1 to map the whole file
+     */
+    private static MappedByteBuffer map(File file, int size) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+
+        try {
+            // The mapping stays valid once the file is closed
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size < 0 ? raf.length() : size);
+
+        } finally {
+            raf.close();
+
+        }
+    }
+}
@@ -0,0 +1,16 @@
+package org.graylog2.scribe.logbackappender;
+
+/**
+ * How {@link ScribeClientPool} picks a connection for the next batch.
+ */
+public enum DispatchStrategy {
+    /**
+     * Cycle through the connections in order.
+     */
+    ROUND_ROBIN,
+
+    /**
+     * Prefer a connection to the host with the fewest batches currently in flight.
+     */
+    LEAST_OUTSTANDING
+}
@@ -1,31 +1,45 @@
 package org.graylog2.scribe.logbackappender;
 
-import com.google.gson.FieldNamingPolicy;
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
+import ch.qos.logback.core.spi.DeferredProcessingAware;
 
+import java.lang.reflect.Method;
 import java.util.Map;
 
 /**
  * @author Lee Butts
  */
 public abstract class GELFConverter<E> {
+    // Don't let one huge event pin a huge buffer to every logging thread
+    private static final int MAX_RETAINED_BUFFER = 64 * 1024;
+
     protected final String facility;
     protected final int shortMessageLength;
     protected final String hostname;
     protected final String processId;
-    protected final Gson gson;
+
+    // Whether a subclass still builds its fields as a map, see mapFields
+    private final boolean mapsFields;
+
+    private final ThreadLocal<GELFJsonWriter> writers = new ThreadLocal<GELFJsonWriter>() {
+        @Override
+        protected GELFJsonWriter initialValue() {
+            return new GELFJsonWriter();
+        }
+    };
+
+    private final ThreadLocal<UTF8Buffer> buffers = new ThreadLocal<UTF8Buffer>() {
+        @Override
+        protected UTF8Buffer initialValue() {
+            return new UTF8Buffer(1024);
+        }
+    };
 
     public GELFConverter(String facility, String processId, int shortMessageLength, String hostname) {
         this.facility = facility;
         this.processId = processId;
         this.shortMessageLength = shortMessageLength;
         this.hostname = hostname;
-
-        // Init GSON for underscores
-        GsonBuilder gsonBuilder = new GsonBuilder();
-        gsonBuilder.setFieldNamingPolicy(FieldNamingPolicy.LOWER_CASE_WITH_UNDERSCORES);
-        this.gson = gsonBuilder.create();
+        this.mapsFields = overridesMapFields(getClass());
     }
 
     /**
@@ -35,23 +49,114 @@ public abstract class GELFConverter<E> {
      * @return The log event converted into GELF JSON
      */
     public String toGelf(E logEvent) {
+        UTF8Buffer buffer = buffers.get();
+
         try {
-            return gson.toJson(mapFields(logEvent));
+            toGelf(logEvent, buffer);
+            return buffer.toString();
+
+        } finally {
+            buffer.clear(MAX_RETAINED_BUFFER);
+
+        }
+    }
+
+    /**
+     * Converts a log event into GELF JSON, appending it to the buffer as UTF-8.
+     *
+     * @param logEvent The log event we're converting
+     * @param out      The buffer receiving the GELF JSON
+     */
+    public void toGelf(E logEvent, UTF8Buffer out) {
+        int start = out.length();
+
+        try {
+            if (mapsFields) {
+                Map<String, Object> fields = mapFields(logEvent);
+                writeMap(fields, writers.get().begin(out));
+
+            } else {
+                writeFields(logEvent, writers.get().begin(out));
+
+            }
+
+            writers.get().end();
+
         } catch (RuntimeException e) {
+            // Drop the partially written event and the writer it may have left mid-object
+            out.truncate(start);
+            writers.remove();
             throw new IllegalStateException("Error creating JSON message", e);
         }
     }
 
-    protected abstract Map<String, Object> mapFields(E logEvent);
+    /**
+     * Captures, on the logging thread, whatever the conversion reads from that thread, so the event can be converted
+     * on another one. Unlike {@link DeferredProcessingAware#prepareForDeferredProcessing()}, converters may leave work
+     * that doesn't depend on the logging thread, such as formatting the message, to the conversion.
+     */
+    public void prepareForDeferredConversion(E logEvent) {
+        if (logEvent instanceof DeferredProcessingAware) {
+            ((DeferredProcessingAware) logEvent).prepareForDeferredProcessing();
+        }
+    }
+
+    /**
+     * Writes the GELF fields of the event, between the already opened and yet to be closed JSON object. Converters
+     * must override either this or {@link #mapFields(Object)}.
+     */
+    protected void writeFields(E logEvent, GELFJsonWriter writer) {
+        throw new UnsupportedOperationException(getClass().getName() + " overrides neither writeFields nor mapFields");
+    }
+
+    /**
+     * Creates a map of the GELF fields of the event. Converters overriding this are still supported, their maps are
+     * written as Gson wrote them, but building the map costs far more than writing the fields directly.
+     * <p/>
+     * By default returns what {@link #writeFields(Object, GELFJsonWriter)} writes, read back into a map, so subclasses
+     * of converters that have moved on to writing their fields can still add to the map of their superclass.
+     *
+     * @deprecated override {@link #writeFields(Object, GELFJsonWriter)} instead
+     */
+    @Deprecated
+    protected Map<String, Object> mapFields(E logEvent) {
+        UTF8Buffer buffer = new UTF8Buffer(1024);
+        GELFJsonWriter writer = new GELFJsonWriter().begin(buffer);
+        writeFields(logEvent, writer);
+        writer.end();
+
+        return GELFJsonReader.readObject(buffer.toString());
+    }
+
+    private static void writeMap(Map<String, Object> fields, GELFJsonWriter writer) {
+        for (Map.Entry<String, Object> field : fields.entrySet()) {
+            writer.valueField(field.getKey(), field.getValue());
+        }
+    }
+
+    private static boolean overridesMapFields(Class<?> type) {
+        for (Class<?> c = type; c != GELFConverter.class; c = c.getSuperclass()) {
+            for (Method method : c.getDeclaredMethods()) {
+                if ("mapFields".equals(method.getName()) && method.getParameterTypes().length == 1) {
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
 
     protected String truncateToShortMessage(String fullMessage) {
+        return fullMessage.substring(0, shortMessageLength(fullMessage));
+    }
+
+    /**
+     * @return the length of the short message taken from the start of the full message
+     */
+    protected int shortMessageLength(String fullMessage) {
         int newLine = fullMessage.indexOf("\n");
         int shortLength = Math.min(shortMessageLength, newLine > 0 ? newLine : Integer.MAX_VALUE);
 
-        if (fullMessage.length() > shortLength) {
-            return fullMessage.substring(0, shortLength);
-        }
-
-        return fullMessage;
+        return Math.min(fullMessage.length(), shortLength);
     }
 }
@@ -7,8 +7,12 @@ import ch.qos.logback.classic.util.LevelToSyslogSeverity;
 import ch.qos.logback.core.net.SyslogConstants;
 import org.slf4j.Marker;
 
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * Responsible for formatting a log event into a GELF message
@@ -19,10 +23,34 @@ import java.util.Map;
  * @author Anthony Marcar
  */
 public class GELFILoggingEventConverter extends GELFConverter<ILoggingEvent> {
+    private static final byte[] FULL_MESSAGE = GELFJsonWriter.encodeName("full_message");
+    private static final byte[] SHORT_MESSAGE = GELFJsonWriter.encodeName("short_message");
+    private static final byte[] TIMESTAMP = GELFJsonWriter.encodeName("timestamp");
+    private static final byte[] LEVEL = GELFJsonWriter.encodeName("level");
+    private static final byte[] LOGGER = GELFJsonWriter.encodeName("_logger");
+    private static final byte[] THREAD = GELFJsonWriter.encodeName("_thread");
+    private static final List<String> STANDARD_FIELDS = Arrays.asList("version", "facility", "host", "_pid",
+            "full_message", "short_message", "timestamp", "level", "_logger", "_thread");
+
+    private static final int THROWABLE_CACHE_SIZE = Integer.getInteger("GELFILoggingEventConverter.THROWABLE_CACHE_SIZE", 256);
+    private static final int THROWABLE_CACHE_MAX_LENGTH = Integer.getInteger("GELFILoggingEventConverter.THROWABLE_CACHE_MAX_LENGTH", 64 * 1024);
+
     private final boolean useLoggerName;
     private final boolean useThreadName;
-    private final Map<String, String> additionalFields;
     private final ExtendedThrowableProxyConverter converter = new ExtendedThrowableProxyConverter();
+    private final ThrowableRenderCache throwableRenders = new ThrowableRenderCache(THROWABLE_CACHE_SIZE, THROWABLE_CACHE_MAX_LENGTH);
+
+    // The fields that are the same on every event, and the MDC keys with the encoded names they are written under
+    private final byte[] staticFields;
+    private final String[] mdcKeys;
+    private final String[] mdcFields;
+    private final byte[][] mdcFieldNames;
+
+    // MDC values replace standard fields and earlier MDC values of the same name, as they did when put in a map. For
+    // each MDC key, whether it is written under a standard field's name and the next key written under the same name
+    private final boolean[] mdcReplacesStandard;
+    private final int[] mdcReplacedBy;
+    private final boolean mdcReplaces;
 
     public GELFILoggingEventConverter(String facility,
                                       boolean useLoggerName,
@@ -35,83 +63,209 @@ public class GELFILoggingEventConverter extends GELFConverter<ILoggingEvent> {
 
         this.useLoggerName = useLoggerName;
         this.useThreadName = useThreadName;
-        this.additionalFields = additionalFields;
+        this.staticFields = GELFJsonWriter.encodeFields(
+                "version", "1.0",
+                "facility", facility,
+                "host", hostname,
+                "_pid", processId
+        );
+
+        this.mdcKeys = new String[additionalFields.size()];
+        this.mdcFields = new String[additionalFields.size()];
+        this.mdcFieldNames = new byte[additionalFields.size()][];
+        this.mdcReplacesStandard = new boolean[additionalFields.size()];
+        this.mdcReplacedBy = new int[additionalFields.size()];
+        boolean replaces = false;
+        int i = 0;
+
+        for (Map.Entry<String, String> additionalField : additionalFields.entrySet()) {
+            mdcKeys[i] = additionalField.getKey();
+            mdcFields[i] = additionalField.getValue();
+            mdcFieldNames[i] = GELFJsonWriter.encodeName(additionalField.getValue());
+            mdcReplacesStandard[i] = STANDARD_FIELDS.contains(additionalField.getValue());
+            mdcReplacedBy[i] = -1;
+            replaces |= mdcReplacesStandard[i];
+
+            for (int j = 0; j < i; j++) {
+                if (mdcReplacedBy[j] < 0 && mdcFields[j].equals(mdcFields[i])) {
+                    mdcReplacedBy[j] = i;
+                    replaces = true;
+                }
+            }
+
+            i++;
+        }
+
+        this.mdcReplaces = replaces;
+
         converter.start();
 
     }
 
     /**
-     * Creates a map of properties that represent the GELF message.
+     * Writes the properties that represent the GELF message.
      *
      * @param logEvent The log event
-     * @return map of gelf properties
+     * @param writer   The writer receiving the gelf properties
      */
     @Override
-    protected Map<String, Object> mapFields(ILoggingEvent logEvent) {
-        Map<String, Object> map = new HashMap<String, Object>();
+    protected void writeFields(ILoggingEvent logEvent, GELFJsonWriter writer) {
+        Map<String, String> mdc = logEvent.getMDCPropertyMap();
+        Set<String> replaced = mdcReplaces ? replacedFields(mdc) : Collections.<String>emptySet();
 
-        map.put("facility", facility);
-        map.put("host", hostname);
-        map.put("_pid", processId);
+        if (replaced.isEmpty()) {
+            writer.fields(staticFields);
+        } else {
+            writeUnlessReplaced(writer, replaced, "version", "1.0");
+            writeUnlessReplaced(writer, replaced, "facility", facility);
+            writeUnlessReplaced(writer, replaced, "host", hostname);
+            writeUnlessReplaced(writer, replaced, "_pid", processId);
+        }
 
         String message = logEvent.getFormattedMessage();
 
         // Format up the stack trace
         IThrowableProxy proxy = logEvent.getThrowableProxy();
         if (proxy != null) {
-            String fullMessage = message + "\n" + converter.convert(logEvent);
-            map.put("full_message", fullMessage);
-            map.put("short_message", truncateToShortMessage(message + ", " + proxy.getClassName() + ": " + proxy.
-                    getMessage()));
+            if (!replaced.contains("full_message")) {
+                writer.beginStringField(FULL_MESSAGE)
+                        .append(message)
+                        .append("\n")
+                        .append(renderThrowable(logEvent, proxy))
+                        .endStringField();
+            }
+            if (!replaced.contains("short_message")) {
+                writer.field(SHORT_MESSAGE, truncateToShortMessage(message + ", " + proxy.getClassName() + ": " + proxy.
+                        getMessage()));
+            }
         } else {
-            map.put("full_message", message);
-            map.put("short_message", truncateToShortMessage(message));
+            if (!replaced.contains("full_message")) {
+                writer.field(FULL_MESSAGE, message);
+            }
+            if (!replaced.contains("short_message")) {
+                writer.field(SHORT_MESSAGE, message, 0, shortMessageLength(message));
+            }
         }
 
         // Ever since version 0.9.6, GELF accepts timestamps in decimal form.
-        double logEventTimeTimeStamp = logEvent.getTimeStamp() / 1000.0;
-
-        map.put("timestamp", logEventTimeTimeStamp);
-        map.put("version", "1.0");
-        map.put("level", LevelToSyslogSeverity.convert(logEvent));
+        if (!replaced.contains("timestamp")) {
+            writer.timestampField(TIMESTAMP, logEvent.getTimeStamp());
+        }
 
         // If the event was raised by LoggingErrorListener with the alert flag set, bump the severity up to ALERT
         Marker eventsMarker = logEvent.getMarker();
-        if (eventsMarker != null) {
-            if (eventsMarker.contains("ALERT")) {
-                map.put("level", SyslogConstants.ALERT_SEVERITY);
+        if (!replaced.contains("level")) {
+            if (eventsMarker != null && eventsMarker.contains("ALERT")) {
+                writer.field(LEVEL, SyslogConstants.ALERT_SEVERITY);
+            } else {
+                writer.field(LEVEL, LevelToSyslogSeverity.convert(logEvent));
             }
         }
 
-        additionalFields(map, logEvent);
+        additionalFields(writer, logEvent, mdc, replaced);
+    }
 
-        return map;
+    /**
+     * Captures the thread name and MDC, leaving the message to be formatted with its arguments by the conversion. The
+     * throwable has already been captured when the event was created.
+     */
+    @Override
+    public void prepareForDeferredConversion(ILoggingEvent logEvent) {
+        logEvent.getThreadName();
+        logEvent.getMDCPropertyMap();
+    }
+
+    /**
+     * @return how many stack traces were taken from the render cache
+     */
+    public long getThrowableCacheHits() {
+        return throwableRenders.getHits();
+    }
+
+    /**
+     * @return how many stack traces had to be rendered
+     */
+    public long getThrowableCacheMisses() {
+        return throwableRenders.getMisses();
+    }
+
+    private String renderThrowable(ILoggingEvent logEvent, IThrowableProxy proxy) {
+        ThrowableRenderCache.Lookup lookup = throwableRenders.lookup(proxy);
+        String render = throwableRenders.get(lookup);
+
+        if (render == null) {
+            render = converter.convert(logEvent);
+            throwableRenders.put(lookup, render);
+        }
+
+        return render;
+    }
+
+    /**
+     * @return the names of the standard fields the MDC has values for
+     */
+    private Set<String> replacedFields(Map<String, String> mdc) {
+        Set<String> replaced = null;
+
+        if (mdc != null) {
+            for (int i = 0; i < mdcKeys.length; i++) {
+                if (mdcReplacesStandard[i] && mdc.get(mdcKeys[i]) != null) {
+                    if (replaced == null) {
+                        replaced = new HashSet<String>();
+                    }
+
+                    replaced.add(mdcFields[i]);
+                }
+            }
+        }
+
+        return replaced != null ? replaced : Collections.<String>emptySet();
+    }
+
+    private static void writeUnlessReplaced(GELFJsonWriter writer, Set<String> replaced, String name, String value) {
+        if (!replaced.contains(name)) {
+            writer.field(name, value);
+        }
     }
 
     /**
      * Converts the additional fields into proper GELF JSON
      *
-     * @param map         The map of additional fields
+     * @param writer      The writer receiving the additional fields
      * @param eventObject The Logging event that we are converting to GELF
+     * @param mdc         The MDC of the event
+     * @param replaced    The standard fields taken from the MDC instead
      */
-    private void additionalFields(Map<String, Object> map, ILoggingEvent eventObject) {
-        if (useLoggerName) {
-            map.put("_logger", eventObject.getLoggerName());
+    private void additionalFields(GELFJsonWriter writer, ILoggingEvent eventObject, Map<String, String> mdc, Set<String> replaced) {
+        if (useLoggerName && !replaced.contains("_logger")) {
+            writer.field(LOGGER, eventObject.getLoggerName());
         }
 
-        if (useThreadName) {
-            map.put("_thread", eventObject.getThreadName());
+        if (useThreadName && !replaced.contains("_thread")) {
+            writer.field(THREAD, eventObject.getThreadName());
         }
 
-        Map<String, String> mdc = eventObject.getMDCPropertyMap();
-
         if (mdc != null) {
-            for (String key : additionalFields.keySet()) {
-                String field = mdc.get(key);
-                if (field != null) {
-                    map.put(additionalFields.get(key), field);
+            for (int i = 0; i < mdcKeys.length; i++) {
+                String value = mdc.get(mdcKeys[i]);
+
+                if (value != null && !isReplaced(mdc, i)) {
+                    writer.field(mdcFieldNames[i], value);
                 }
             }
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * @return whether a later MDC key written under the same name has a value
+     */
+    private boolean isReplaced(Map<String, String> mdc, int index) {
+        for (int i = mdcReplacedBy[index]; i >= 0; i = mdcReplacedBy[i]) {
+            if (mdc.get(mdcKeys[i]) != null) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+}
@@ -0,0 +1,155 @@
+package org.graylog2.scribe.logbackappender;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Reads the flat JSON objects written by {@link GELFJsonWriter} back into a map, for converters still built on
+ * {@link GELFConverter#mapFields(Object)}. Strings are read as Strings, integers as Longs and other numbers as Doubles.
+ */
+class GELFJsonReader {
+    private final String json;
+    private int position;
+
+    private GELFJsonReader(String json) {
+        this.json = json;
+    }
+
+    static Map<String, Object> readObject(String json) {
+        return new GELFJsonReader(json).object();
+    }
+
+    private Map<String, Object> object() {
+        Map<String, Object> fields = new LinkedHashMap<String, Object>();
+
+        expect('{');
+
+        if (peek() == '}') {
+            position++;
+            return fields;
+        }
+
+        while (true) {
+            String name = string();
+            expect(':');
+            fields.put(name, value());
+
+            if (peek() == '}') {
+                position++;
+                return fields;
+            }
+
+            expect(',');
+        }
+    }
+
+    private Object value() {
+        char c = peek();
+
+        if (c == '"') {
+            return string();
+        }
+
+        if (json.startsWith("true", position)) {
+            position += 4;
+            return Boolean.TRUE;
+        }
+
+        if (json.startsWith("false", position)) {
+            position += 5;
+            return Boolean.FALSE;
+        }
+
+        if (json.startsWith("null", position)) {
+            position += 4;
+            return null;
+        }
+
+        int start = position;
+        boolean integer = true;
+
+        while (position < json.length() && "+-0123456789.eE".indexOf(json.charAt(position)) >= 0) {
+            integer &= json.charAt(position) != '.' && json.charAt(position) != 'e' && json.charAt(position) != 'E';
+            position++;
+        }
+
+        if (start == position) {
+            throw error("Expected a value");
+        }
+
+        String number = json.substring(start, position);
+        return integer ? (Object) Long.valueOf(number) : Double.valueOf(number);
+    }
+
+    private String string() {
+        expect('"');
+        StringBuilder value = new StringBuilder();
+
+        while (true) {
+            char c = next();
+
+            if (c == '"') {
+                return value.toString();
+            }
+
+            if (c != '\\') {
+                value.append(c);
+                continue;
+            }
+
+            c = next();
+
+            switch (c) {
+                case 'b':
+                    value.append('\b');
+                    break;
+                case 'f':
+                    value.append('\f');
+                    break;
+                case 'n':
+                    value.append('\n');
+                    break;
+                case 'r':
+                    value.append('\r');
+                    break;
+                case 't':
+                    value.append('\t');
+                    break;
+                case 'u':
+                    if (position + 4 > json.length()) {
+                        throw error("Truncated escape");
+                    }
+
+                    value.append((char) Integer.parseInt(json.substring(position, position + 4), 16));
+                    position += 4;
+                    break;
+                default:
+                    value.append(c);
+            }
+        }
+    }
+
+    private void expect(char expected) {
+        if (next() != expected) {
+            throw error("Expected '" + expected + "'");
+        }
+    }
+
+    private char peek() {
+        if (position >= json.length()) {
+            throw error("Unexpected end");
+        }
+
+        return json.charAt(position);
+    }
+
+    private char next() {
+        char c = peek();
+        position++;
+        return c;
+    }
+
+    private IllegalArgumentException error(String message) {
+        return new IllegalArgumentException(message + " at " + position + " of " + json);
+    }
+}
@@ -0,0 +1,358 @@
+package org.graylog2.scribe.logbackappender;
+
+import java.util.Arrays;
+
+/**
+ * Streams a flat GELF JSON object straight into a reusable buffer as UTF-8, without building an intermediate map or
+ * String.
+ * <p/>
+ * Strings are escaped exactly as Gson's default (HTML safe) JsonWriter escapes them and null values are omitted, so
+ * the output matches what the previous map + Gson path produced. Unpaired surrogates are encoded as '?', as
+ * String.getBytes("UTF-8") did when the protocol encoded the message.
+ * <p/>
+ * Fields that are the same on every event, and the names of the others, can be encoded once up front with
+ * {@link #encodeFields(String...)} and {@link #encodeName(String)}, so only the values that change are escaped per
+ * event.
+ */
+public class GELFJsonWriter {
+    private static final byte[] HEX = "0123456789abcdef".getBytes(UTF8Buffer.UTF8);
+    private static final byte[][] REPLACEMENTS = new byte[128][];
+    private static final byte[] LINE_SEPARATOR = ascii("\\u2028");
+    private static final byte[] PARAGRAPH_SEPARATOR = ascii("\\u2029");
+    private static final byte[] MIN_LONG = ascii(String.valueOf(Long.MIN_VALUE));
+
+    static {
+        for (int c = 0; c < 0x20; c++) {
+            REPLACEMENTS[c] = new byte[]{'\\', 'u', '0', '0', HEX[c >> 4], HEX[c & 0xf]};
+        }
+
+        REPLACEMENTS['"'] = ascii("\\\"");
+        REPLACEMENTS['\\'] = ascii("\\\\");
+        REPLACEMENTS['\t'] = ascii("\\t");
+        REPLACEMENTS['\b'] = ascii("\\b");
+        REPLACEMENTS['\n'] = ascii("\\n");
+        REPLACEMENTS['\r'] = ascii("\\r");
+        REPLACEMENTS['\f'] = ascii("\\f");
+        REPLACEMENTS['<'] = ascii("\\u003c");
+        REPLACEMENTS['>'] = ascii("\\u003e");
+        REPLACEMENTS['&'] = ascii("\\u0026");
+        REPLACEMENTS['='] = ascii("\\u003d");
+        REPLACEMENTS['\''] = ascii("\\u0027");
+    }
+
+    private final byte[] digits = new byte[19];
+    private UTF8Buffer out;
+    private boolean firstField;
+
+    /**
+     * Encodes fields once, for writing them with {@link #fields(byte[])}. Fields with null values are left out.
+     *
+     * @param namesAndValues alternating field names and values
+     */
+    public static byte[] encodeFields(String... namesAndValues) {
+        GELFJsonWriter writer = new GELFJsonWriter();
+        UTF8Buffer buffer = new UTF8Buffer(256);
+        writer.out = buffer;
+        writer.firstField = true;
+
+        for (int i = 0; i + 1 < namesAndValues.length; i += 2) {
+            writer.field(namesAndValues[i], namesAndValues[i + 1]);
+        }
+
+        return Arrays.copyOf(buffer.array(), buffer.length());
+    }
+
+    /**
+     * Encodes a field name once, quoted and followed by the colon, for the field methods taking an encoded name.
+     */
+    public static byte[] encodeName(String name) {
+        GELFJsonWriter writer = new GELFJsonWriter();
+        UTF8Buffer buffer = new UTF8Buffer(name.length() + 3);
+        writer.out = buffer;
+        writer.string(name, 0, name.length());
+        buffer.write(':');
+
+        return Arrays.copyOf(buffer.array(), buffer.length());
+    }
+
+    /**
+     * Opens a new JSON object at the end of the given buffer.
+     */
+    public GELFJsonWriter begin(UTF8Buffer out) {
+        this.out = out;
+        out.write('{');
+        firstField = true;
+        return this;
+    }
+
+    /**
+     * Closes the JSON object.
+     */
+    public GELFJsonWriter end() {
+        out.write('}');
+        out = null;
+        return this;
+    }
+
+    /**
+     * Writes fields encoded by {@link #encodeFields(String...)}.
+     */
+    public GELFJsonWriter fields(byte[] encodedFields) {
+        if (encodedFields.length > 0) {
+            separator();
+            out.write(encodedFields);
+        }
+        return this;
+    }
+
+    public GELFJsonWriter field(String name, String value) {
+        if (value != null) {
+            name(name);
+            string(value, 0, value.length());
+        }
+        return this;
+    }
+
+    /**
+     * @param encodedName a name encoded by {@link #encodeName(String)}
+     */
+    public GELFJsonWriter field(byte[] encodedName, String value) {
+        if (value != null) {
+            name(encodedName);
+            string(value, 0, value.length());
+        }
+        return this;
+    }
+
+    /**
+     * Writes the [start, end) range of the value, avoiding a substring for truncated fields.
+     */
+    public GELFJsonWriter field(String name, CharSequence value, int start, int end) {
+        if (value != null) {
+            name(name);
+            string(value, start, end);
+        }
+        return this;
+    }
+
+    /**
+     * @param encodedName a name encoded by {@link #encodeName(String)}
+     */
+    public GELFJsonWriter field(byte[] encodedName, CharSequence value, int start, int end) {
+        if (value != null) {
+            name(encodedName);
+            string(value, start, end);
+        }
+        return this;
+    }
+
+    public GELFJsonWriter field(String name, long value) {
+        name(name);
+        number(value);
+        return this;
+    }
+
+    /**
+     * @param encodedName a name encoded by {@link #encodeName(String)}
+     */
+    public GELFJsonWriter field(byte[] encodedName, long value) {
+        name(encodedName);
+        number(value);
+        return this;
+    }
+
+    /**
+     * Writes a map value as Gson did: Strings quoted, numbers and Booleans as they are, anything else as its
+     * toString(). Null values are omitted.
+     */
+    public GELFJsonWriter valueField(String name, Object value) {
+        if (value == null) {
+            return this;
+        }
+
+        if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            return field(name, ((Number) value).longValue());
+        }
+
+        if (value instanceof Number || value instanceof Boolean) {
+            if (value instanceof Double && (((Double) value).isNaN() || ((Double) value).isInfinite())
+                    || value instanceof Float && (((Float) value).isNaN() || ((Float) value).isInfinite())) {
+                throw new IllegalArgumentException("JSON forbids NaN and infinities: " + value);
+            }
+
+            name(name);
+            out.write(ascii(value.toString()));
+            return this;
+        }
+
+        return field(name, value.toString());
+    }
+
+    /**
+     * Writes a millisecond timestamp as decimal seconds, e.g. 1381234567.891
+     */
+    public GELFJsonWriter timestampField(String name, long millis) {
+        name(name);
+        timestamp(millis);
+        return this;
+    }
+
+    /**
+     * @param encodedName a name encoded by {@link #encodeName(String)}
+     */
+    public GELFJsonWriter timestampField(byte[] encodedName, long millis) {
+        name(encodedName);
+        timestamp(millis);
+        return this;
+    }
+
+    private void timestamp(long millis) {
+        if (millis < 0) {
+            out.write(ascii(String.valueOf(millis / 1000.0)));
+            return;
+        }
+
+        int fraction = (int) (millis % 1000);
+
+        number(millis / 1000);
+        out.ensureCapacity(out.length() + 4);
+        out.put('.');
+        out.put('0' + fraction / 100);
+        out.put('0' + fraction / 10 % 10);
+        out.put('0' + fraction % 10);
+    }
+
+    /**
+     * Opens a string field whose value is written in pieces with {@link #append(CharSequence)}.
+     */
+    public GELFJsonWriter beginStringField(String name) {
+        name(name);
+        out.write('"');
+        return this;
+    }
+
+    /**
+     * @param encodedName a name encoded by {@link #encodeName(String)}
+     */
+    public GELFJsonWriter beginStringField(byte[] encodedName) {
+        name(encodedName);
+        out.write('"');
+        return this;
+    }
+
+    public GELFJsonWriter append(CharSequence value) {
+        escape(value, 0, value.length());
+        return this;
+    }
+
+    public GELFJsonWriter endStringField() {
+        out.write('"');
+        return this;
+    }
+
+    private void name(String name) {
+        separator();
+        string(name, 0, name.length());
+        out.write(':');
+    }
+
+    private void name(byte[] encodedName) {
+        separator();
+        out.write(encodedName);
+    }
+
+    private void separator() {
+        if (!firstField) {
+            out.write(',');
+        }
+
+        firstField = false;
+    }
+
+    private void string(CharSequence value, int start, int end) {
+        out.write('"');
+        escape(value, start, end);
+        out.write('"');
+    }
+
+    private void number(long value) {
+        if (value == Long.MIN_VALUE) {
+            out.write(MIN_LONG);
+            return;
+        }
+
+        if (value < 0) {
+            out.write('-');
+            value = -value;
+        }
+
+        int position = digits.length;
+
+        do {
+            digits[--position] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value > 0);
+
+        out.write(digits, position, digits.length - position);
+    }
+
+    private void escape(CharSequence value, int start, int end) {
+        // A char encodes to at most 3 bytes, longer escapes top the reservation up as they are written
+        out.ensureCapacity(out.length() + (end - start) * 3);
+
+        for (int i = start; i < end; i++) {
+            char c = value.charAt(i);
+
+            if (c < 0x80) {
+                byte[] replacement = REPLACEMENTS[c];
+
+                if (replacement == null) {
+                    out.put(c);
+                } else {
+                    write(replacement, end - i);
+                }
+
+            } else if (c < 0x800) {
+                out.put(0xc0 | c >> 6);
+                out.put(0x80 | c & 0x3f);
+
+            } else if (c == '\u2028') {
+                write(LINE_SEPARATOR, end - i);
+
+            } else if (c == '\u2029') {
+                write(PARAGRAPH_SEPARATOR, end - i);
+
+            } else if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                out.put(0xf0 | codePoint >> 18);
+                out.put(0x80 | codePoint >> 12 & 0x3f);
+                out.put(0x80 | codePoint >> 6 & 0x3f);
+                out.put(0x80 | codePoint & 0x3f);
+
+            } else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+                out.put('?');
+
+            } else {
+                out.put(0xe0 | c >> 12);
+                out.put(0x80 | c >> 6 & 0x3f);
+                out.put(0x80 | c & 0x3f);
+
+            }
+        }
+    }
+
+    /**
+     * Writes an escape sequence, keeping room reserved for the remaining chars of the current run.
+     */
+    private void write(byte[] replacement, int remainingChars) {
+        out.ensureCapacity(out.length() + replacement.length + remainingChars * 3);
+
+        for (byte b : replacement) {
+            out.put(b);
+        }
+    }
+
+    private static byte[] ascii(String value) {
+        return value.getBytes(UTF8Buffer.UTF8);
+    }
+}
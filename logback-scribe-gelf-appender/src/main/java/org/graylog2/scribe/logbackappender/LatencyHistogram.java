@@ -0,0 +1,105 @@
+package org.graylog2.scribe.logbackappender;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock free latency histogram for the MBean, so percentiles are available without a metrics library on the classpath.
+ * <p/>
+ * Latencies are counted in microsecond buckets, linear below 8 and then 8 per power of two, which keeps each bucket
+ * within 12.5% of the latencies it holds. Counts cover the current and the previous interval, so percentiles follow
+ * changes within a couple of intervals rather than averaging over the appender's whole life.
+ */
+class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final long intervalNanos;
+
+    private volatile AtomicLongArray current = new AtomicLongArray(BUCKETS);
+    private volatile AtomicLongArray previous = new AtomicLongArray(BUCKETS);
+    private volatile long rotateAt;
+
+    LatencyHistogram(long interval, TimeUnit unit) {
+        this.intervalNanos = unit.toNanos(interval);
+        this.rotateAt = System.nanoTime() + intervalNanos;
+    }
+
+    void record(long nanos) {
+        rotateIfDue();
+        current.incrementAndGet(bucket(TimeUnit.NANOSECONDS.toMicros(nanos)));
+    }
+
+    /**
+     * @param quantile between 0 and 1
+     * @return the latency in microseconds that the given fraction of recent calls took at most, rounded up to its
+     * bucket, or 0 if there were none
+     */
+    long getPercentile(double quantile) {
+        rotateIfDue();
+
+        AtomicLongArray current = this.current;
+        AtomicLongArray previous = this.previous;
+        long[] counts = new long[BUCKETS];
+        long total = 0;
+
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = current.get(i) + previous.get(i);
+            total += counts[i];
+        }
+
+        if (total == 0) {
+            return 0;
+        }
+
+        long rank = Math.max(1, (long) Math.ceil(quantile * total));
+        long seen = 0;
+
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+
+            if (seen >= rank) {
+                return upperBound(i);
+            }
+        }
+
+        return upperBound(BUCKETS - 1);
+    }
+
+    private void rotateIfDue() {
+        if (System.nanoTime() - rotateAt < 0) {
+            return;
+        }
+
+        synchronized (this) {
+            long now = System.nanoTime();
+
+            if (now - rotateAt >= 0) {
+                previous = current;
+                current = new AtomicLongArray(BUCKETS);
+                rotateAt = now + intervalNanos;
+            }
+        }
+    }
+
+    private static int bucket(long micros) {
+        if (micros < SUB_BUCKETS) {
+            return (int) Math.max(0, micros);
+        }
+
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        int subBucket = (int) (micros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    private static long upperBound(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+
+        int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long subBucket = bucket % SUB_BUCKETS;
+        return ((SUB_BUCKETS + subBucket + 1) << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+}
@@ -0,0 +1,128 @@
+package org.graylog2.scribe.logbackappender;
+
+import scribe.thrift.LogEntry;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Log entries of a single category whose messages have already been encoded to UTF-8, back to back in one reusable
+ * buffer. {@link ScribeConnection} writes them to the frame as they are rather than encoding LogEntry Strings again.
+ * <p/>
+ * Messages of at least the compression threshold are compressed as they are committed, so the batch limits count the
+ * bytes actually sent.
+ */
+class LogEntryBatch {
+    private final String category;
+    private final ByteBuffer categoryBytes;
+    private final UTF8Buffer messages = new UTF8Buffer(4096);
+    private final MessageCompressor compressor;
+    private final int compressionThreshold;
+
+    private int[] ends = new int[64];
+    private int count;
+    private ByteBuffer view;
+
+    LogEntryBatch(String category, Compression compression, int compressionThreshold) {
+        this.category = category;
+        this.categoryBytes = ByteBuffer.wrap(category.getBytes(UTF8Buffer.UTF8));
+        this.compressor = MessageCompressor.create(compression);
+        this.compressionThreshold = compressionThreshold;
+    }
+
+    /**
+     * @return the buffer the next message should be appended to, followed by a call to {@link #commit()}
+     */
+    UTF8Buffer messages() {
+        return messages;
+    }
+
+    /**
+     * Ends the message appended since the last commit.
+     */
+    void commit() {
+        if (compressor != null && messages.length() - start(count) >= compressionThreshold) {
+            compressor.compress(messages, start(count));
+        }
+
+        if (count == ends.length) {
+            int[] grown = new int[count * 2];
+            System.arraycopy(ends, 0, grown, 0, count);
+            ends = grown;
+        }
+
+        ends[count++] = messages.length();
+    }
+
+    int size() {
+        return count;
+    }
+
+    boolean isEmpty() {
+        return count == 0;
+    }
+
+    /**
+     * @return the encoded size of the first n entries, as counted against the batch byte limit
+     */
+    int bytes(int n) {
+        return n == 0 ? 0 : n * categoryBytes.remaining() + ends[n - 1];
+    }
+
+    ByteBuffer category() {
+        return categoryBytes;
+    }
+
+    /**
+     * @return a view of the encoded message, only valid until the next call
+     */
+    ByteBuffer message(int index) {
+        if (view == null || view.array() != messages.array()) {
+            view = ByteBuffer.wrap(messages.array());
+        }
+
+        view.clear();
+        view.position(start(index));
+        view.limit(ends[index]);
+        return view;
+    }
+
+    /**
+     * Decodes an entry, for reporting it.
+     */
+    LogEntry entry(int index) {
+        int start = start(index);
+        int length = ends[index] - start;
+        return new LogEntry(category, compressor == null ? messages.toString(start, length) : compressor.toString(messages.array(), start, length));
+    }
+
+    /**
+     * Drops the first n entries, keeping the rest.
+     */
+    void removeFirst(int n) {
+        int offset = start(n);
+
+        messages.discard(offset);
+
+        for (int i = n; i < count; i++) {
+            ends[i - n] = ends[i] - offset;
+        }
+
+        count -= n;
+    }
+
+    /**
+     * Drops every entry, releasing the buffer if a large message grew it beyond maxRetainedBytes.
+     */
+    void clear(int maxRetainedBytes) {
+        messages.clear(maxRetainedBytes);
+        count = 0;
+
+        if (compressor != null) {
+            compressor.clear(maxRetainedBytes);
+        }
+    }
+
+    private int start(int index) {
+        return index == 0 ? 0 : ends[index - 1];
+    }
+}
@@ -0,0 +1,260 @@
+package org.graylog2.scribe.logbackappender;
+
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.lz4.LZ4SafeDecompressor;
+import net.jpountz.xxhash.XXHash32;
+import net.jpountz.xxhash.XXHashFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Compresses encoded messages in place, reusing its Deflater or LZ4 compressor and scratch buffer for every message.
+ * Not thread safe, each {@link LogEntryBatch} has its own.
+ */
+abstract class MessageCompressor {
+    protected final UTF8Buffer scratch = new UTF8Buffer(4096);
+
+    /**
+     * @return a compressor for the given setting, or null for {@link Compression#NONE}
+     */
+    static MessageCompressor create(Compression compression) {
+        switch (compression) {
+            case GZIP:
+                return new DeflateCompressor(true);
+
+            case ZLIB:
+                return new DeflateCompressor(false);
+
+            case LZ4:
+                return new LZ4FrameCompressor();
+
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Replaces the bytes of the buffer from start onwards with their compressed form, unless that is no smaller.
+     */
+    void compress(UTF8Buffer buffer, int start) {
+        int length = buffer.length() - start;
+
+        scratch.truncate(0);
+        compress(buffer.array(), start, length);
+
+        if (scratch.length() < length) {
+            buffer.truncate(start);
+            buffer.write(scratch.array(), 0, scratch.length());
+        }
+    }
+
+    /**
+     * Drops the scratch buffer if a large message grew it beyond maxRetainedBytes.
+     */
+    void clear(int maxRetainedBytes) {
+        scratch.clear(maxRetainedBytes);
+    }
+
+    /**
+     * Decodes a message sent by {@link #compress(UTF8Buffer, int)}, for reporting it.
+     */
+    String toString(byte[] bytes, int offset, int length) {
+        // GELF JSON always starts with the opening brace, anything else was compressed
+        if (length == 0 || bytes[offset] == '{') {
+            return new String(bytes, offset, length, UTF8Buffer.UTF8);
+        }
+
+        try {
+            return decompress(bytes, offset, length);
+
+        } catch (IOException e) {
+            return "<" + length + " compressed bytes: " + e + ">";
+
+        } catch (RuntimeException e) {
+            // Corrupt LZ4 blocks
+            return "<" + length + " compressed bytes: " + e + ">";
+
+        }
+    }
+
+    /**
+     * Appends the compressed form of the given bytes to the scratch buffer.
+     */
+    protected abstract void compress(byte[] bytes, int offset, int length);
+
+    protected abstract String decompress(byte[] bytes, int offset, int length) throws IOException;
+
+    protected void writeIntLE(int value) {
+        scratch.ensureCapacity(scratch.length() + 4);
+        scratch.put(value);
+        scratch.put(value >>> 8);
+        scratch.put(value >>> 16);
+        scratch.put(value >>> 24);
+    }
+
+    private static String readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+
+        while ((read = in.read(buffer)) >= 0) {
+            out.write(buffer, 0, read);
+        }
+
+        return new String(out.toByteArray(), UTF8Buffer.UTF8);
+    }
+
+    private static class DeflateCompressor extends MessageCompressor {
+        // No file name, modification time or extra flags, unknown OS
+        private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+        private final boolean gzip;
+        private final Deflater deflater;
+        private final CRC32 crc = new CRC32();
+
+        DeflateCompressor(boolean gzip) {
+            this.gzip = gzip;
+            // GZIP wraps raw deflate data in its own header and trailer, ZLIB's are written by the Deflater
+            this.deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, gzip);
+        }
+
+        @Override
+        protected void compress(byte[] bytes, int offset, int length) {
+            if (gzip) {
+                scratch.write(GZIP_HEADER);
+            }
+
+            deflater.reset();
+            deflater.setInput(bytes, offset, length);
+            deflater.finish();
+
+            while (!deflater.finished()) {
+                scratch.ensureCapacity(scratch.length() + Math.max(256, length / 2));
+                scratch.advance(deflater.deflate(scratch.array(), scratch.length(), scratch.array().length - scratch.length()));
+            }
+
+            if (gzip) {
+                crc.reset();
+                crc.update(bytes, offset, length);
+                writeIntLE((int) crc.getValue());
+                writeIntLE(length);
+            }
+        }
+
+        @Override
+        protected String decompress(byte[] bytes, int offset, int length) throws IOException {
+            InputStream in = new ByteArrayInputStream(bytes, offset, length);
+            return readFully(gzip ? new GZIPInputStream(in) : new InflaterInputStream(in));
+        }
+    }
+
+    /**
+     * Writes each message as a complete LZ4 frame with independent blocks and the content size, so the input can
+     * size its output up front.
+     */
+    private static class LZ4FrameCompressor extends MessageCompressor {
+        private static final int MAGIC = 0x184D2204;
+        // Version 01, independent blocks, content size present
+        private static final int FLG = 0x68;
+        // 4MB maximum block size
+        private static final int BD = 0x70;
+        private static final int MAX_BLOCK_SIZE = 4 * 1024 * 1024;
+        private static final int UNCOMPRESSED_BLOCK = 0x80000000;
+
+        private final net.jpountz.lz4.LZ4Compressor compressor = LZ4Factory.fastestInstance().fastCompressor();
+        private final XXHash32 xxhash = XXHashFactory.fastestInstance().hash32();
+
+        @Override
+        protected void compress(byte[] bytes, int offset, int length) {
+            writeIntLE(MAGIC);
+
+            int descriptor = scratch.length();
+            scratch.write(FLG);
+            scratch.write(BD);
+            writeIntLE(length);
+            writeIntLE(0);
+            scratch.write((xxhash.hash(scratch.array(), descriptor, scratch.length() - descriptor, 0) >> 8) & 0xff);
+
+            for (int position = offset; position < offset + length; position += MAX_BLOCK_SIZE) {
+                int blockLength = Math.min(MAX_BLOCK_SIZE, offset + length - position);
+                int maxCompressedLength = compressor.maxCompressedLength(blockLength);
+
+                scratch.ensureCapacity(scratch.length() + 4 + maxCompressedLength);
+                int compressedLength = compressor.compress(bytes, position, blockLength, scratch.array(), scratch.length() + 4, maxCompressedLength);
+
+                if (compressedLength < blockLength) {
+                    writeIntLE(compressedLength);
+                    scratch.advance(compressedLength);
+
+                } else {
+                    writeIntLE(blockLength | UNCOMPRESSED_BLOCK);
+                    scratch.write(bytes, position, blockLength);
+
+                }
+            }
+
+            // End mark
+            writeIntLE(0);
+        }
+
+        @Override
+        protected String decompress(byte[] bytes, int offset, int length) throws IOException {
+            // Only needs to read the frames written above
+            int end = offset + length;
+            int position = offset + 6;
+
+            if (end - position < 13) {
+                throw new IOException("Truncated LZ4 frame");
+            }
+
+            int contentLength = readIntLE(bytes, position);
+            position += 9;
+
+            byte[] content = new byte[contentLength];
+            int contentPosition = 0;
+            LZ4SafeDecompressor decompressor = LZ4Factory.fastestInstance().safeDecompressor();
+
+            while (contentPosition < contentLength) {
+                if (end - position < 4) {
+                    throw new IOException("Truncated LZ4 frame");
+                }
+
+                int blockLength = readIntLE(bytes, position);
+                position += 4;
+
+                if ((blockLength & ~UNCOMPRESSED_BLOCK) > end - position) {
+                    throw new IOException("Truncated LZ4 block");
+                }
+
+                if ((blockLength & UNCOMPRESSED_BLOCK) != 0) {
+                    blockLength &= ~UNCOMPRESSED_BLOCK;
+                    System.arraycopy(bytes, position, content, contentPosition, blockLength);
+                    contentPosition += blockLength;
+
+                } else {
+                    contentPosition += decompressor.decompress(bytes, position, blockLength, content, contentPosition, contentLength - contentPosition);
+
+                }
+
+                position += blockLength;
+            }
+
+            if (end - position < 4 || readIntLE(bytes, position) != 0) {
+                throw new IOException("LZ4 frame without end mark");
+            }
+
+            return new String(content, UTF8Buffer.UTF8);
+        }
+
+        private static int readIntLE(byte[] bytes, int offset) {
+            return (bytes[offset] & 0xff) | (bytes[offset + 1] & 0xff) << 8 | (bytes[offset + 2] & 0xff) << 16 | (bytes[offset + 3] & 0xff) << 24;
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package org.graylog2.scribe.logbackappender;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SharedMetricRegistries;
+import com.codahale.metrics.Timer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+/**
+ * Reports an appender's statistics to a shared Codahale metric registry, as a gauge per {@link ScribeAppenderMXBean}
+ * figure and a timer fed the same Log() call latencies as the MXBean's percentiles. Only loaded when a registry is
+ * configured, so metrics-core is optional.
+ */
+class MetricsHook {
+    private final MetricRegistry registry;
+    private final List<String> names = new ArrayList<String>();
+    private final Timer logTime;
+
+    /**
+     * @param registryName name of the registry in {@link SharedMetricRegistries}, created if need be
+     * @param prefix       prefix of the metric names
+     */
+    MetricsHook(String registryName, String prefix, final ScribeAppenderMXBean stats) {
+        this.registry = SharedMetricRegistries.getOrCreate(registryName);
+
+        register(prefix, "convertedEvents", new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return stats.getConvertedEvents();
+            }
+        });
+
+        register(prefix, "sentEvents", new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return stats.getSentEvents();
+            }
+        });
+
+        register(prefix, "sentBytes", new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return stats.getSentBytes();
+            }
+        });
+
+        register(prefix, "sentBatches", new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return stats.getSentBatches();
+            }
+        });
+
+        register(prefix, "tryLaterResponses", new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return stats.getTryLaterResponses();
+            }
+        });
+
+        register(prefix, "failedAttempts", new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return stats.getFailedAttempts();
+            }
+        });
+
+        register(prefix, "failedEvents", new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return stats.getFailedEvents();
+            }
+        });
+
+        register(prefix, "droppedEvents", new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return stats.getDroppedEvents();
+            }
+        });
+
+        register(prefix, "queueDepth", new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return stats.getQueueDepth();
+            }
+        });
+
+        register(prefix, "reconnects", new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return stats.getReconnects();
+            }
+        });
+
+        register(prefix, "openConnections", new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return stats.getOpenConnections();
+            }
+        });
+
+        register(prefix, "currentBackoff", new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return stats.getCurrentBackoff();
+            }
+        });
+
+        register(prefix, "spooledBytes", new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return stats.getSpooledBytes();
+            }
+        });
+
+        register(prefix, "logLatencyMedian", new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return stats.getLogLatencyMedian();
+            }
+        });
+
+        register(prefix, "logLatency99thPercentile", new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return stats.getLogLatency99thPercentile();
+            }
+        });
+
+        register(prefix, "logLatency999thPercentile", new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return stats.getLogLatency999thPercentile();
+            }
+        });
+
+        register(prefix, "throwableCacheHits", new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return stats.getThrowableCacheHits();
+            }
+        });
+
+        register(prefix, "throwableCacheMisses", new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return stats.getThrowableCacheMisses();
+            }
+        });
+
+        String logTimeName = name(prefix, "logTime");
+        names.add(logTimeName);
+        this.logTime = registry.timer(logTimeName);
+    }
+
+    void logCall(long nanos) {
+        logTime.update(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Removes the appender's metrics from the registry, so a restarted appender can register them again.
+     */
+    void unregister() {
+        for (String name : names) {
+            registry.remove(name);
+        }
+    }
+
+    private void register(String prefix, String metric, Gauge<?> gauge) {
+        String name = name(prefix, metric);
+        // Replace the gauges of an earlier appender of the same name, they would read its stale counters
+        registry.remove(name);
+        registry.register(name, gauge);
+        names.add(name);
+    }
+}
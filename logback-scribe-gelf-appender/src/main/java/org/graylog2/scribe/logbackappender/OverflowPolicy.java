@@ -0,0 +1,21 @@
+package org.graylog2.scribe.logbackappender;
+
+/**
+ * What {@link ScribeGELFAppender} does with an event when its queue is full.
+ */
+public enum OverflowPolicy {
+    /**
+     * Discard the event being appended.
+     */
+    DROP_NEWEST,
+
+    /**
+     * Discard the oldest queued event to make room for the one being appended.
+     */
+    DROP_OLDEST,
+
+    /**
+     * Block the logging thread until there is room or the block timeout expires, then discard the event being appended.
+     */
+    BLOCK_WITH_TIMEOUT
+}
@@ -0,0 +1,128 @@
+package org.graylog2.scribe.logbackappender;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded lock-free multi-producer/multi-consumer queue.
+ * <p/>
+ * Each slot carries a sequence number which tells producers and consumers whether the slot is free for the current lap,
+ * so claiming a slot is a single CAS on the head or tail counter and no locks are taken on either side.
+ * {@see http://www.1024cores.net/home/lock-free-algorithms/queues/bounded-mpmc-queue}
+ */
+class RingBuffer<E> {
+    private final int mask;
+    private final AtomicReferenceArray<E> elements;
+    private final AtomicLongArray sequences;
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+
+    /**
+     * @param capacity Requested capacity, rounded up to the next power of two
+     */
+    RingBuffer(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        }
+
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+
+        this.mask = size - 1;
+        this.elements = new AtomicReferenceArray<E>(size);
+        this.sequences = new AtomicLongArray(size);
+
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    /**
+     * @return false if the buffer is full
+     */
+    boolean offer(E element) {
+        long position = tail.get();
+
+        while (true) {
+            int index = (int) position & mask;
+            long delta = sequences.get(index) - position;
+
+            if (delta == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    elements.lazySet(index, element);
+                    sequences.set(index, position + 1);
+                    return true;
+                }
+
+            } else if (delta < 0) {
+                return false;
+
+            }
+
+            position = tail.get();
+        }
+    }
+
+    /**
+     * @return the oldest element, or null if the buffer is empty
+     */
+    E poll() {
+        long position = head.get();
+
+        while (true) {
+            int index = (int) position & mask;
+            long delta = sequences.get(index) - (position + 1);
+
+            if (delta == 0) {
+                if (head.compareAndSet(position, position + 1)) {
+                    E element = elements.get(index);
+                    elements.lazySet(index, null);
+                    sequences.set(index, position + mask + 1);
+                    return element;
+                }
+
+            } else if (delta < 0) {
+                return null;
+
+            }
+
+            position = head.get();
+        }
+    }
+
+    /**
+     * Moves up to maxElements into the given collection.
+     *
+     * @return the number of elements drained
+     */
+    int drainTo(Collection<? super E> target, int maxElements) {
+        int drained = 0;
+        E element;
+
+        while (drained < maxElements && (element = poll()) != null) {
+            target.add(element);
+            drained++;
+        }
+
+        return drained;
+    }
+
+    boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * @return an approximation of the number of queued elements, exact when there are no concurrent writers
+     */
+    int size() {
+        return (int) Math.max(0, Math.min(capacity(), tail.get() - head.get()));
+    }
+
+    int capacity() {
+        return mask + 1;
+    }
+}
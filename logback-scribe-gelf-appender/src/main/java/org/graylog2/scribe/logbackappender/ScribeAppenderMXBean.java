@@ -0,0 +1,70 @@
+package org.graylog2.scribe.logbackappender;
+
+/**
+ * What the appenders report over JMX, registered as org.graylog2.scribe:type=appender class,name=appender name.
+ * Counters are totals since the appender was created.
+ */
+public interface ScribeAppenderMXBean {
+    long getConvertedEvents();
+
+    long getSentEvents();
+
+    long getSentBytes();
+
+    long getSentBatches();
+
+    /**
+     * @return Log() calls answered with TRY_LATER
+     */
+    long getTryLaterResponses();
+
+    /**
+     * @return attempts to send a batch that failed and were retried or given up on, TRY_LATER included
+     */
+    long getFailedAttempts();
+
+    /**
+     * @return events given up on after retrying, or that didn't fit the spool
+     */
+    long getFailedEvents();
+
+    /**
+     * @return events the non-blocking appender dropped because its queue was full
+     */
+    long getDroppedEvents();
+
+    int getQueueDepth();
+
+    /**
+     * @return connections reopened after breaking
+     */
+    long getReconnects();
+
+    int getOpenConnections();
+
+    /**
+     * @return the time in milliseconds the last failed send is backing off for, 0 once a batch got through
+     */
+    long getCurrentBackoff();
+
+    long getSpooledBytes();
+
+    /**
+     * @return Log() call latency in microseconds over the last minute or two
+     */
+    long getLogLatencyMedian();
+
+    long getLogLatency99thPercentile();
+
+    long getLogLatency999thPercentile();
+
+    /**
+     * @return stack traces taken from the converter's render cache, 0 if the converter has none
+     */
+    long getThrowableCacheHits();
+
+    /**
+     * @return stack traces the converter had to render, 0 if it has no render cache
+     */
+    long getThrowableCacheMisses();
+}
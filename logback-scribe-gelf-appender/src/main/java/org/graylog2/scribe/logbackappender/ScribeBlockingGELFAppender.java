@@ -2,38 +2,111 @@ package org.graylog2.scribe.logbackappender;
 
 import ch.qos.logback.core.UnsynchronizedAppenderBase;
 import ch.qos.logback.core.spi.DeferredProcessingAware;
-import org.apache.thrift.protocol.TBinaryProtocol;
-import org.apache.thrift.transport.TFramedTransport;
-import org.apache.thrift.transport.TSocket;
-import scribe.thrift.LogEntry;
 import scribe.thrift.ResultCode;
-import scribe.thrift.scribe;
 
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Simple GELF Appender. <b>Note this is blocking and WILL block your application threads whilst waiting for Scribe</b>.
- * TODO: Publish non-blocking version!
+ * See {@link ScribeGELFAppender} for the non-blocking version.
+ * <p/>
+ * Connections are held in a {@link ScribeClientPool}, optionally spread over several Scribe hosts, and broken ones are
+ * reopened in the background. Concurrent callers make Log() calls in parallel, up to one per pooled connection. Events
+ * logged while all of them are in flight are sent together in the next one, by whichever of the waiting threads gets
+ * there first, so callers share calls rather than queueing up one each. A single thread logging on its own still makes
+ * a call per event, only {@link ScribeGELFAppender} lingers to fill batches.
+ * <p/>
+ * With a spool directory set, batches that can't be delivered within a couple of attempts are written to a
+ * {@link DiskSpool} instead of being retried for minutes and then dropped, and a background thread replays them once
+ * Scribe takes batches again. Until the spool has drained later batches are spooled behind them, so events keep their
+ * order.
+ * <p/>
+ * Throughput, retries and Log() latency are exposed as a {@link ScribeAppenderMXBean} and, with a metric registry name
+ * set and metrics-core on the classpath, reported to that shared Codahale registry too.
  *
  * @author James Furness
  */
-public class ScribeBlockingGELFAppender<T extends DeferredProcessingAware> extends UnsynchronizedAppenderBase<T> {
+public class ScribeBlockingGELFAppender<T extends DeferredProcessingAware> extends UnsynchronizedAppenderBase<T> implements ScribeAppenderMXBean {
     private static final int SOCKET_TIMEOUT = Integer.getInteger("ScribeBlockingGELFAppender.SOCKET_TIMEOUT", 10000);
     private static final long MIN_BACKOFF_SLEEP = Long.getLong("ScribeBlockingGELFAppender.MIN_BACKOFF_SLEEP", 100L);
     private static final long MAX_BACKOFF_SLEEP = Long.getLong("ScribeBlockingGELFAppender.MAX_BACKOFF_SLEEP", 30000);
     private static final int MAX_RETRIES = Integer.getInteger("ScribeBlockingGELFAppender.MAX_RETRIES", 50); // ~20 minutes
+    private static final int MAX_BATCH_SIZE = Integer.getInteger("ScribeBlockingGELFAppender.MAX_BATCH_SIZE", 512);
+    private static final int MAX_BATCH_BYTES = Integer.getInteger("ScribeBlockingGELFAppender.MAX_BATCH_BYTES", 1024 * 1024);
+    private static final int CONNECTIONS_PER_HOST = Integer.getInteger("ScribeBlockingGELFAppender.CONNECTIONS_PER_HOST", 1);
+    private static final String DISPATCH_STRATEGY = System.getProperty("ScribeBlockingGELFAppender.DISPATCH_STRATEGY", DispatchStrategy.ROUND_ROBIN.name());
+    private static final long RECONNECT_INTERVAL = Long.getLong("ScribeBlockingGELFAppender.RECONNECT_INTERVAL", 1000L);
+    private static final String COMPRESSION = System.getProperty("ScribeBlockingGELFAppender.COMPRESSION", Compression.NONE.name());
+    private static final int COMPRESSION_THRESHOLD = Integer.getInteger("ScribeBlockingGELFAppender.COMPRESSION_THRESHOLD", 512);
+    private static final String SPOOL_DIRECTORY = System.getProperty("ScribeBlockingGELFAppender.SPOOL_DIRECTORY");
+    private static final int SPOOL_SEGMENT_SIZE = Integer.getInteger("ScribeBlockingGELFAppender.SPOOL_SEGMENT_SIZE", 64 * 1024 * 1024);
+    private static final long SPOOL_MAX_BYTES = Long.getLong("ScribeBlockingGELFAppender.SPOOL_MAX_BYTES", 1024L * 1024 * 1024);
+    private static final int SPOOL_AFTER_ATTEMPTS = Integer.getInteger("ScribeBlockingGELFAppender.SPOOL_AFTER_ATTEMPTS", 2);
+    private static final long SPOOL_IDLE_WAIT = 1000;
+    private static final boolean JMX = Boolean.parseBoolean(System.getProperty("ScribeBlockingGELFAppender.JMX", "true"));
+    private static final String METRIC_REGISTRY = System.getProperty("ScribeBlockingGELFAppender.METRIC_REGISTRY");
 
     private final String scribeHost;
     private final int scribePort;
     private final String scribeCategory;
 
-    private final ArrayList<LogEntry> logEntries = new ArrayList<LogEntry>();
     private final GELFConverter<T> converter;
 
-    private scribe.Client client;
-    private TFramedTransport transport;
+    private int maxBatchSize = MAX_BATCH_SIZE;
+    private int maxBatchBytes = MAX_BATCH_BYTES;
+    private String scribeHosts;
+    private int connectionsPerHost = CONNECTIONS_PER_HOST;
+    private DispatchStrategy dispatchStrategy = DispatchStrategy.valueOf(DISPATCH_STRATEGY);
+    private Compression compression = Compression.valueOf(COMPRESSION);
+    private int compressionThreshold = COMPRESSION_THRESHOLD;
+    private String spoolDirectory = SPOOL_DIRECTORY;
+    private int spoolSegmentSize = SPOOL_SEGMENT_SIZE;
+    private long spoolMaxBytes = SPOOL_MAX_BYTES;
+    private int spoolAfterAttempts = SPOOL_AFTER_ATTEMPTS;
+    private boolean jmx = JMX;
+    private String metricRegistry = METRIC_REGISTRY;
+
+    private final AtomicLong convertedEvents = new AtomicLong();
+    private final AtomicLong sentEvents = new AtomicLong();
+    private final AtomicLong sentBytes = new AtomicLong();
+    private final AtomicLong sentBatches = new AtomicLong();
+    private final AtomicLong tryLaterResponses = new AtomicLong();
+    private final AtomicLong failedAttempts = new AtomicLong();
+    private final AtomicLong failedEvents = new AtomicLong();
+    private final LatencyHistogram logLatency = new LatencyHistogram(1, TimeUnit.MINUTES);
+    private final Object backoff = new Object();
+
+    // Events waiting for a blocking append to send them, and how many appends are sending right now
+    private final ReentrantLock pendingLock = new ReentrantLock();
+    private final Condition sent = pendingLock.newCondition();
+    private PendingEvents<T> pending = new PendingEvents<T>();
+    private int sending;
+    private int maxSending = 1;
+    private volatile long currentBackoff;
+
+    private ScribeClientPool pool;
+    private DiskSpool spool;
+    private SpoolReplayer replayer;
+    private ObjectName mbeanName;
+    private volatile MetricsHook metricsHook;
+
+    // Callers encode into their own batch, so concurrent appends and sender threads never share one
+    private final ThreadLocal<LogEntryBatch> batches = new ThreadLocal<LogEntryBatch>() {
+        @Override
+        protected LogEntryBatch initialValue() {
+            return new LogEntryBatch(scribeCategory, compression, compressionThreshold);
+        }
+    };
 
     public ScribeBlockingGELFAppender(String scribeHost, int scribePort, String scribeCategory, GELFConverter<T> gelfConverter) {
         this.scribeHost = scribeHost;
@@ -44,90 +117,777 @@ public class ScribeBlockingGELFAppender<T extends DeferredProcessingAware> exten
 
     @Override
     public synchronized void start() {
-        addInfo("ScribeBlockingGELFAppender starting, sending logs to " + scribeHost + ":" + scribePort);
+        List<String> addresses = new ArrayList<String>();
+
+        if (scribeHosts == null || scribeHosts.trim().length() == 0) {
+            addresses.add(scribeHost + ":" + scribePort);
+
+        } else {
+            for (String address : scribeHosts.split(",")) {
+                address = address.trim();
+                addresses.add(address.indexOf(':') < 0 ? address + ":" + scribePort : address);
+            }
+
+        }
+
+        if (connectionsPerHost < 1) {
+            addError("connectionsPerHost must be at least 1, was " + connectionsPerHost);
+            return;
+        }
+
+        if (compression == Compression.LZ4 && !isLZ4Available()) {
+            addError("compression is LZ4 but lz4 is not on the classpath, sending messages uncompressed");
+            compression = Compression.NONE;
+        }
+
+        addInfo(getClass().getSimpleName() + " starting, sending logs to " + addresses + " over " + connectionsPerHost + " connection(s) per host");
+
+        pool = new ScribeClientPool(addresses, connectionsPerHost, SOCKET_TIMEOUT, dispatchStrategy, RECONNECT_INTERVAL, this);
+        pool.start();
+        maxSending = pool.size();
+
+        if (spoolDirectory != null && spoolDirectory.trim().length() > 0) {
+            startSpool(new File(spoolDirectory.trim()));
+        }
+
+        if (jmx) {
+            registerMBean();
+        }
+
+        if (metricRegistry != null && metricRegistry.trim().length() > 0) {
+            startMetricsHook(metricRegistry.trim());
+        }
+
+        super.start();
+    }
+
+    private boolean isLZ4Available() {
+        try {
+            Class.forName("net.jpountz.lz4.LZ4Factory", false, getClass().getClassLoader());
+            return true;
+
+        } catch (ClassNotFoundException e) {
+            return false;
 
-        TSocket sock = new TSocket(scribeHost, scribePort, SOCKET_TIMEOUT);
-        transport = new TFramedTransport(sock);
+        } catch (LinkageError e) {
+            return false;
 
+        }
+    }
+
+    private void registerMBean() {
         try {
-            transport.open();
-            addInfo("TSocket connected to " + scribeHost + ":" + scribePort);
+            ObjectName name = new ObjectName("org.graylog2.scribe:type=" + getClass().getSimpleName() + ",name=" + ObjectName.quote(String.valueOf(getName())));
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+
+            // Left behind by an appender of the same name that wasn't stopped, e.g. on a configuration reload
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+
+            server.registerMBean(this, name);
+            mbeanName = name;
 
         } catch (Exception e) {
-            addWarn("Failed to connect to " + scribeHost + ":" + scribePort, e);
+            addWarn("Could not register MBean", e);
 
         }
+    }
 
-        TBinaryProtocol protocol = new TBinaryProtocol(transport, false, false);
-        client = new scribe.Client(protocol, protocol);
+    private void startMetricsHook(String registryName) {
+        try {
+            metricsHook = new MetricsHook(registryName, getClass().getName() + "." + getName(), this);
 
-        super.start();
+        } catch (LinkageError e) {
+            addError("metricRegistry is set but metrics-core is not on the classpath", e);
+
+        }
+    }
+
+    private void startSpool(File directory) {
+        DiskSpool opened = new DiskSpool(directory, spoolSegmentSize, spoolMaxBytes);
+
+        try {
+            opened.open();
+
+        } catch (IOException e) {
+            addError("Could not open spool in " + directory + ", undeliverable events will be dropped", e);
+            return;
+
+        }
+
+        spool = opened;
+        replayer = new SpoolReplayer();
+        replayer.thread = new Thread(replayer, "ScribeSpoolReplayer-" + getName());
+        replayer.thread.setDaemon(true);
+        replayer.thread.start();
+
+        addInfo("Spooling undeliverable events to " + directory + ", up to " + spoolMaxBytes + " bytes");
     }
 
     @Override
     public synchronized void stop() {
         super.stop();
+        wakeBackoff();
+
+        if (replayer != null) {
+            replayer.running = false;
+            replayer.thread.interrupt();
+
+            try {
+                replayer.thread.join(SOCKET_TIMEOUT);
 
-        if (transport != null && transport.isOpen()) {
-            transport.close();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+
+            }
+
+            replayer = null;
+        }
+
+        if (pool != null) {
+            pool.stop();
+        }
+
+        if (spool != null) {
+            spool.close();
+        }
+
+        if (mbeanName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(mbeanName);
+
+            } catch (Exception e) {
+                addWarn("Could not unregister MBean " + mbeanName, e);
+
+            }
+
+            mbeanName = null;
+        }
+
+        if (metricsHook != null) {
+            metricsHook.unregister();
+            metricsHook = null;
         }
     }
 
+    /**
+     * Sends the event before returning, along with any logged by other threads meanwhile.
+     */
     @Override
     protected void append(T eventObject) {
-        processBuffer(Collections.singletonList(eventObject));
+        PendingEvents<T> events;
+
+        // Whichever thread sends the event may not be the one that logged it, so capture what is read from this one
+        converter.prepareForDeferredConversion(eventObject);
+
+        pendingLock.lock();
+        try {
+            events = pending;
+            events.add(eventObject);
+
+            // With every connection busy, another caller may send this event along with its own once one frees up
+            while (events == pending && sending >= maxSending) {
+                sent.awaitUninterruptibly();
+            }
+
+            if (events != pending) {
+                while (!events.isSent()) {
+                    sent.awaitUninterruptibly();
+                }
+
+                return;
+            }
+
+            pending = new PendingEvents<T>();
+            sending++;
+
+        } finally {
+            pendingLock.unlock();
+
+        }
+
+        try {
+            processBuffer(events);
+
+        } finally {
+            pendingLock.lock();
+            try {
+                events.markSent();
+                sending--;
+                sent.signalAll();
+
+            } finally {
+                pendingLock.unlock();
+
+            }
+        }
     }
 
+    /**
+     * Converts and sends the given events, split into as many Log() calls as needed to honour the batch limits.
+     */
     protected void processBuffer(List<T> events) {
+        LogEntryBatch batch = batches.get();
+
         try {
-            logEntries.ensureCapacity(events.size());
+            for (T event : events) {
+                if (batch.size() >= maxBatchSize) {
+                    sendEntries(batch, batch.size());
+                }
 
-            for (Object event : events) {
-                logEntries.add(new LogEntry(scribeCategory, converter.toGelf((T) event)));
+                try {
+                    converter.toGelf(event, batch.messages());
+                    batch.commit();
+                    convertedEvents.incrementAndGet();
+
+                } catch (RuntimeException e) {
+                    addError("Failed to convert event " + event, e);
+                    continue;
+
+                }
+
+                // The new entry doesn't fit, send the ones before it and start the next batch with it
+                if (batch.size() > 1 && batch.bytes(batch.size()) > maxBatchBytes) {
+                    sendEntries(batch, batch.size() - 1);
+                }
+            }
+
+            if (!batch.isEmpty()) {
+                sendEntries(batch, batch.size());
             }
 
+        } finally {
+            // Only a single oversized message can grow the buffer past a full batch
+            batch.clear(maxBatchBytes);
+
+        }
+    }
+
+    protected GELFConverter<T> getConverter() {
+        return converter;
+    }
+
+    /**
+     * Sends the first count entries of the batch and removes them from it, whether they were delivered, spooled or
+     * dropped.
+     */
+    private void sendEntries(LogEntryBatch batch, int count) {
+        DiskSpool spool = this.spool;
+
+        try {
+            if (spool != null && !spool.isEmpty()) {
+                // Queue up behind the events already spooled, the replayer delivers them in order
+                spool(spool, batch, count);
+                return;
+            }
+
+            int attempts = spool == null ? MAX_RETRIES : Math.max(1, spoolAfterAttempts);
             long sleepPeriod = MIN_BACKOFF_SLEEP;
             Exception lastException = null;
 
-            for (int i = 0; i < MAX_RETRIES; i++) {
-                try {
-                    if (!transport.isOpen()) {
-                        transport.close();
-                        transport.open();
-                        addInfo("TSocket connected to " + scribeHost + ":" + scribePort);
+            for (int i = 0; i < attempts; i++) {
+                ScribeConnection connection = pool.borrow(SOCKET_TIMEOUT);
+
+                if (connection == null) {
+                    if (!isStarted()) {
+                        throw new IllegalStateException("Appender stopped");
                     }
 
-                    ResultCode result = client.Log(logEntries);
+                    addWarn("No Scribe connection available, retrying in " + sleepPeriod + "ms");
+
+                } else {
+                    try {
+                        long start = System.nanoTime();
+                        ResultCode result = connection.log(batch, count);
+                        logged(System.nanoTime() - start, result, batch, count);
+                        pool.release(connection);
+
+                        if (ResultCode.OK.equals(result)) {
+                            currentBackoff = 0;
+                            return;
+                        }
+
+                        addWarn("Received " + result + " from " + connection + ", retrying in " + sleepPeriod + "ms");
+
+                    } catch (Exception e) {
+                        lastException = e;
+                        addWarn("Failed to log events to " + connection + ", closing transport and retrying in " + sleepPeriod + "ms", e);
+                        pool.invalidate(connection);
 
-                    if (ResultCode.OK.equals(result)) {
-                        return;
                     }
+                }
 
-                    addWarn("Received " + result + ", retrying in " + sleepPeriod + "ms");
+                failedAttempts.incrementAndGet();
 
-                } catch (Exception e) {
-                    lastException = e;
-                    addWarn("Failed to log events, closing transport and retrying in " + sleepPeriod + "ms", e);
-                    transport.close();
+                if (spool != null && i == attempts - 1) {
+                    break;
+                }
 
+                if (!isRetrying()) {
+                    throw new IllegalStateException("Appender stopping, not retrying", lastException);
                 }
 
-                Thread.sleep(sleepPeriod);
+                currentBackoff = sleepPeriod;
+                backoff(sleepPeriod);
                 sleepPeriod = Math.min(sleepPeriod * 2, MAX_BACKOFF_SLEEP);
             }
 
-            throw new IllegalStateException("Failed to send events to Scribe after " + MAX_RETRIES + " attempts", lastException);
+            throw new IllegalStateException("Failed to send events to Scribe after " + attempts + " attempts", lastException);
 
         } catch (Exception e) {
-            addError("Failed to log " + logEntries.size() + " events", e);
+            if (spool != null) {
+                addWarn("Failed to log " + count + " events, spooling them", e);
+                spool(spool, batch, count);
+                return;
+            }
+
+            addError("Failed to log " + count + " events", e);
+            failedEvents.addAndGet(count);
 
-            for (LogEntry entry : logEntries) {
-                addWarn("FAIL: " + entry);
+            for (int i = 0; i < count; i++) {
+                addWarn("FAIL: " + batch.entry(i));
             }
 
         } finally {
-            logEntries.clear();
+            batch.removeFirst(count);
+
+        }
+    }
+
+    /**
+     * @return whether failed sends should still be retried, false once the appender is stopping
+     */
+    protected boolean isRetrying() {
+        return isStarted();
+    }
+
+    /**
+     * Wakes threads backing off between attempts to send a batch, so they give up once {@link #isRetrying()} is false.
+     */
+    protected void wakeBackoff() {
+        synchronized (backoff) {
+            backoff.notifyAll();
+        }
+    }
+
+    private void backoff(long millis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + millis;
+
+        synchronized (backoff) {
+            for (long remaining = millis; remaining > 0 && isRetrying(); remaining = deadline - System.currentTimeMillis()) {
+                backoff.wait(remaining);
+            }
+        }
+    }
+
+    private void spool(DiskSpool spool, LogEntryBatch batch, int count) {
+        int dropped = 0;
+
+        for (int i = 0; i < count; i++) {
+            boolean spooled;
+
+            try {
+                spooled = spool.append(batch.category(), batch.message(i));
+
+            } catch (IOException e) {
+                addError("Failed to spool event", e);
+                spooled = false;
+
+            }
+
+            if (!spooled) {
+                dropped++;
+                addWarn("FAIL: " + batch.entry(i));
+            }
+        }
+
+        if (dropped > 0) {
+            failedEvents.addAndGet(dropped);
+            addError("Spool full or closed, dropped " + dropped + " of " + count + " events");
+        }
+    }
+
+    /**
+     * Counts a completed Log() call.
+     */
+    private void logged(long nanos, ResultCode result, LogEntryBatch batch, int count) {
+        logLatency.record(nanos);
+
+        MetricsHook metricsHook = this.metricsHook;
+
+        if (metricsHook != null) {
+            metricsHook.logCall(nanos);
+        }
+
+        if (ResultCode.OK.equals(result)) {
+            sentEvents.addAndGet(count);
+            sentBytes.addAndGet(batch.bytes(count));
+            sentBatches.incrementAndGet();
+
+        } else if (ResultCode.TRY_LATER.equals(result)) {
+            tryLaterResponses.incrementAndGet();
+
+        }
+    }
 
+    @Override
+    public long getConvertedEvents() {
+        return convertedEvents.get();
+    }
+
+    @Override
+    public long getSentEvents() {
+        return sentEvents.get();
+    }
+
+    @Override
+    public long getSentBytes() {
+        return sentBytes.get();
+    }
+
+    @Override
+    public long getSentBatches() {
+        return sentBatches.get();
+    }
+
+    @Override
+    public long getTryLaterResponses() {
+        return tryLaterResponses.get();
+    }
+
+    @Override
+    public long getFailedAttempts() {
+        return failedAttempts.get();
+    }
+
+    @Override
+    public long getFailedEvents() {
+        return failedEvents.get();
+    }
+
+    /**
+     * @return 0, this appender has no queue to drop events from
+     */
+    @Override
+    public long getDroppedEvents() {
+        return 0;
+    }
+
+    /**
+     * @return 0, this appender has no queue
+     */
+    @Override
+    public int getQueueDepth() {
+        return 0;
+    }
+
+    @Override
+    public long getReconnects() {
+        return pool == null ? 0 : pool.getReconnects();
+    }
+
+    @Override
+    public long getCurrentBackoff() {
+        return currentBackoff;
+    }
+
+    @Override
+    public long getLogLatencyMedian() {
+        return logLatency.getPercentile(0.5);
+    }
+
+    @Override
+    public long getLogLatency99thPercentile() {
+        return logLatency.getPercentile(0.99);
+    }
+
+    @Override
+    public long getLogLatency999thPercentile() {
+        return logLatency.getPercentile(0.999);
+    }
+
+    @Override
+    public long getThrowableCacheHits() {
+        return converter instanceof GELFILoggingEventConverter ? ((GELFILoggingEventConverter) converter).getThrowableCacheHits() : 0;
+    }
+
+    @Override
+    public long getThrowableCacheMisses() {
+        return converter instanceof GELFILoggingEventConverter ? ((GELFILoggingEventConverter) converter).getThrowableCacheMisses() : 0;
+    }
+
+    public String getScribeHosts() {
+        return scribeHosts;
+    }
+
+    /**
+     * @param scribeHosts Comma separated host[:port] list to spread batches over instead of the single host given
+     *                    to the constructor. Hosts without a port use the constructor's port.
+     */
+    public void setScribeHosts(String scribeHosts) {
+        this.scribeHosts = scribeHosts;
+    }
+
+    public int getConnectionsPerHost() {
+        return connectionsPerHost;
+    }
+
+    /**
+     * @param connectionsPerHost Number of connections opened to each Scribe host, bounding how many batches can be in
+     *                           flight to it at once
+     */
+    public void setConnectionsPerHost(int connectionsPerHost) {
+        this.connectionsPerHost = connectionsPerHost;
+    }
+
+    public DispatchStrategy getDispatchStrategy() {
+        return dispatchStrategy;
+    }
+
+    public void setDispatchStrategy(DispatchStrategy dispatchStrategy) {
+        this.dispatchStrategy = dispatchStrategy;
+    }
+
+    /**
+     * @return the number of pooled connections currently open
+     */
+    @Override
+    public int getOpenConnections() {
+        return pool == null ? 0 : pool.getOpenConnections();
+    }
+
+    public int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    /**
+     * @param maxBatchSize Maximum number of entries sent in a single Log() call
+     */
+    public void setMaxBatchSize(int maxBatchSize) {
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    public int getMaxBatchBytes() {
+        return maxBatchBytes;
+    }
+
+    /**
+     * @param maxBatchBytes Maximum UTF-8 encoded, and if enabled compressed, size of the categories and messages sent
+     *                      in a single Log() call. A single larger message is still sent on its own.
+     */
+    public void setMaxBatchBytes(int maxBatchBytes) {
+        this.maxBatchBytes = maxBatchBytes;
+    }
+
+    public Compression getCompression() {
+        return compression;
+    }
+
+    /**
+     * @param compression How messages are compressed before they are sent. Takes effect for threads that haven't
+     *                    logged through the appender yet, so set it before starting.
+     */
+    public void setCompression(Compression compression) {
+        this.compression = compression;
+    }
+
+    /**
+     * @return roughly how many bytes of spooled events are waiting to be replayed
+     */
+    @Override
+    public long getSpooledBytes() {
+        DiskSpool spool = this.spool;
+        return spool == null ? 0 : spool.getPendingBytes();
+    }
+
+    public int getCompressionThreshold() {
+        return compressionThreshold;
+    }
+
+    /**
+     * @param compressionThreshold Smallest encoded message, in bytes, that is compressed. Shorter ones gain too little
+     *                             to be worth the CPU and are sent as they are.
+     */
+    public void setCompressionThreshold(int compressionThreshold) {
+        this.compressionThreshold = compressionThreshold;
+    }
+
+    public String getSpoolDirectory() {
+        return spoolDirectory;
+    }
+
+    /**
+     * @param spoolDirectory Directory to spool undeliverable events to until they can be replayed, or null to drop
+     *                       them after retrying. Each appender needs its own.
+     */
+    public void setSpoolDirectory(String spoolDirectory) {
+        this.spoolDirectory = spoolDirectory;
+    }
+
+    public int getSpoolSegmentSize() {
+        return spoolSegmentSize;
+    }
+
+    /**
+     * @param spoolSegmentSize Size in bytes of each spool segment file, which also bounds the largest event that can be
+     *                         spooled
+     */
+    public void setSpoolSegmentSize(int spoolSegmentSize) {
+        this.spoolSegmentSize = spoolSegmentSize;
+    }
+
+    public long getSpoolMaxBytes() {
+        return spoolMaxBytes;
+    }
+
+    /**
+     * @param spoolMaxBytes Total size in bytes of the spool segment files, beyond which further events are dropped
+     */
+    public void setSpoolMaxBytes(long spoolMaxBytes) {
+        this.spoolMaxBytes = spoolMaxBytes;
+    }
+
+    public int getSpoolAfterAttempts() {
+        return spoolAfterAttempts;
+    }
+
+    /**
+     * @param spoolAfterAttempts Number of attempts to send a batch before spooling it, when a spool directory is set
+     */
+    public void setSpoolAfterAttempts(int spoolAfterAttempts) {
+        this.spoolAfterAttempts = spoolAfterAttempts;
+    }
+
+    public boolean isJmx() {
+        return jmx;
+    }
+
+    /**
+     * @param jmx Whether to register the appender's {@link ScribeAppenderMXBean} on start
+     */
+    public void setJmx(boolean jmx) {
+        this.jmx = jmx;
+    }
+
+    public String getMetricRegistry() {
+        return metricRegistry;
+    }
+
+    /**
+     * @param metricRegistry Name of the Codahale SharedMetricRegistries registry to report to, or null for none.
+     *                       Needs metrics-core on the classpath.
+     */
+    public void setMetricRegistry(String metricRegistry) {
+        this.metricRegistry = metricRegistry;
+    }
+
+    /**
+     * Events appended while no connection was free to send them, sent together by one of the waiting callers.
+     */
+    private static class PendingEvents<T> extends ArrayList<T> {
+        private static final long serialVersionUID = 1L;
+
+        private boolean sent;
+
+        boolean isSent() {
+            return sent;
+        }
+
+        void markSent() {
+            sent = true;
+        }
+    }
+
+    /**
+     * Sends spooled batches, oldest first, removing each from the spool once Scribe has taken it.
+     */
+    private class SpoolReplayer implements Runnable {
+        private volatile boolean running = true;
+        private Thread thread;
+
+        @Override
+        public void run() {
+            long sleepPeriod = MIN_BACKOFF_SLEEP;
+
+            while (running) {
+                try {
+                    LogEntryBatch batch = spool.read(maxBatchSize, maxBatchBytes);
+
+                    if (batch == null) {
+                        spool.awaitEntries(SPOOL_IDLE_WAIT);
+                        continue;
+                    }
+
+                    if (replay(batch)) {
+                        spool.commit();
+                        sleepPeriod = MIN_BACKOFF_SLEEP;
+                        continue;
+                    }
+
+                    Thread.sleep(sleepPeriod);
+                    sleepPeriod = Math.min(sleepPeriod * 2, MAX_BACKOFF_SLEEP);
+
+                } catch (InterruptedException e) {
+                    break;
+
+                } catch (IOException e) {
+                    addError("Failed to read spool, retrying in " + sleepPeriod + "ms", e);
+
+                    if (!pause(sleepPeriod)) {
+                        break;
+                    }
+
+                    sleepPeriod = Math.min(sleepPeriod * 2, MAX_BACKOFF_SLEEP);
+
+                } catch (RuntimeException e) {
+                    // Would otherwise end the replayer for good, leaving the spool to fill up
+                    addError("Failed to replay spool, retrying in " + sleepPeriod + "ms", e);
+
+                    if (!pause(sleepPeriod)) {
+                        break;
+                    }
+
+                    sleepPeriod = Math.min(sleepPeriod * 2, MAX_BACKOFF_SLEEP);
+
+                }
+            }
+        }
+
+        /**
+         * @return false if interrupted while sleeping
+         */
+        private boolean pause(long sleepPeriod) {
+            try {
+                Thread.sleep(sleepPeriod);
+                return true;
+
+            } catch (InterruptedException e) {
+                return false;
+
+            }
+        }
+
+        private boolean replay(LogEntryBatch batch) throws InterruptedException {
+            ScribeConnection connection = pool.borrow(SOCKET_TIMEOUT);
+
+            if (connection == null) {
+                return false;
+            }
+
+            try {
+                long start = System.nanoTime();
+                ResultCode result = connection.log(batch, batch.size());
+                logged(System.nanoTime() - start, result, batch, batch.size());
+                pool.release(connection);
+                return ResultCode.OK.equals(result);
+
+            } catch (Exception e) {
+                addWarn("Failed to replay spooled events to " + connection + ", closing transport", e);
+                pool.invalidate(connection);
+                return false;
+
+            }
         }
     }
 }
@@ -0,0 +1,337 @@
+package org.graylog2.scribe.logbackappender;
+
+import ch.qos.logback.core.spi.ContextAware;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Pool of connections to one or more Scribe hosts, so several batches can be in flight at once.
+ * <p/>
+ * Senders {@link #borrow(long)} a connection, use it exclusively and then either {@link #release(ScribeConnection)}
+ * it or {@link #invalidate(ScribeConnection)} it on failure. Broken connections are reopened by a background thread
+ * rather than by the sender, which just moves on to another open connection.
+ */
+class ScribeClientPool {
+    private final List<ScribeConnection> connections = new ArrayList<ScribeConnection>();
+    private final List<String> hosts = new ArrayList<String>();
+    private final DispatchStrategy dispatchStrategy;
+    private final long reconnectInterval;
+    private final ContextAware status;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition connectionAvailable = lock.newCondition();
+    private final Condition connectionBroken = lock.newCondition();
+    private final AtomicLong reconnects = new AtomicLong();
+
+    private int nextConnection;
+    private volatile boolean running;
+    private Thread reconnector;
+
+    /**
+     * @param addresses          host:port pairs to connect to
+     * @param connectionsPerHost number of connections opened to each host
+     * @param reconnectInterval  time in milliseconds between attempts to reopen a broken connection
+     * @param status             where connection state changes are reported
+     */
+    ScribeClientPool(List<String> addresses, int connectionsPerHost, int socketTimeout, DispatchStrategy dispatchStrategy,
+                     long reconnectInterval, ContextAware status) {
+        this.dispatchStrategy = dispatchStrategy;
+        this.reconnectInterval = reconnectInterval;
+        this.status = status;
+
+        for (String address : addresses) {
+            int separator = address.lastIndexOf(':');
+            String host = address.substring(0, separator);
+            int port = Integer.parseInt(address.substring(separator + 1));
+
+            for (int i = 0; i < connectionsPerHost; i++) {
+                connections.add(new ScribeConnection(host, port, socketTimeout));
+            }
+
+            hosts.add(connections.get(connections.size() - 1).getAddress());
+        }
+    }
+
+    /**
+     * Starts the background reconnect thread, which makes the first connection attempts too so unreachable hosts don't
+     * hold up the caller.
+     */
+    void start() {
+        running = true;
+
+        reconnector = new Thread(new Reconnector(), "ScribeClientPool-reconnect");
+        reconnector.setDaemon(true);
+        reconnector.start();
+    }
+
+    /**
+     * Closes the idle connections, those borrowed are closed once they are released.
+     */
+    void stop() {
+        running = false;
+
+        if (reconnector != null) {
+            reconnector.interrupt();
+        }
+
+        lock.lock();
+        try {
+            for (ScribeConnection connection : connections) {
+                if (connection.state != ScribeConnection.State.BUSY) {
+                    connection.close();
+                    connection.state = ScribeConnection.State.BROKEN;
+                }
+            }
+
+            connectionAvailable.signalAll();
+
+        } finally {
+            lock.unlock();
+
+        }
+    }
+
+    /**
+     * @param timeout time in milliseconds to wait for an open connection
+     * @return an open connection for the caller's exclusive use, or null if none became available in time
+     */
+    ScribeConnection borrow(long timeout) throws InterruptedException {
+        long remaining = TimeUnit.MILLISECONDS.toNanos(timeout);
+
+        lock.lock();
+        try {
+            while (running) {
+                ScribeConnection connection = dispatchStrategy == DispatchStrategy.LEAST_OUTSTANDING
+                        ? leastOutstanding()
+                        : roundRobin();
+
+                if (connection != null) {
+                    connection.state = ScribeConnection.State.BUSY;
+                    return connection;
+                }
+
+                if (remaining <= 0) {
+                    return null;
+                }
+
+                remaining = connectionAvailable.awaitNanos(remaining);
+            }
+
+            return null;
+
+        } finally {
+            lock.unlock();
+
+        }
+    }
+
+    /**
+     * Returns a healthy connection to the pool, or closes it if the pool was stopped meanwhile.
+     */
+    void release(ScribeConnection connection) {
+        lock.lock();
+        try {
+            if (!running) {
+                connection.close();
+                connection.state = ScribeConnection.State.BROKEN;
+                return;
+            }
+
+            connection.state = ScribeConnection.State.IDLE;
+            connectionAvailable.signal();
+
+        } finally {
+            lock.unlock();
+
+        }
+    }
+
+    /**
+     * Closes a failed connection and leaves it to the background thread to reopen.
+     */
+    void invalidate(ScribeConnection connection) {
+        connection.close();
+
+        lock.lock();
+        try {
+            connection.state = ScribeConnection.State.BROKEN;
+            connectionBroken.signal();
+
+        } finally {
+            lock.unlock();
+
+        }
+    }
+
+    int getOpenConnections() {
+        lock.lock();
+        try {
+            int open = 0;
+
+            for (ScribeConnection connection : connections) {
+                if (connection.state == ScribeConnection.State.IDLE || connection.state == ScribeConnection.State.BUSY) {
+                    open++;
+                }
+            }
+
+            return open;
+
+        } finally {
+            lock.unlock();
+
+        }
+    }
+
+    /**
+     * @return how many broken connections have been reopened
+     */
+    long getReconnects() {
+        return reconnects.get();
+    }
+
+    int size() {
+        return connections.size();
+    }
+
+    private ScribeConnection roundRobin() {
+        for (int i = 0; i < connections.size(); i++) {
+            ScribeConnection connection = connections.get((nextConnection + i) % connections.size());
+
+            if (connection.state == ScribeConnection.State.IDLE) {
+                nextConnection = (nextConnection + i + 1) % connections.size();
+                return connection;
+            }
+        }
+
+        return null;
+    }
+
+    private ScribeConnection leastOutstanding() {
+        ScribeConnection best = null;
+        int bestOutstanding = Integer.MAX_VALUE;
+        int bestHost = 0;
+
+        // Start from a different host each time so ties don't always go to the first one
+        for (int i = 0; i < hosts.size(); i++) {
+            int hostIndex = (nextConnection + i) % hosts.size();
+            String host = hosts.get(hostIndex);
+            ScribeConnection idle = null;
+            int outstanding = 0;
+
+            for (ScribeConnection connection : connections) {
+                if (!host.equals(connection.getAddress())) {
+                    continue;
+                }
+
+                if (connection.state == ScribeConnection.State.BUSY) {
+                    outstanding++;
+
+                } else if (idle == null && connection.state == ScribeConnection.State.IDLE) {
+                    idle = connection;
+
+                }
+            }
+
+            if (idle != null && outstanding < bestOutstanding) {
+                best = idle;
+                bestOutstanding = outstanding;
+                bestHost = hostIndex;
+            }
+        }
+
+        nextConnection = bestHost + 1;
+        return best;
+    }
+
+    /**
+     * @return whether the connection was opened
+     */
+    private boolean connect(ScribeConnection connection) {
+        try {
+            connection.open();
+            status.addInfo("TSocket connected to " + connection);
+
+        } catch (Exception e) {
+            status.addWarn("Failed to connect to " + connection, e);
+
+        }
+
+        lock.lock();
+        try {
+            if (!running) {
+                connection.close();
+                connection.state = ScribeConnection.State.BROKEN;
+
+            } else if (connection.isOpen()) {
+                connection.state = ScribeConnection.State.IDLE;
+                connectionAvailable.signal();
+                return true;
+
+            } else {
+                connection.state = ScribeConnection.State.BROKEN;
+
+            }
+
+            return false;
+
+        } finally {
+            lock.unlock();
+
+        }
+    }
+
+    private class Reconnector implements Runnable {
+        @Override
+        public void run() {
+            List<ScribeConnection> broken = new ArrayList<ScribeConnection>();
+
+            while (running) {
+                lock.lock();
+                try {
+                    for (ScribeConnection connection : connections) {
+                        if (connection.state == ScribeConnection.State.BROKEN) {
+                            connection.state = ScribeConnection.State.CONNECTING;
+                            broken.add(connection);
+                        }
+                    }
+
+                    if (broken.isEmpty()) {
+                        connectionBroken.await();
+                        continue;
+                    }
+
+                } catch (InterruptedException e) {
+                    break;
+
+                } finally {
+                    lock.unlock();
+
+                }
+
+                for (ScribeConnection connection : broken) {
+                    boolean reconnecting = connection.wasOpened();
+
+                    if (running && connect(connection) && reconnecting) {
+                        reconnects.incrementAndGet();
+                    }
+                }
+
+                broken.clear();
+
+                try {
+                    // Don't spin against a host that is refusing connections
+                    Thread.sleep(reconnectInterval);
+
+                } catch (InterruptedException e) {
+                    break;
+
+                }
+            }
+        }
+    }
+}
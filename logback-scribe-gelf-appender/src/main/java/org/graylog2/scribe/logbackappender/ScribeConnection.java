@@ -0,0 +1,140 @@
+package org.graylog2.scribe.logbackappender;
+
+import org.apache.thrift.TException;
+import org.apache.thrift.protocol.TBinaryProtocol;
+import org.apache.thrift.protocol.TField;
+import org.apache.thrift.protocol.TList;
+import org.apache.thrift.protocol.TMessage;
+import org.apache.thrift.protocol.TMessageType;
+import org.apache.thrift.protocol.TProtocol;
+import org.apache.thrift.protocol.TStruct;
+import org.apache.thrift.protocol.TType;
+import org.apache.thrift.transport.TFramedTransport;
+import org.apache.thrift.transport.TSocket;
+import org.apache.thrift.transport.TTransportException;
+import scribe.thrift.ResultCode;
+import scribe.thrift.scribe;
+
+/**
+ * A single framed Thrift connection to a Scribe host. Not thread safe, {@link ScribeClientPool} hands each connection
+ * to one sender at a time.
+ */
+class ScribeConnection {
+    enum State {
+        IDLE, BUSY, BROKEN, CONNECTING
+    }
+
+    private final String host;
+    private final int port;
+    private final int socketTimeout;
+    private final String address;
+
+    private TFramedTransport transport;
+    private BatchClient client;
+    private boolean opened;
+
+    // Guarded by the owning pool's lock
+    State state = State.BROKEN;
+
+    ScribeConnection(String host, int port, int socketTimeout) {
+        this.host = host;
+        this.port = port;
+        this.socketTimeout = socketTimeout;
+        this.address = host + ":" + port;
+    }
+
+    void open() throws TTransportException {
+        close();
+
+        TSocket sock = new TSocket(host, port, socketTimeout);
+        TFramedTransport framedTransport = new TFramedTransport(sock);
+        framedTransport.open();
+
+        TBinaryProtocol protocol = new TBinaryProtocol(framedTransport, false, false);
+        client = new BatchClient(protocol);
+        transport = framedTransport;
+        opened = true;
+    }
+
+    /**
+     * @return whether the connection was ever opened, so opening it again is a reconnect
+     */
+    boolean wasOpened() {
+        return opened;
+    }
+
+    boolean isOpen() {
+        return transport != null && transport.isOpen();
+    }
+
+    void close() {
+        if (transport != null) {
+            transport.close();
+            transport = null;
+            client = null;
+        }
+    }
+
+    /**
+     * Sends the first count entries of the batch in a single Log() call.
+     */
+    ResultCode log(LogEntryBatch batch, int count) throws TException {
+        if (client == null) {
+            throw new TTransportException(TTransportException.NOT_OPEN, "Not connected to " + this);
+        }
+
+        client.send_Log(batch, count);
+        return client.recv_Log();
+    }
+
+    String getAddress() {
+        return address;
+    }
+
+    @Override
+    public String toString() {
+        return address;
+    }
+
+    /**
+     * Writes Log() calls straight from a {@link LogEntryBatch}. The messages go out as binary fields, which have the
+     * same wire format as the string fields of LogEntry, so the server sees an ordinary Log() call.
+     */
+    private static class BatchClient extends scribe.Client {
+        private static final TStruct LOG_ARGS = new TStruct("Log_args");
+        private static final TField MESSAGES = new TField("messages", TType.LIST, (short) 1);
+        private static final TStruct LOG_ENTRY = new TStruct("LogEntry");
+        private static final TField CATEGORY = new TField("category", TType.STRING, (short) 1);
+        private static final TField MESSAGE = new TField("message", TType.STRING, (short) 2);
+
+        BatchClient(TProtocol protocol) {
+            super(protocol, protocol);
+        }
+
+        void send_Log(LogEntryBatch batch, int count) throws TException {
+            oprot_.writeMessageBegin(new TMessage("Log", TMessageType.CALL, ++seqid_));
+            oprot_.writeStructBegin(LOG_ARGS);
+            oprot_.writeFieldBegin(MESSAGES);
+            oprot_.writeListBegin(new TList(TType.STRUCT, count));
+
+            for (int i = 0; i < count; i++) {
+                oprot_.writeStructBegin(LOG_ENTRY);
+                oprot_.writeFieldBegin(CATEGORY);
+                oprot_.writeBinary(batch.category());
+                oprot_.writeFieldEnd();
+                oprot_.writeFieldBegin(MESSAGE);
+                oprot_.writeBinary(batch.message(i));
+                oprot_.writeFieldEnd();
+                oprot_.writeFieldStop();
+                oprot_.writeStructEnd();
+            }
+
+            oprot_.writeListEnd();
+            oprot_.writeFieldEnd();
+            oprot_.writeFieldStop();
+            oprot_.writeStructEnd();
+            oprot_.writeMessageEnd();
+            oprot_.getTransport().flush();
+        }
+    }
+}
@@ -0,0 +1,353 @@
+package org.graylog2.scribe.logbackappender;
+
+import ch.qos.logback.core.spi.DeferredProcessingAware;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Non-blocking GELF Appender. Application threads only enqueue events into a bounded lock-free ring buffer, a
+ * dedicated sender thread drains it, converts the events and sends them to Scribe in batches.
+ * <p/>
+ * A batch is sent once it reaches the max batch size or max batch bytes, or once the linger time has passed since
+ * its first event was drained, whichever comes first. With several sender threads, each sending over its own pooled
+ * connection, that many batches can be in flight at once.
+ * <p/>
+ * When the queue is full events are handled according to the configured {@link OverflowPolicy} and counted in
+ * {@link #getDroppedEvents()}.
+ * <p/>
+ * With deferred formatting the logging thread only captures what can't be read later, see
+ * {@link GELFConverter#prepareForDeferredConversion(Object)}, and even the message is formatted on the sender threads.
+ */
+public class ScribeGELFAppender<T extends DeferredProcessingAware> extends ScribeBlockingGELFAppender<T> {
+    private static final int QUEUE_SIZE = Integer.getInteger("ScribeGELFAppender.QUEUE_SIZE", 8192);
+    private static final String OVERFLOW_POLICY = System.getProperty("ScribeGELFAppender.OVERFLOW_POLICY", OverflowPolicy.DROP_NEWEST.name());
+    private static final long BLOCK_TIMEOUT = Long.getLong("ScribeGELFAppender.BLOCK_TIMEOUT", 100L);
+    private static final long STOP_TIMEOUT = Long.getLong("ScribeGELFAppender.STOP_TIMEOUT", 10000L);
+    private static final long INTERRUPT_TIMEOUT = 1000;
+    private static final long LINGER_TIME = Long.getLong("ScribeGELFAppender.LINGER_TIME", 5L);
+    private static final int SENDER_THREADS = Integer.getInteger("ScribeGELFAppender.SENDER_THREADS", 1);
+    private static final boolean DEFERRED_FORMATTING = Boolean.getBoolean("ScribeGELFAppender.DEFERRED_FORMATTING");
+    private static final long BLOCKED_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private int queueSize = QUEUE_SIZE;
+    private OverflowPolicy overflowPolicy = OverflowPolicy.valueOf(OVERFLOW_POLICY);
+    private long blockTimeout = BLOCK_TIMEOUT;
+    private long lingerTime = LINGER_TIME;
+    private int senderThreads = SENDER_THREADS;
+    private boolean deferredFormatting = DEFERRED_FORMATTING;
+
+    private final AtomicLong droppedEvents = new AtomicLong();
+
+    private RingBuffer<T> queue;
+    private volatile boolean running;
+    private volatile List<Sender> senders = Collections.emptyList();
+
+    public ScribeGELFAppender(String scribeHost, int scribePort, String scribeCategory, GELFConverter<T> gelfConverter) {
+        super(scribeHost, scribePort, scribeCategory, gelfConverter);
+    }
+
+    @Override
+    public synchronized void start() {
+        if (isStarted()) {
+            return;
+        }
+
+        if (senderThreads < 1) {
+            addError("senderThreads must be at least 1, was " + senderThreads);
+            return;
+        }
+
+        queue = new RingBuffer<T>(queueSize);
+        super.start();
+
+        if (!isStarted()) {
+            return;
+        }
+
+        running = true;
+        List<Sender> started = new ArrayList<Sender>(senderThreads);
+
+        for (int i = 0; i < senderThreads; i++) {
+            Sender sender = new Sender();
+            sender.thread = new Thread(sender, "ScribeGELFAppender-" + getName() + "-" + i);
+            sender.thread.setDaemon(true);
+            sender.thread.start();
+            started.add(sender);
+        }
+
+        senders = started;
+
+        addInfo("Queueing up to " + queue.capacity() + " events for " + senderThreads + " sender thread(s), overflow policy " + overflowPolicy);
+    }
+
+    /**
+     * Gives the senders up to the stop timeout to send what is queued, failing batches are no longer retried. Senders
+     * still busy after that are interrupted, and whatever they leave queued is counted as dropped.
+     */
+    @Override
+    public synchronized void stop() {
+        running = false;
+        wakeBackoff();
+
+        for (Sender sender : senders) {
+            LockSupport.unpark(sender.thread);
+        }
+
+        long deadline = System.currentTimeMillis() + STOP_TIMEOUT;
+        boolean exited = true;
+
+        for (Sender sender : senders) {
+            join(sender, deadline - System.currentTimeMillis());
+
+            if (sender.thread.isAlive()) {
+                addWarn("Sender thread " + sender.thread.getName() + " did not finish within " + STOP_TIMEOUT + "ms, interrupting it");
+                sender.abandoned = true;
+                sender.thread.interrupt();
+                join(sender, INTERRUPT_TIMEOUT);
+            }
+
+            if (sender.thread.isAlive()) {
+                addWarn("Sender thread " + sender.thread.getName() + " did not exit after being interrupted");
+                exited = false;
+            }
+        }
+
+        senders = Collections.emptyList();
+        super.stop();
+
+        if (queue != null) {
+            int remaining = queue.size();
+
+            if (remaining > 0) {
+                droppedEvents.addAndGet(remaining);
+                addWarn("Discarding " + remaining + " events still queued on stop" + (exited ? "" : ", some may still be sent by the senders that didn't exit"));
+            }
+        }
+    }
+
+    private void join(Sender sender, long timeout) {
+        try {
+            sender.thread.join(Math.max(1, timeout));
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+
+        }
+    }
+
+    @Override
+    protected boolean isRetrying() {
+        return running && super.isRetrying();
+    }
+
+    @Override
+    protected void append(T eventObject) {
+        // The event is handled on the sender thread, so capture anything that is lazily read from the calling thread
+        if (deferredFormatting) {
+            getConverter().prepareForDeferredConversion(eventObject);
+
+        } else {
+            eventObject.prepareForDeferredProcessing();
+
+        }
+
+        if (queue.offer(eventObject)) {
+            wakeSender();
+            return;
+        }
+
+        switch (overflowPolicy) {
+            case DROP_OLDEST:
+                while (!queue.offer(eventObject)) {
+                    if (queue.poll() != null) {
+                        droppedEvents.incrementAndGet();
+                    }
+                }
+                wakeSender();
+                break;
+
+            case BLOCK_WITH_TIMEOUT:
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(blockTimeout);
+
+                while (!queue.offer(eventObject)) {
+                    if (System.nanoTime() - deadline >= 0) {
+                        droppedEvents.incrementAndGet();
+                        return;
+                    }
+
+                    wakeSender();
+                    LockSupport.parkNanos(BLOCKED_PARK_NANOS);
+                }
+                wakeSender();
+                break;
+
+            default:
+                droppedEvents.incrementAndGet();
+
+        }
+    }
+
+    private void wakeSender() {
+        for (Sender sender : senders) {
+            // Whilst lingering a sender is only worth waking once a full batch is waiting
+            if (sender.parked || (sender.lingering && queue.size() >= getMaxBatchSize())) {
+                LockSupport.unpark(sender.thread);
+                return;
+            }
+        }
+    }
+
+    @Override
+    public long getDroppedEvents() {
+        return droppedEvents.get();
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return queue == null ? 0 : queue.size();
+    }
+
+    public int getQueueSize() {
+        return queueSize;
+    }
+
+    /**
+     * @param queueSize Maximum number of queued events, rounded up to the next power of two. Applies on the next start.
+     */
+    public void setQueueSize(int queueSize) {
+        this.queueSize = queueSize;
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    public long getBlockTimeout() {
+        return blockTimeout;
+    }
+
+    /**
+     * @param blockTimeout Maximum time in milliseconds a logging thread waits for room under
+     *                     {@link OverflowPolicy#BLOCK_WITH_TIMEOUT}
+     */
+    public void setBlockTimeout(long blockTimeout) {
+        this.blockTimeout = blockTimeout;
+    }
+
+    public long getLingerTime() {
+        return lingerTime;
+    }
+
+    /**
+     * @param lingerTime Time in milliseconds to wait for a batch to fill up before sending it, 0 to send immediately
+     */
+    public void setLingerTime(long lingerTime) {
+        this.lingerTime = lingerTime;
+    }
+
+    public int getSenderThreads() {
+        return senderThreads;
+    }
+
+    /**
+     * @param senderThreads Number of threads draining the queue. Each sends over its own pooled connection, so set
+     *                      connectionsPerHost accordingly.
+     */
+    public void setSenderThreads(int senderThreads) {
+        this.senderThreads = senderThreads;
+    }
+
+    public boolean isDeferredFormatting() {
+        return deferredFormatting;
+    }
+
+    /**
+     * @param deferredFormatting Whether to format messages on the sender threads rather than the logging thread. The
+     *                           message arguments are then only turned into strings once the event is sent, so they
+     *                           must not be changed after logging them.
+     */
+    public void setDeferredFormatting(boolean deferredFormatting) {
+        this.deferredFormatting = deferredFormatting;
+    }
+
+    private class Sender implements Runnable {
+        private Thread thread;
+        private volatile boolean parked;
+        private volatile boolean lingering;
+        private volatile boolean abandoned;
+
+        @Override
+        public void run() {
+            List<T> batch = new ArrayList<T>();
+
+            while (running) {
+                if (queue.drainTo(batch, getMaxBatchSize()) > 0) {
+                    linger(batch);
+                    send(batch);
+                    continue;
+                }
+
+                parked = true;
+
+                // Re-check after publishing the flag so a concurrent append can't be missed
+                if (queue.isEmpty() && running) {
+                    LockSupport.parkNanos(IDLE_PARK_NANOS);
+                }
+
+                parked = false;
+            }
+
+            // Flush whatever was queued before the appender stopped, unless stopping gave up waiting for it
+            while (!abandoned && queue.drainTo(batch, getMaxBatchSize()) > 0) {
+                send(batch);
+            }
+        }
+
+        private void linger(List<T> batch) {
+            int maxBatchSize = getMaxBatchSize();
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(lingerTime);
+
+            lingering = true;
+
+            while (batch.size() < maxBatchSize && running) {
+                if (queue.drainTo(batch, maxBatchSize - batch.size()) > 0) {
+                    continue;
+                }
+
+                long remaining = deadline - System.nanoTime();
+
+                if (remaining <= 0) {
+                    break;
+                }
+
+                LockSupport.parkNanos(remaining);
+            }
+
+            lingering = false;
+        }
+
+        private void send(List<T> batch) {
+            try {
+                processBuffer(batch);
+
+            } catch (Throwable e) {
+                // Anything escaping here would end the sender, and with it delivery of everything still queued
+                addError("Failed to send " + batch.size() + " events", e);
+
+            } finally {
+                batch.clear();
+
+            }
+        }
+    }
+}
@@ -0,0 +1,279 @@
+package org.graylog2.scribe.logbackappender;
+
+import ch.qos.logback.classic.spi.IThrowableProxy;
+import ch.qos.logback.classic.spi.StackTraceElementProxy;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers how recently seen throwables were rendered, so a storm of identical errors renders its stack trace, with
+ * the packaging data, once rather than once per event.
+ * <p/>
+ * A throwable is looked up by a hash of its class names, messages and frames, causes and suppressed throwables
+ * included, computed once from its proxy. Only on a hash match is the proxy compared in full against the stored copy,
+ * so a collision can't return another throwable's stack trace, and only renders that get stored copy the throwable.
+ * The least recently used renders are evicted beyond maxEntries, and renders longer than maxRenderLength are never
+ * kept.
+ */
+class ThrowableRenderCache {
+    private final int maxEntries;
+    private final int maxRenderLength;
+    private final Map<Key, String> renders;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    ThrowableRenderCache(int maxEntries, int maxRenderLength) {
+        this.maxEntries = maxEntries;
+        this.maxRenderLength = maxRenderLength;
+        this.renders = new LruMap(maxEntries);
+    }
+
+    /**
+     * @return the key to {@link #get get} and {@link #put put} the throwable's render by, which holds on to the proxy
+     */
+    Lookup lookup(IThrowableProxy proxy) {
+        return new Lookup(proxy, maxEntries > 0 ? hash(proxy) : 0);
+    }
+
+    /**
+     * @return the remembered render of the throwable, or null if it has to be rendered and {@link #put put}
+     */
+    String get(Lookup lookup) {
+        if (maxEntries <= 0) {
+            return null;
+        }
+
+        String render;
+
+        synchronized (renders) {
+            render = renders.get(lookup);
+        }
+
+        (render != null ? hits : misses).incrementAndGet();
+        return render;
+    }
+
+    void put(Lookup lookup, String render) {
+        if (maxEntries <= 0 || render.length() > maxRenderLength) {
+            return;
+        }
+
+        Stored key = new Stored(lookup.hash, new Snapshot(lookup.proxy));
+
+        synchronized (renders) {
+            renders.put(key, render);
+        }
+    }
+
+    long getHits() {
+        return hits.get();
+    }
+
+    long getMisses() {
+        return misses.get();
+    }
+
+    private static int hash(IThrowableProxy proxy) {
+        String message = proxy.getMessage();
+
+        int hash = proxy.getClassName().hashCode();
+        hash = 31 * hash + (message == null ? 0 : message.hashCode());
+        hash = 31 * hash + proxy.getCommonFrames();
+
+        for (StackTraceElementProxy frame : proxy.getStackTraceElementProxyArray()) {
+            hash = 31 * hash + frame.getStackTraceElement().hashCode();
+        }
+
+        IThrowableProxy cause = proxy.getCause();
+        hash = 31 * hash + (cause == null ? 0 : hash(cause));
+
+        IThrowableProxy[] suppressed = proxy.getSuppressed();
+
+        if (suppressed != null) {
+            for (IThrowableProxy s : suppressed) {
+                hash = 31 * hash + hash(s);
+            }
+        }
+
+        return hash;
+    }
+
+    private static final class LruMap extends LinkedHashMap<Key, String> {
+        private static final long serialVersionUID = 1L;
+
+        private final int maxEntries;
+
+        LruMap(int maxEntries) {
+            super(16, 0.75f, true);
+            this.maxEntries = maxEntries;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, String> eldest) {
+            return size() > maxEntries;
+        }
+    }
+
+    private abstract static class Key {
+        final int hash;
+
+        Key(int hash) {
+            this.hash = hash;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    /**
+     * A throwable being looked up, compared straight against the stored copies without copying it.
+     */
+    static final class Lookup extends Key {
+        private final IThrowableProxy proxy;
+
+        private Lookup(IThrowableProxy proxy, int hash) {
+            super(hash);
+            this.proxy = proxy;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return this == o || o instanceof Stored && hash == ((Stored) o).hash && ((Stored) o).snapshot.matches(proxy);
+        }
+    }
+
+    private static final class Stored extends Key {
+        private final Snapshot snapshot;
+
+        Stored(int hash, Snapshot snapshot) {
+            super(hash);
+            this.snapshot = snapshot;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+
+            if (o instanceof Lookup) {
+                return o.equals(this);
+            }
+
+            return o instanceof Stored && hash == ((Stored) o).hash && snapshot.equals(((Stored) o).snapshot);
+        }
+    }
+
+    /**
+     * What a throwable is compared by, copied out of its proxy so the cache doesn't keep the throwable, or the
+     * class loaders its packaging data refers to, alive.
+     */
+    private static final class Snapshot {
+        private final String className;
+        private final String message;
+        private final int commonFrames;
+        private final StackTraceElement[] frames;
+        private final Snapshot cause;
+        private final Snapshot[] suppressed;
+
+        private Snapshot(IThrowableProxy proxy) {
+            this.className = proxy.getClassName();
+            this.message = proxy.getMessage();
+            this.commonFrames = proxy.getCommonFrames();
+
+            StackTraceElementProxy[] proxies = proxy.getStackTraceElementProxyArray();
+            this.frames = new StackTraceElement[proxies.length];
+
+            for (int i = 0; i < proxies.length; i++) {
+                frames[i] = proxies[i].getStackTraceElement();
+            }
+
+            this.cause = of(proxy.getCause());
+
+            IThrowableProxy[] suppressedProxies = proxy.getSuppressed();
+            this.suppressed = new Snapshot[suppressedProxies == null ? 0 : suppressedProxies.length];
+
+            for (int i = 0; i < suppressed.length; i++) {
+                suppressed[i] = of(suppressedProxies[i]);
+            }
+        }
+
+        static Snapshot of(IThrowableProxy proxy) {
+            return proxy == null ? null : new Snapshot(proxy);
+        }
+
+        /**
+         * @return whether the throwable is the one copied, frame by frame
+         */
+        boolean matches(IThrowableProxy proxy) {
+            if (!className.equals(proxy.getClassName())
+                    || !(message == null ? proxy.getMessage() == null : message.equals(proxy.getMessage()))
+                    || commonFrames != proxy.getCommonFrames()) {
+                return false;
+            }
+
+            StackTraceElementProxy[] proxies = proxy.getStackTraceElementProxyArray();
+
+            if (frames.length != proxies.length) {
+                return false;
+            }
+
+            for (int i = 0; i < frames.length; i++) {
+                if (!frames[i].equals(proxies[i].getStackTraceElement())) {
+                    return false;
+                }
+            }
+
+            IThrowableProxy causeProxy = proxy.getCause();
+
+            if (cause == null ? causeProxy != null : causeProxy == null || !cause.matches(causeProxy)) {
+                return false;
+            }
+
+            IThrowableProxy[] suppressedProxies = proxy.getSuppressed();
+
+            if (suppressed.length != (suppressedProxies == null ? 0 : suppressedProxies.length)) {
+                return false;
+            }
+
+            for (int i = 0; i < suppressed.length; i++) {
+                if (!suppressed[i].matches(suppressedProxies[i])) {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+
+        @Override
+        public int hashCode() {
+            // Stored keys carry the hash, snapshots are only compared once it matched
+            return className.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+
+            if (!(o instanceof Snapshot)) {
+                return false;
+            }
+
+            Snapshot other = (Snapshot) o;
+            return className.equals(other.className)
+                    && (message == null ? other.message == null : message.equals(other.message))
+                    && commonFrames == other.commonFrames
+                    && Arrays.equals(frames, other.frames)
+                    && (cause == null ? other.cause == null : cause.equals(other.cause))
+                    && Arrays.equals(suppressed, other.suppressed);
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package org.graylog2.scribe.logbackappender;
+
+import java.nio.charset.Charset;
+
+/**
+ * Growable byte array that GELF JSON is encoded into as UTF-8. Unlike ByteArrayOutputStream it is unsynchronized and
+ * exposes its backing array, so the bytes can be handed to the protocol without another copy.
+ */
+public class UTF8Buffer {
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private byte[] bytes;
+    private int length;
+
+    public UTF8Buffer(int initialCapacity) {
+        this.bytes = new byte[initialCapacity];
+    }
+
+    public byte[] array() {
+        return bytes;
+    }
+
+    public int length() {
+        return length;
+    }
+
+    /**
+     * Discards the content, releasing the backing array if it has grown beyond maxRetainedCapacity.
+     */
+    public void clear(int maxRetainedCapacity) {
+        length = 0;
+
+        if (bytes.length > maxRetainedCapacity) {
+            bytes = new byte[maxRetainedCapacity];
+        }
+    }
+
+    /**
+     * Discards everything from the given length onwards.
+     */
+    public void truncate(int length) {
+        this.length = length;
+    }
+
+    /**
+     * Discards everything before the given offset, moving the remaining bytes to the start of the buffer.
+     */
+    public void discard(int offset) {
+        System.arraycopy(bytes, offset, bytes, 0, length - offset);
+        length -= offset;
+    }
+
+    public void write(int b) {
+        if (length == bytes.length) {
+            grow(length + 1);
+        }
+
+        bytes[length++] = (byte) b;
+    }
+
+    public void write(byte[] b) {
+        write(b, 0, b.length);
+    }
+
+    public void write(byte[] b, int offset, int count) {
+        ensureCapacity(length + count);
+        System.arraycopy(b, offset, bytes, length, count);
+        length += count;
+    }
+
+    /**
+     * Makes room for at least the given total length, so callers can encode several bytes without bounds checks.
+     */
+    void ensureCapacity(int capacity) {
+        if (capacity > bytes.length) {
+            grow(capacity);
+        }
+    }
+
+    /**
+     * Writes a byte whose space was reserved by {@link #ensureCapacity(int)}.
+     */
+    void put(int b) {
+        bytes[length++] = (byte) b;
+    }
+
+    /**
+     * Takes in count bytes written straight into the backing array, into space reserved by
+     * {@link #ensureCapacity(int)}.
+     */
+    void advance(int count) {
+        length += count;
+    }
+
+    public String toString(int offset, int count) {
+        return new String(bytes, offset, count, UTF8);
+    }
+
+    @Override
+    public String toString() {
+        return toString(0, length);
+    }
+
+    private void grow(int capacity) {
+        byte[] grown = new byte[Math.max(capacity, bytes.length * 2)];
+        System.arraycopy(bytes, 0, grown, 0, length);
+        bytes = grown;
+    }
+}
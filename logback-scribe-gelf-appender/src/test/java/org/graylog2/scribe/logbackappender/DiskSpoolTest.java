@@ -0,0 +1,234 @@
+package org.graylog2.scribe.logbackappender;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class DiskSpoolTest {
+    private static final int SEGMENT_SIZE = 4096;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final List<DiskSpool> opened = new ArrayList<DiskSpool>();
+
+    @After
+    public void tearDown() {
+        for (DiskSpool spool : opened) {
+            spool.close();
+        }
+    }
+
+    @Test
+    public void replaysUncommittedEntriesAfterReopen() throws IOException {
+        File directory = folder.getRoot();
+        DiskSpool spool = open(directory);
+
+        assertTrue(spool.isEmpty());
+        append(spool, "category", "one", "two", "three");
+        assertFalse(spool.isEmpty());
+        assertEquals(Arrays.asList("one", "two", "three"), read(spool));
+
+        // Read but never committed, as if the process died while sending
+        spool.close();
+        spool = open(directory);
+
+        assertEquals(Arrays.asList("one", "two", "three"), read(spool));
+        spool.commit();
+        assertTrue(spool.isEmpty());
+        assertNull(spool.read(100, 1 << 20));
+
+        append(spool, "category", "four");
+        spool.close();
+        spool = open(directory);
+
+        assertEquals(Arrays.asList("four"), read(spool));
+        spool.commit();
+        spool.close();
+        spool = open(directory);
+
+        assertTrue(spool.isEmpty());
+        assertNull(spool.read(100, 1 << 20));
+    }
+
+    @Test
+    public void opensEmptyOnceEverythingWasDelivered() throws IOException {
+        File directory = folder.getRoot();
+        DiskSpool spool = open(directory);
+        append(spool, "category", "one", "two");
+        read(spool);
+        spool.commit();
+        spool.close();
+
+        spool = open(directory);
+        assertTrue(spool.isEmpty());
+        assertEquals(0, spool.getPendingBytes());
+
+        append(spool, "category", "three");
+        assertFalse(spool.isEmpty());
+        assertEquals(Arrays.asList("three"), read(spool));
+    }
+
+    @Test
+    public void readStartsOverUntilCommitted() throws IOException {
+        DiskSpool spool = open(folder.getRoot());
+        append(spool, "category", "one", "two");
+
+        assertEquals(Arrays.asList("one", "two"), read(spool));
+        assertEquals(Arrays.asList("one", "two"), read(spool));
+        spool.commit();
+        assertNull(spool.read(100, 1 << 20));
+    }
+
+    @Test
+    public void batchesHoldOneCategory() throws IOException {
+        DiskSpool spool = open(folder.getRoot());
+        append(spool, "a", "a1", "a2");
+        append(spool, "b", "b1");
+        append(spool, "a", "a3");
+
+        LogEntryBatch batch = spool.read(100, 1 << 20);
+        assertEquals("a", batch.entry(0).getCategory());
+        assertEquals(2, batch.size());
+        spool.commit();
+
+        batch = spool.read(100, 1 << 20);
+        assertEquals("b", batch.entry(0).getCategory());
+        assertEquals(1, batch.size());
+        spool.commit();
+
+        assertEquals(Arrays.asList("a3"), read(spool));
+    }
+
+    @Test
+    public void batchesHonourLimits() throws IOException {
+        DiskSpool spool = open(folder.getRoot());
+        append(spool, "c", "one", "two", "three", "four");
+
+        assertEquals(2, spool.read(2, 1 << 20).size());
+        // Category and message bytes, the first entry is always taken
+        assertEquals(1, spool.read(100, 1).size());
+        assertEquals(2, spool.read(100, 2 * ("c".length() + "one".length())).size());
+    }
+
+    @Test
+    public void spansSegmentsAcrossReopen() throws IOException {
+        File directory = folder.getRoot();
+        DiskSpool spool = open(directory, 16 * SEGMENT_SIZE);
+        List<String> messages = new ArrayList<String>();
+
+        for (int i = 0; i < 100; i++) {
+            messages.add(i + "-" + new String(new char[200]).replace('\0', 'x'));
+        }
+
+        append(spool, "category", messages.toArray(new String[messages.size()]));
+        assertTrue(directory.list().length > 3);
+        spool.close();
+        spool = open(directory, 16 * SEGMENT_SIZE);
+
+        List<String> replayed = new ArrayList<String>();
+        LogEntryBatch batch;
+
+        while ((batch = spool.read(7, 1 << 20)) != null) {
+            for (int i = 0; i < batch.size(); i++) {
+                replayed.add(batch.entry(i).getMessage());
+            }
+
+            spool.commit();
+        }
+
+        assertEquals(messages, replayed);
+        assertTrue(spool.isEmpty());
+        // Only the offset file and the segment new entries go to are left
+        assertTrue(Arrays.toString(directory.list()), directory.list().length <= 2);
+    }
+
+    @Test
+    public void refusesEntriesOnceFull() throws IOException {
+        DiskSpool spool = open(folder.getRoot(), 2 * SEGMENT_SIZE);
+        String message = new String(new char[1000]).replace('\0', 'x');
+        int appended = 0;
+
+        while (spool.append(bytes("category"), bytes(message))) {
+            appended++;
+        }
+
+        // Four records fit a segment
+        assertEquals(8, appended);
+        assertFalse(spool.append(bytes("category"), bytes(new String(new char[SEGMENT_SIZE]))));
+
+        // Delivering the oldest segment makes room again
+        spool.read(appended, 1 << 20);
+        spool.commit();
+        assertTrue(spool.append(bytes("category"), bytes(message)));
+    }
+
+    @Test
+    public void refusesSecondOpen() throws IOException {
+        open(folder.getRoot());
+
+        try {
+            new DiskSpool(folder.getRoot(), SEGMENT_SIZE, 16 * SEGMENT_SIZE).open();
+            fail("Opened a spool directory in use");
+
+        } catch (IOException e) {
+            // Expected
+
+        }
+    }
+
+    @Test
+    public void refusesEntriesOnceClosed() throws IOException {
+        DiskSpool spool = open(folder.getRoot());
+        spool.close();
+
+        assertFalse(spool.append(bytes("category"), bytes("message")));
+        assertNull(spool.read(100, 1 << 20));
+    }
+
+    private DiskSpool open(File directory) throws IOException {
+        return open(directory, 16 * SEGMENT_SIZE);
+    }
+
+    private DiskSpool open(File directory, long maxBytes) throws IOException {
+        DiskSpool spool = new DiskSpool(directory, SEGMENT_SIZE, maxBytes);
+        spool.open();
+        opened.add(spool);
+        return spool;
+    }
+
+    private static void append(DiskSpool spool, String category, String... messages) throws IOException {
+        for (String message : messages) {
+            assertTrue(spool.append(bytes(category), bytes(message)));
+        }
+    }
+
+    private static List<String> read(DiskSpool spool) throws IOException {
+        LogEntryBatch batch = spool.read(100, 1 << 20);
+        List<String> messages = new ArrayList<String>();
+
+        for (int i = 0; i < batch.size(); i++) {
+            messages.add(batch.entry(i).getMessage());
+        }
+
+        return messages;
+    }
+
+    private static ByteBuffer bytes(String value) {
+        return ByteBuffer.wrap(value.getBytes(UTF8Buffer.UTF8));
+    }
+}
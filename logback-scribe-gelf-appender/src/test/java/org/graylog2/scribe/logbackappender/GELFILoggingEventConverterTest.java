@@ -0,0 +1,136 @@
+package org.graylog2.scribe.logbackappender;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class GELFILoggingEventConverterTest {
+    private final LoggerContext context = new LoggerContext();
+
+    @Test
+    public void mdcReplacesStandardFields() {
+        Map<String, String> additionalFields = new LinkedHashMap<String, String>();
+        additionalFields.put("origin", "host");
+        additionalFields.put("worker", "_thread");
+
+        GELFILoggingEventConverter converter = new GELFILoggingEventConverter("facility", true, true, additionalFields, 200, "host1", "1");
+        Map<String, String> mdc = new HashMap<String, String>();
+        mdc.put("origin", "host2");
+
+        String json = converter.toGelf(event("hello", mdc));
+        JsonObject fields = parse(json);
+
+        assertEquals(1, count(json, "\"host\":"));
+        assertEquals(1, count(json, "\"_thread\":"));
+        assertEquals("host2", fields.get("host").getAsString());
+        assertEquals("main", fields.get("_thread").getAsString());
+        assertEquals("facility", fields.get("facility").getAsString());
+    }
+
+    @Test
+    public void lastMdcKeyOfTheSameNameWins() {
+        Map<String, String> additionalFields = new LinkedHashMap<String, String>();
+        additionalFields.put("requestId", "_request");
+        additionalFields.put("request_id", "_request");
+
+        GELFILoggingEventConverter converter = new GELFILoggingEventConverter("facility", false, false, additionalFields, 200, "host1", "1");
+        Map<String, String> mdc = new HashMap<String, String>();
+        mdc.put("requestId", "a");
+        mdc.put("request_id", "b");
+
+        String json = converter.toGelf(event("hello", mdc));
+        assertEquals(1, count(json, "\"_request\":"));
+        assertEquals("b", parse(json).get("_request").getAsString());
+
+        mdc.remove("request_id");
+        assertEquals("a", parse(converter.toGelf(event("hello", mdc))).get("_request").getAsString());
+    }
+
+    @Test
+    public void writesTimestampInDecimalSeconds() {
+        GELFILoggingEventConverter converter = new GELFILoggingEventConverter("facility", false, false, new HashMap<String, String>(), 200, "host1", "1");
+        LoggingEvent event = event("hello", new HashMap<String, String>());
+        event.setTimeStamp(1381234567891L);
+
+        String json = converter.toGelf(event);
+
+        assertEquals(1, count(json, "\"timestamp\":1381234567.891,"));
+        assertEquals(1381234567.891, parse(json).get("timestamp").getAsDouble(), 0);
+    }
+
+    @Test
+    public void writesMapsOfLegacyConverters() {
+        GELFConverter<String> converter = new GELFConverter<String>("facility", "1", 200, "host1") {
+            @Override
+            protected Map<String, Object> mapFields(String logEvent) {
+                Map<String, Object> map = new HashMap<String, Object>();
+                map.put("short_message", logEvent);
+                map.put("level", 6);
+                map.put("timestamp", 1381234567.891);
+                map.put("_missing", null);
+                return map;
+            }
+        };
+
+        JsonObject fields = parse(converter.toGelf("hello <world>"));
+
+        assertEquals("hello <world>", fields.get("short_message").getAsString());
+        assertEquals(6, fields.get("level").getAsInt());
+        assertEquals(1381234567.891, fields.get("timestamp").getAsDouble(), 0);
+        assertFalse(fields.has("_missing"));
+    }
+
+    @Test
+    public void legacySubclassesCanAddToTheMapOfTheirSuperclass() {
+        GELFILoggingEventConverter converter = new GELFILoggingEventConverter("facility", true, false, new HashMap<String, String>(), 200, "host1", "1") {
+            @Override
+            @SuppressWarnings("deprecation")
+            protected Map<String, Object> mapFields(ILoggingEvent logEvent) {
+                Map<String, Object> map = super.mapFields(logEvent);
+                map.put("_extra", "\"quoted\"\n\u00e9");
+                map.remove("_logger");
+                return map;
+            }
+        };
+
+        JsonObject fields = parse(converter.toGelf(event("hello", new HashMap<String, String>())));
+
+        assertEquals("hello", fields.get("full_message").getAsString());
+        assertEquals("host1", fields.get("host").getAsString());
+        assertEquals(6, fields.get("level").getAsInt());
+        assertEquals("\"quoted\"\n\u00e9", fields.get("_extra").getAsString());
+        assertFalse(fields.has("_logger"));
+    }
+
+    private LoggingEvent event(String message, Map<String, String> mdc) {
+        LoggingEvent event = new LoggingEvent("test", context.getLogger("test"), Level.INFO, message, null, null);
+        event.setThreadName("main");
+        event.setMDCPropertyMap(mdc);
+        return event;
+    }
+
+    private static JsonObject parse(String json) {
+        return new JsonParser().parse(json).getAsJsonObject();
+    }
+
+    private static int count(String json, String part) {
+        int count = 0;
+
+        for (int i = json.indexOf(part); i >= 0; i = json.indexOf(part, i + 1)) {
+            count++;
+        }
+
+        return count;
+    }
+}
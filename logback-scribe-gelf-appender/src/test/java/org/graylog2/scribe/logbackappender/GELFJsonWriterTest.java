@@ -0,0 +1,109 @@
+package org.graylog2.scribe.logbackappender;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class GELFJsonWriterTest {
+    private static final String[] EDGE_CASES = {
+            "",
+            "plain",
+            "quote \" and backslash \\",
+            "tab\tnewline\nreturn\rbackspace\bform feed\f",
+            "\u0000\u0001\u001f \u007f",
+            "<script>alert('x&y=z')</script>",
+            "line\u2028paragraph\u2029separators",
+            "two byte \u00e9\u00df\u07ff",
+            "three byte \u0800\u20ac\uffff",
+            "surrogate pair \ud83d\ude00 in text",
+            "\ud83d\ude00",
+    };
+
+    private final Gson gson = new Gson();
+
+    @Test
+    public void stringFieldsMatchGson() {
+        for (String value : EDGE_CASES) {
+            JsonObject expected = new JsonObject();
+            expected.addProperty("short_message", value);
+
+            UTF8Buffer out = new UTF8Buffer(16);
+            new GELFJsonWriter().begin(out).field("short_message", value).end();
+
+            assertEquals(gson.toJson(expected), out.toString());
+        }
+    }
+
+    @Test
+    public void fieldNamesMatchGson() {
+        for (String name : EDGE_CASES) {
+            JsonObject expected = new JsonObject();
+            expected.addProperty(name, "value");
+
+            UTF8Buffer out = new UTF8Buffer(16);
+            new GELFJsonWriter().begin(out).field(GELFJsonWriter.encodeName(name), "value").end();
+
+            assertEquals(gson.toJson(expected), out.toString());
+        }
+    }
+
+    @Test
+    public void objectMatchesGson() {
+        JsonObject expected = new JsonObject();
+        expected.addProperty("version", "1.0");
+        expected.addProperty("host", "h<1>");
+        expected.addProperty("level", 3);
+        expected.addProperty("_line", Long.MIN_VALUE);
+        expected.addProperty("_thread", Long.MAX_VALUE);
+        expected.addProperty("_count", -42);
+        expected.addProperty("full_message", "a\nb");
+        expected.addProperty("_mdc", "k=v");
+
+        UTF8Buffer out = new UTF8Buffer(16);
+        new GELFJsonWriter().begin(out)
+                .fields(GELFJsonWriter.encodeFields("version", "1.0", "_skipped", null, "host", "h<1>"))
+                .field("level", 3)
+                .field(GELFJsonWriter.encodeName("_line"), Long.MIN_VALUE)
+                .field("_thread", Long.MAX_VALUE)
+                .field("_count", -42)
+                .field("_null", null)
+                .beginStringField("full_message").append("a").append("\n").append("b").endStringField()
+                .field("_mdc", "xk=vx", 1, 4)
+                .end();
+
+        assertEquals(gson.toJson(expected), out.toString());
+    }
+
+    @Test
+    public void unpairedSurrogatesBecomeQuestionMarks() {
+        UTF8Buffer out = new UTF8Buffer(16);
+        new GELFJsonWriter().begin(out).field("a", "x\ud83dy\ude00z\ud83d").end();
+
+        assertEquals("{\"a\":\"x?y?z?\"}", out.toString());
+    }
+
+    @Test
+    public void emptyObject() {
+        UTF8Buffer out = new UTF8Buffer(16);
+        new GELFJsonWriter().begin(out).fields(GELFJsonWriter.encodeFields()).field("a", null).end();
+
+        assertEquals(gson.toJson(new JsonObject()), out.toString());
+    }
+
+    @Test
+    public void timestampsInSeconds() {
+        assertEquals("{\"timestamp\":1381234567.891}", timestamp(1381234567891L));
+        assertEquals("{\"timestamp\":1381234567.001}", timestamp(1381234567001L));
+        assertEquals("{\"timestamp\":0.005}", timestamp(5));
+        assertEquals("{\"timestamp\":0.000}", timestamp(0));
+        assertEquals("{\"timestamp\":-1.5}", timestamp(-1500));
+    }
+
+    private static String timestamp(long millis) {
+        UTF8Buffer out = new UTF8Buffer(16);
+        new GELFJsonWriter().begin(out).timestampField("timestamp", millis).end();
+        return out.toString();
+    }
+}
@@ -0,0 +1,175 @@
+package org.graylog2.scribe.logbackappender;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class MessageCompressorTest {
+    private static final String MESSAGE = message(3000);
+
+    @Test
+    public void noCompressor() {
+        assertNull(MessageCompressor.create(Compression.NONE));
+    }
+
+    @Test
+    public void gzipRoundTrip() throws IOException {
+        byte[] compressed = assertRoundTrip(Compression.GZIP);
+
+        assertEquals(MESSAGE, readFully(new GZIPInputStream(new ByteArrayInputStream(compressed))));
+    }
+
+    @Test
+    public void zlibRoundTrip() throws IOException {
+        byte[] compressed = assertRoundTrip(Compression.ZLIB);
+
+        assertEquals(MESSAGE, readFully(new InflaterInputStream(new ByteArrayInputStream(compressed))));
+    }
+
+    @Test
+    public void lz4RoundTrip() {
+        byte[] compressed = assertRoundTrip(Compression.LZ4);
+
+        assertEquals(0x184D2204, ByteBuffer.wrap(compressed).order(ByteOrder.LITTLE_ENDIAN).getInt(0));
+    }
+
+    @Test
+    public void lz4MultipleBlocksRoundTrip() {
+        String large = message(5 * 1024 * 1024);
+        LogEntryBatch batch = new LogEntryBatch("category", Compression.LZ4, 0);
+        append(batch, large);
+
+        assertEquals(large, batch.entry(0).getMessage());
+    }
+
+    @Test
+    public void messagesAreCompressedSeparately() {
+        for (Compression compression : new Compression[]{Compression.GZIP, Compression.ZLIB, Compression.LZ4}) {
+            LogEntryBatch batch = new LogEntryBatch("category", compression, 0);
+
+            for (int i = 0; i < 3; i++) {
+                append(batch, i + MESSAGE);
+            }
+
+            batch.removeFirst(1);
+
+            assertEquals(2, batch.size());
+            assertEquals(1 + MESSAGE, batch.entry(0).getMessage());
+            assertEquals(2 + MESSAGE, batch.entry(1).getMessage());
+        }
+    }
+
+    @Test
+    public void shortMessagesAreNotCompressed() {
+        LogEntryBatch batch = new LogEntryBatch("category", Compression.GZIP, 512);
+        String message = message(100);
+        append(batch, message);
+
+        assertEquals(message, bytes(batch.message(0)));
+    }
+
+    @Test
+    public void incompressibleMessagesAreKept() {
+        for (Compression compression : new Compression[]{Compression.GZIP, Compression.ZLIB, Compression.LZ4}) {
+            LogEntryBatch batch = new LogEntryBatch("category", compression, 0);
+            append(batch, "{}");
+
+            assertEquals("{}", bytes(batch.message(0)));
+            assertEquals("{}", batch.entry(0).getMessage());
+        }
+    }
+
+    @Test
+    public void truncatedMessagesAreReported() {
+        for (Compression compression : new Compression[]{Compression.GZIP, Compression.ZLIB, Compression.LZ4}) {
+            MessageCompressor compressor = MessageCompressor.create(compression);
+            byte[] compressed = compress(compressor, MESSAGE);
+
+            for (int length : new int[]{1, compressed.length / 2, compressed.length - 1}) {
+                String reported = compressor.toString(compressed, 0, length);
+
+                assertTrue(compression + " " + length + ": " + reported, reported.startsWith("<" + length + " compressed bytes"));
+            }
+        }
+    }
+
+    @Test
+    public void corruptMessagesAreReported() {
+        for (Compression compression : new Compression[]{Compression.GZIP, Compression.ZLIB}) {
+            MessageCompressor compressor = MessageCompressor.create(compression);
+            byte[] compressed = compress(compressor, MESSAGE);
+
+            for (int i = compressed.length / 3; i < compressed.length; i += 7) {
+                compressed[i] ^= 0x55;
+            }
+
+            String reported = compressor.toString(compressed, 0, compressed.length);
+
+            assertTrue(compression + ": " + reported, reported.startsWith("<" + compressed.length + " compressed bytes"));
+        }
+    }
+
+    private static byte[] assertRoundTrip(Compression compression) {
+        LogEntryBatch batch = new LogEntryBatch("category", compression, 0);
+        append(batch, MESSAGE);
+
+        ByteBuffer message = batch.message(0);
+        byte[] compressed = Arrays.copyOfRange(message.array(), message.position(), message.limit());
+
+        assertTrue(compressed.length < MESSAGE.length() / 2);
+        assertTrue(compressed[0] != '{');
+        assertEquals(MESSAGE, batch.entry(0).getMessage());
+        assertEquals("category".length() + compressed.length, batch.bytes(1));
+        return compressed;
+    }
+
+    private static byte[] compress(MessageCompressor compressor, String message) {
+        UTF8Buffer buffer = new UTF8Buffer(64);
+        buffer.write(message.getBytes(UTF8Buffer.UTF8));
+        compressor.compress(buffer, 0);
+        return Arrays.copyOf(buffer.array(), buffer.length());
+    }
+
+    private static void append(LogEntryBatch batch, String message) {
+        batch.messages().write(message.getBytes(UTF8Buffer.UTF8));
+        batch.commit();
+    }
+
+    private static String bytes(ByteBuffer message) {
+        return new String(message.array(), message.position(), message.remaining(), UTF8Buffer.UTF8);
+    }
+
+    private static String readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+
+        while ((read = in.read(buffer)) >= 0) {
+            out.write(buffer, 0, read);
+        }
+
+        return new String(out.toByteArray(), UTF8Buffer.UTF8);
+    }
+
+    private static String message(int length) {
+        StringBuilder message = new StringBuilder("{\"short_message\":\"");
+
+        for (int i = 0; message.length() < length; i++) {
+            message.append("at org.example.Service.call(Service.java:").append(i % 100).append(")\\n");
+        }
+
+        return message.append("\",\"host\":\"example\"}").toString();
+    }
+}
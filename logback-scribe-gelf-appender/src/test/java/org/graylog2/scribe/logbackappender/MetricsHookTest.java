@@ -0,0 +1,68 @@
+package org.graylog2.scribe.logbackappender;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SharedMetricRegistries;
+import com.codahale.metrics.Timer;
+import org.junit.After;
+import org.junit.Test;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class MetricsHookTest {
+    private static final String REGISTRY = "MetricsHookTest";
+
+    @After
+    public void tearDown() {
+        SharedMetricRegistries.remove(REGISTRY);
+    }
+
+    @Test
+    public void registersAGaugePerMXBeanFigure() {
+        new MetricsHook(REGISTRY, "appender", stats());
+        MetricRegistry registry = SharedMetricRegistries.getOrCreate(REGISTRY);
+
+        for (Method method : ScribeAppenderMXBean.class.getMethods()) {
+            String name = "appender." + Character.toLowerCase(method.getName().charAt(3)) + method.getName().substring(4);
+            Gauge<?> gauge = registry.getGauges().get(name);
+
+            assertNotNull("No gauge " + name, gauge);
+            assertEquals(name, (long) method.getName().hashCode(), ((Number) gauge.getValue()).longValue());
+        }
+    }
+
+    @Test
+    public void timesLogCalls() {
+        MetricsHook hook = new MetricsHook(REGISTRY, "appender", stats());
+        hook.logCall(TimeUnit.MILLISECONDS.toNanos(3));
+        hook.logCall(TimeUnit.MILLISECONDS.toNanos(5));
+
+        Timer logTime = SharedMetricRegistries.getOrCreate(REGISTRY).getTimers().get("appender.logTime");
+
+        assertEquals(2, logTime.getCount());
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(5), logTime.getSnapshot().getMax());
+
+        hook.unregister();
+        assertTrue(SharedMetricRegistries.getOrCreate(REGISTRY).getNames().isEmpty());
+    }
+
+    /**
+     * @return figures that each return the hash of their getter's name, so a gauge reading the wrong one shows
+     */
+    private static ScribeAppenderMXBean stats() {
+        return (ScribeAppenderMXBean) Proxy.newProxyInstance(ScribeAppenderMXBean.class.getClassLoader(), new Class<?>[]{ScribeAppenderMXBean.class}, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                int value = method.getName().hashCode();
+                return method.getReturnType() == int.class ? (Object) value : (Object) (long) value;
+            }
+        });
+    }
+}
@@ -0,0 +1,131 @@
+package org.graylog2.scribe.logbackappender;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class RingBufferTest {
+    @Test
+    public void roundsCapacityUpToPowerOfTwo() {
+        assertEquals(1, new RingBuffer<Integer>(1).capacity());
+        assertEquals(8, new RingBuffer<Integer>(5).capacity());
+        assertEquals(8, new RingBuffer<Integer>(8).capacity());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsEmptyCapacity() {
+        new RingBuffer<Integer>(0);
+    }
+
+    @Test
+    public void refusesOffersWhenFull() {
+        RingBuffer<Integer> buffer = new RingBuffer<Integer>(4);
+
+        for (int i = 0; i < 4; i++) {
+            assertTrue(buffer.offer(i));
+        }
+
+        assertFalse(buffer.offer(4));
+        assertEquals(4, buffer.size());
+        assertEquals(Integer.valueOf(0), buffer.poll());
+        assertTrue(buffer.offer(4));
+    }
+
+    @Test
+    public void keepsOrderAcrossLaps() {
+        RingBuffer<Integer> buffer = new RingBuffer<Integer>(4);
+        int next = 0;
+
+        for (int lap = 0; lap < 10; lap++) {
+            for (int i = 0; i < 3; i++) {
+                assertTrue(buffer.offer(lap * 3 + i));
+            }
+
+            for (int i = 0; i < 3; i++) {
+                assertEquals(Integer.valueOf(next++), buffer.poll());
+            }
+        }
+
+        assertNull(buffer.poll());
+        assertTrue(buffer.isEmpty());
+    }
+
+    @Test
+    public void drainsUpToMax() {
+        RingBuffer<Integer> buffer = new RingBuffer<Integer>(8);
+        List<Integer> drained = new ArrayList<Integer>();
+
+        for (int i = 0; i < 5; i++) {
+            buffer.offer(i);
+        }
+
+        assertEquals(3, buffer.drainTo(drained, 3));
+        assertEquals(2, buffer.drainTo(drained, 3));
+        assertEquals(0, buffer.drainTo(drained, 3));
+        assertEquals(Arrays.asList(0, 1, 2, 3, 4), drained);
+    }
+
+    @Test
+    public void concurrentProducersAndConsumersLoseNothing() throws InterruptedException {
+        final RingBuffer<Integer> buffer = new RingBuffer<Integer>(64);
+        final int producers = 4;
+        final int perProducer = 50000;
+        final long[] sums = new long[producers];
+        List<Thread> threads = new ArrayList<Thread>();
+
+        for (int p = 0; p < producers; p++) {
+            final int base = p * perProducer;
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < perProducer; i++) {
+                        while (!buffer.offer(base + i)) {
+                            Thread.yield();
+                        }
+                    }
+                }
+            });
+
+            final int consumer = p;
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < perProducer; i++) {
+                        Integer element;
+
+                        while ((element = buffer.poll()) == null) {
+                            Thread.yield();
+                        }
+
+                        sums[consumer] += element;
+                    }
+                }
+            });
+        }
+
+        for (Thread thread : threads) {
+            thread.start();
+        }
+
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        long total = 0;
+
+        for (long sum : sums) {
+            total += sum;
+        }
+
+        long count = (long) producers * perProducer;
+        assertEquals(count * (count - 1) / 2, total);
+        assertTrue(buffer.isEmpty());
+    }
+}
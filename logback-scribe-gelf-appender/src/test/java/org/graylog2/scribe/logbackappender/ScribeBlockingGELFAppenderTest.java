@@ -0,0 +1,128 @@
+package org.graylog2.scribe.logbackappender;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import org.junit.After;
+import org.junit.Test;
+import org.slf4j.MDC;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ScribeBlockingGELFAppenderTest {
+    private final LoggerContext context = new LoggerContext();
+    private final CountDownLatch sending = new CountDownLatch(1);
+    private final CountDownLatch bothSending = new CountDownLatch(2);
+    private final CountDownLatch release = new CountDownLatch(1);
+    private final List<String> sent = Collections.synchronizedList(new ArrayList<String>());
+
+    private final ScribeBlockingGELFAppender<ILoggingEvent> appender = new ScribeBlockingGELFAppender<ILoggingEvent>("127.0.0.1", 1, "category",
+            new GELFILoggingEventConverter("facility", true, true, new HashMap<String, String>(), 200, "host", "1.0")) {
+        @Override
+        protected void processBuffer(List<ILoggingEvent> events) {
+            // Holds the first caller in its Log() call, so later events wait for it
+            sending.countDown();
+            bothSending.countDown();
+            await(release);
+
+            for (ILoggingEvent event : events) {
+                sent.add(event.getMessage() + " " + event.getThreadName() + " " + event.getMDCPropertyMap().get("id"));
+            }
+        }
+    };
+
+    @After
+    public void tearDown() {
+        release.countDown();
+        appender.stop();
+    }
+
+    @Test
+    public void sendsEventsOfWaitingCallersWithTheirOwnThreadAndMDC() throws InterruptedException {
+        start();
+
+        Thread first = appendOn("first", "0");
+        assertTrue(sending.await(5, TimeUnit.SECONDS));
+
+        // Whichever of these two gets to send next sends the other's event too
+        Thread second = appendOn("second", "1");
+        waitForWaiting(second);
+        Thread third = appendOn("third", "2");
+        waitForWaiting(third);
+
+        release.countDown();
+        first.join(5000);
+        second.join(5000);
+        third.join(5000);
+
+        assertEquals(Arrays.asList("0 first first", "1 second second", "2 third third"), sent);
+    }
+
+    @Test
+    public void sendsInParallelOverEachPooledConnection() throws InterruptedException {
+        appender.setConnectionsPerHost(2);
+        start();
+
+        Thread first = appendOn("first", "0");
+        Thread second = appendOn("second", "1");
+        assertTrue(bothSending.await(5, TimeUnit.SECONDS));
+
+        release.countDown();
+        first.join(5000);
+        second.join(5000);
+
+        assertEquals(2, sent.size());
+    }
+
+    private void start() {
+        appender.setContext(context);
+        appender.setName("test");
+        appender.setJmx(false);
+        appender.start();
+        assertTrue(appender.isStarted());
+    }
+
+    /**
+     * Appends an event on a new thread of the given name, with that name as the MDC id.
+     */
+    private Thread appendOn(final String threadName, final String message) {
+        Thread thread = new Thread(threadName) {
+            @Override
+            public void run() {
+                MDC.put("id", threadName);
+                appender.doAppend(new LoggingEvent("test", context.getLogger("test"), Level.INFO, message, null, null));
+                MDC.clear();
+            }
+        };
+        thread.start();
+        return thread;
+    }
+
+    private static void waitForWaiting(Thread thread) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+
+        while (thread.getState() != Thread.State.WAITING && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+
+        }
+    }
+}
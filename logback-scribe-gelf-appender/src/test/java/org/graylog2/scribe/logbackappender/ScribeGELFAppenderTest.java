@@ -0,0 +1,177 @@
+package org.graylog2.scribe.logbackappender;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ScribeGELFAppenderTest {
+    private static final int QUEUE_SIZE = 4;
+
+    private final LoggerContext context = new LoggerContext();
+    private final CountDownLatch sending = new CountDownLatch(1);
+    private final CountDownLatch release = new CountDownLatch(1);
+    private final List<String> sent = Collections.synchronizedList(new ArrayList<String>());
+
+    private final ScribeGELFAppender<ILoggingEvent> appender = new ScribeGELFAppender<ILoggingEvent>("127.0.0.1", 1, "category",
+            new GELFILoggingEventConverter("facility", true, true, new HashMap<String, String>(), 200, "host", "1.0")) {
+        @Override
+        protected void processBuffer(List<ILoggingEvent> events) {
+            // Holds the sender, so appended events stay queued until released
+            sending.countDown();
+            await(release);
+
+            for (ILoggingEvent event : events) {
+                sent.add(event.getMessage());
+            }
+        }
+    };
+
+    @After
+    public void tearDown() {
+        release.countDown();
+        appender.stop();
+    }
+
+    @Test
+    public void dropNewestKeepsQueuedEvents() throws InterruptedException {
+        start(OverflowPolicy.DROP_NEWEST);
+        fillQueue();
+
+        append("5");
+        append("6");
+        assertEquals(2, appender.getDroppedEvents());
+
+        assertEquals(Arrays.asList("0", "1", "2", "3", "4"), drain(5));
+    }
+
+    @Test
+    public void dropOldestKeepsNewEvents() throws InterruptedException {
+        start(OverflowPolicy.DROP_OLDEST);
+        fillQueue();
+
+        append("5");
+        append("6");
+        assertEquals(2, appender.getDroppedEvents());
+
+        assertEquals(Arrays.asList("0", "3", "4", "5", "6"), drain(5));
+    }
+
+    @Test
+    public void blockWithTimeoutDropsAfterTimeout() throws InterruptedException {
+        start(OverflowPolicy.BLOCK_WITH_TIMEOUT);
+        appender.setBlockTimeout(50);
+        fillQueue();
+
+        long start = System.nanoTime();
+        append("5");
+        long blocked = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        assertTrue("blocked " + blocked + "ms", blocked >= 50);
+        assertEquals(1, appender.getDroppedEvents());
+        assertEquals(Arrays.asList("0", "1", "2", "3", "4"), drain(5));
+    }
+
+    @Test
+    public void blockWithTimeoutWaitsForRoom() throws InterruptedException {
+        start(OverflowPolicy.BLOCK_WITH_TIMEOUT);
+        appender.setBlockTimeout(10000);
+        fillQueue();
+
+        Thread releaser = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(50);
+
+                } catch (InterruptedException e) {
+                    return;
+
+                }
+
+                release.countDown();
+            }
+        };
+        releaser.start();
+
+        append("5");
+        releaser.join();
+
+        assertEquals(0, appender.getDroppedEvents());
+        assertEquals(Arrays.asList("0", "1", "2", "3", "4", "5"), drain(6));
+    }
+
+    @Test
+    public void countsQueueDepth() throws InterruptedException {
+        start(OverflowPolicy.DROP_NEWEST);
+        fillQueue();
+
+        assertEquals(QUEUE_SIZE, appender.getQueueDepth());
+    }
+
+    private void start(OverflowPolicy overflowPolicy) {
+        appender.setContext(context);
+        appender.setName("test");
+        appender.setJmx(false);
+        appender.setQueueSize(QUEUE_SIZE);
+        appender.setMaxBatchSize(1);
+        appender.setLingerTime(0);
+        appender.setOverflowPolicy(overflowPolicy);
+        appender.start();
+        assertTrue(appender.isStarted());
+    }
+
+    /**
+     * Appends an event the sender takes and holds on to, followed by as many as the queue holds.
+     */
+    private void fillQueue() throws InterruptedException {
+        append("0");
+        assertTrue(sending.await(5, TimeUnit.SECONDS));
+
+        for (int i = 1; i <= QUEUE_SIZE; i++) {
+            append(String.valueOf(i));
+        }
+
+        assertEquals(0, appender.getDroppedEvents());
+    }
+
+    private void append(String message) {
+        appender.doAppend(new LoggingEvent("test", context.getLogger("test"), Level.INFO, message, null, null));
+    }
+
+    private List<String> drain(int expected) throws InterruptedException {
+        release.countDown();
+        long deadline = System.currentTimeMillis() + 5000;
+
+        while (sent.size() < expected && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+
+        synchronized (sent) {
+            return new ArrayList<String>(sent);
+        }
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+
+        }
+    }
+}
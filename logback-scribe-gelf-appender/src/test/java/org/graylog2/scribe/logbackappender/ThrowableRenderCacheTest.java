@@ -0,0 +1,50 @@
+package org.graylog2.scribe.logbackappender;
+
+import ch.qos.logback.classic.spi.ThrowableProxy;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class ThrowableRenderCacheTest {
+    private final ThrowableRenderCache cache = new ThrowableRenderCache(10, 1000);
+
+    @Test
+    public void findsRendersOfEqualThrowables() {
+        Exception[] thrown = new Exception[2];
+
+        for (int i = 0; i < thrown.length; i++) {
+            thrown[i] = new IllegalStateException("boom", new RuntimeException("cause"));
+        }
+
+        cache.put(cache.lookup(new ThrowableProxy(thrown[0])), "render");
+
+        assertEquals("render", cache.get(cache.lookup(new ThrowableProxy(thrown[1]))));
+        assertEquals(1, cache.getHits());
+    }
+
+    @Test
+    public void missesThrowablesThatDifferAnywhere() {
+        Exception original = new IllegalStateException("boom", new RuntimeException("cause"));
+        cache.put(cache.lookup(new ThrowableProxy(original)), "render");
+
+        Exception otherMessage = new IllegalStateException("bang", new RuntimeException("cause"));
+        Exception otherCause = new IllegalStateException("boom", new RuntimeException("other"));
+        Exception otherFrames = new IllegalStateException("boom", new RuntimeException("cause"));
+        otherFrames.setStackTrace(new StackTraceElement[]{new StackTraceElement("Other", "method", "Other.java", 1)});
+
+        for (Exception e : new Exception[]{otherMessage, otherCause, otherFrames}) {
+            assertNull(cache.get(cache.lookup(new ThrowableProxy(e))));
+        }
+
+        assertEquals(3, cache.getMisses());
+    }
+
+    @Test
+    public void skipsLongRenders() {
+        Exception e = new IllegalStateException("boom");
+        cache.put(cache.lookup(new ThrowableProxy(e)), new String(new char[1001]));
+
+        assertNull(cache.get(cache.lookup(new ThrowableProxy(e))));
+    }
+}
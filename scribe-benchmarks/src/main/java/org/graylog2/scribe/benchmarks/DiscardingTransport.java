@@ -0,0 +1,38 @@
+package org.graylog2.scribe.benchmarks;
+
+import org.apache.thrift.transport.TTransport;
+import org.apache.thrift.transport.TTransportException;
+
+/**
+ * Write-only transport that throws everything away, so benchmarks measure encoding rather than I/O.
+ */
+class DiscardingTransport extends TTransport {
+    private long written;
+
+    @Override
+    public boolean isOpen() {
+        return true;
+    }
+
+    @Override
+    public void open() {
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public int read(byte[] buf, int off, int len) throws TTransportException {
+        throw new TTransportException(TTransportException.END_OF_FILE, "Nothing to read");
+    }
+
+    @Override
+    public void write(byte[] buf, int off, int len) {
+        written += len;
+    }
+
+    long getWritten() {
+        return written;
+    }
+}
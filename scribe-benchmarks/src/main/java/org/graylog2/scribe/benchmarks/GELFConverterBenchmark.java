@@ -0,0 +1,97 @@
+package org.graylog2.scribe.benchmarks;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import org.graylog2.scribe.logbackappender.GELFILoggingEventConverter;
+import org.graylog2.scribe.logbackappender.UTF8Buffer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-event cost of GELF conversion, streaming writer against the previous HashMap + Gson path. Both of those produce
+ * a String the protocol still has to encode, utf8 writes the bytes the appender sends.
+ * <p/>
+ * Run with {@code java -jar scribe-benchmarks/target/benchmarks.jar GELFConverterBenchmark -prof gc} to see bytes
+ * allocated per event (gc.alloc.rate.norm).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GELFConverterBenchmark {
+    @Param({"plain", "mdc", "throwable"})
+    public String event;
+
+    private ILoggingEvent logEvent;
+    private GELFILoggingEventConverter streamingConverter;
+    private GsonGELFILoggingEventConverter gsonConverter;
+    private final UTF8Buffer buffer = new UTF8Buffer(4096);
+
+    @Setup
+    public void setUp() {
+        Map<String, String> additionalFields = new HashMap<String, String>();
+        additionalFields.put("requestId", "_request_id");
+        additionalFields.put("user", "_user");
+
+        streamingConverter = new GELFILoggingEventConverter("benchmark", true, true, additionalFields, 160, "bench-host", "4242");
+        gsonConverter = new GsonGELFILoggingEventConverter("benchmark", true, true, additionalFields, 160, "bench-host", "4242");
+        logEvent = createEvent(event);
+    }
+
+    static LoggingEvent createEvent(String type) {
+        Logger logger = new LoggerContext().getLogger("org.graylog2.scribe.benchmarks.Orders");
+        Throwable throwable = "throwable".equals(type)
+                ? new IllegalStateException("Order <42> rejected", new RuntimeException("Connection reset"))
+                : null;
+
+        LoggingEvent logEvent = new LoggingEvent(Logger.class.getName(), logger, Level.INFO,
+                "Processed order {} for \"{}\" in {}ms", throwable, new Object[]{42, "ACME & Co", 17});
+        logEvent.setThreadName("http-worker-7");
+
+        Map<String, String> mdc = new HashMap<String, String>();
+        if (!"plain".equals(type)) {
+            mdc.put("requestId", "8d0f6c1e-5b6a-4f4e-9d36-0c3b5a1f2e77");
+            mdc.put("user", "alice");
+        }
+        logEvent.setMDCPropertyMap(mdc);
+
+        // As the appender sees it, after the caller has captured the deferred state
+        logEvent.prepareForDeferredProcessing();
+        return logEvent;
+    }
+
+    @Benchmark
+    public String gson() {
+        return gsonConverter.toGelf(logEvent);
+    }
+
+    @Benchmark
+    public String streaming() {
+        return streamingConverter.toGelf(logEvent);
+    }
+
+    @Benchmark
+    public int utf8() {
+        buffer.clear(64 * 1024);
+        streamingConverter.toGelf(logEvent, buffer);
+        return buffer.length();
+    }
+}
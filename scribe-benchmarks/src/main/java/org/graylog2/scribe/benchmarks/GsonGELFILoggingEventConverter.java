@@ -0,0 +1,121 @@
+package org.graylog2.scribe.benchmarks;
+
+import ch.qos.logback.classic.pattern.ExtendedThrowableProxyConverter;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.IThrowableProxy;
+import ch.qos.logback.classic.util.LevelToSyslogSeverity;
+import ch.qos.logback.core.net.SyslogConstants;
+import com.google.gson.FieldNamingPolicy;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import org.slf4j.Marker;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The HashMap + Gson conversion GELFILoggingEventConverter used before it wrote JSON directly, kept as the baseline
+ * the streaming converter is measured against.
+ */
+public class GsonGELFILoggingEventConverter {
+    private final String facility;
+    private final int shortMessageLength;
+    private final String hostname;
+    private final String processId;
+    private final boolean useLoggerName;
+    private final boolean useThreadName;
+    private final Map<String, String> additionalFields;
+    private final Gson gson;
+    private final ExtendedThrowableProxyConverter converter = new ExtendedThrowableProxyConverter();
+
+    public GsonGELFILoggingEventConverter(String facility,
+                                          boolean useLoggerName,
+                                          boolean useThreadName,
+                                          Map<String, String> additionalFields,
+                                          int shortMessageLength,
+                                          String hostname,
+                                          String processId) {
+        this.facility = facility;
+        this.processId = processId;
+        this.shortMessageLength = shortMessageLength;
+        this.hostname = hostname;
+        this.useLoggerName = useLoggerName;
+        this.useThreadName = useThreadName;
+        this.additionalFields = additionalFields;
+
+        GsonBuilder gsonBuilder = new GsonBuilder();
+        gsonBuilder.setFieldNamingPolicy(FieldNamingPolicy.LOWER_CASE_WITH_UNDERSCORES);
+        this.gson = gsonBuilder.create();
+        converter.start();
+    }
+
+    public String toGelf(ILoggingEvent logEvent) {
+        return gson.toJson(mapFields(logEvent));
+    }
+
+    private Map<String, Object> mapFields(ILoggingEvent logEvent) {
+        Map<String, Object> map = new HashMap<String, Object>();
+
+        map.put("facility", facility);
+        map.put("host", hostname);
+        map.put("_pid", processId);
+
+        String message = logEvent.getFormattedMessage();
+
+        IThrowableProxy proxy = logEvent.getThrowableProxy();
+        if (proxy != null) {
+            String fullMessage = message + "\n" + converter.convert(logEvent);
+            map.put("full_message", fullMessage);
+            map.put("short_message", truncateToShortMessage(message + ", " + proxy.getClassName() + ": " + proxy.
+                    getMessage()));
+        } else {
+            map.put("full_message", message);
+            map.put("short_message", truncateToShortMessage(message));
+        }
+
+        double logEventTimeTimeStamp = logEvent.getTimeStamp() / 1000.0;
+
+        map.put("timestamp", logEventTimeTimeStamp);
+        map.put("version", "1.0");
+        map.put("level", LevelToSyslogSeverity.convert(logEvent));
+
+        Marker eventsMarker = logEvent.getMarker();
+        if (eventsMarker != null) {
+            if (eventsMarker.contains("ALERT")) {
+                map.put("level", SyslogConstants.ALERT_SEVERITY);
+            }
+        }
+
+        if (useLoggerName) {
+            map.put("_logger", logEvent.getLoggerName());
+        }
+
+        if (useThreadName) {
+            map.put("_thread", logEvent.getThreadName());
+        }
+
+        Map<String, String> mdc = logEvent.getMDCPropertyMap();
+
+        if (mdc != null) {
+            for (String key : additionalFields.keySet()) {
+                String field = mdc.get(key);
+                if (field != null) {
+                    map.put(additionalFields.get(key), field);
+                }
+            }
+        }
+
+        return map;
+    }
+
+    private String truncateToShortMessage(String fullMessage) {
+        int newLine = fullMessage.indexOf("\n");
+        int shortLength = Math.min(shortMessageLength, newLine > 0 ? newLine : Integer.MAX_VALUE);
+
+        if (fullMessage.length() > shortLength) {
+            return fullMessage.substring(0, shortLength);
+        }
+
+        return fullMessage;
+    }
+}
@@ -0,0 +1,147 @@
+package org.graylog2.scribe.benchmarks;
+
+import com.codahale.metrics.MetricRegistry;
+import org.apache.thrift.TException;
+import org.apache.thrift.TProcessor;
+import org.apache.thrift.protocol.TBinaryProtocol;
+import org.apache.thrift.protocol.TProtocol;
+import org.apache.thrift.transport.TFramedTransport;
+import org.apache.thrift.transport.TMemoryInputTransport;
+import org.graylog2.plugin.InputHost;
+import org.graylog2.plugin.buffers.BatchBuffer;
+import org.graylog2.plugin.inputs.MessageInput;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import scribe.thrift.scribe;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Server side cost of a Log() call, from the received frame to the messages handed to the process buffer. The buffer
+ * is a stub that always has room, so this is decoding and GELF parsing only. One operation is one batch.
+ * <p/>
+ * processor=generated is the generated scribe.Processor in front of ScribeGELFProcessor, raw is ScribeGELFRawProcessor.
+ * Run with {@code java -jar scribe-benchmarks/target/benchmarks.jar ProcessorBenchmark -prof gc}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProcessorBenchmark {
+    @Param({"generated", "raw"})
+    public String processor;
+
+    @Param({"100", "1000"})
+    public int batchSize;
+
+    private TProcessor tProcessor;
+    private byte[] frame;
+    private TMemoryInputTransport input;
+    private TProtocol inputProtocol;
+    private TProtocol outputProtocol;
+
+    @Setup
+    public void setUp() throws Exception {
+        scribe.Iface handler = createProcessor(createInputHost(createBatchBuffer()));
+
+        if ("raw".equals(processor)) {
+            tProcessor = (TProcessor) Class.forName("ScribeGELFRawProcessor")
+                    .getConstructor(handler.getClass())
+                    .newInstance(handler);
+
+        } else {
+            tProcessor = new scribe.Processor<scribe.Iface>(handler);
+
+        }
+
+        frame = ThriftCodecBenchmark.encodeLogCall(ThriftCodecBenchmark.createEntries(batchSize));
+        input = new TMemoryInputTransport();
+        inputProtocol = new TBinaryProtocol(new TFramedTransport(input), false, false);
+        outputProtocol = new TBinaryProtocol(new TFramedTransport(new DiscardingTransport()), false, false);
+    }
+
+    @Benchmark
+    public boolean log() throws TException {
+        input.reset(frame);
+        return tProcessor.process(inputProtocol, outputProtocol);
+    }
+
+    /**
+     * The plugin's classes live in the default package, so they can only be reached by reflection from here.
+     */
+    static scribe.Iface createProcessor(InputHost inputHost) throws Exception {
+        MessageInput messageInput = (MessageInput) Class.forName("ScribeGELFInput").newInstance();
+
+        return (scribe.Iface) Class.forName("ScribeGELFProcessor")
+                .getConstructor(InputHost.class, MessageInput.class)
+                .newInstance(inputHost, messageInput);
+    }
+
+    /**
+     * @return an InputHost that only provides the process buffer and a metric registry
+     */
+    static InputHost createInputHost(final BatchBuffer processBuffer) {
+        final MetricRegistry metrics = new MetricRegistry();
+
+        return (InputHost) Proxy.newProxyInstance(InputHost.class.getClassLoader(), new Class[]{InputHost.class},
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if ("getProcessBuffer".equals(method.getName())) {
+                            return processBuffer;
+                        }
+
+                        if ("metrics".equals(method.getName())) {
+                            return metrics;
+                        }
+
+                        return null;
+                    }
+                });
+    }
+
+    /**
+     * @return a process buffer that takes every batch, keeping the last one so the messages can't be optimised away
+     */
+    static BatchBuffer createBatchBuffer() {
+        return (BatchBuffer) Proxy.newProxyInstance(BatchBuffer.class.getClassLoader(), new Class[]{BatchBuffer.class},
+                new InvocationHandler() {
+                    private volatile Object last;
+
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if ("getBufferSize".equals(method.getName())) {
+                            return Integer.MAX_VALUE;
+                        }
+
+                        if ("hasCapacity".equals(method.getName())) {
+                            return true;
+                        }
+
+                        if ("getUsage".equals(method.getName())) {
+                            return 0L;
+                        }
+
+                        if ("insertFailFast".equals(method.getName())) {
+                            last = args[0];
+                        }
+
+                        return null;
+                    }
+                });
+    }
+}
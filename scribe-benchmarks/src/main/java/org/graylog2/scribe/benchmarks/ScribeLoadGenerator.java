@@ -0,0 +1,402 @@
+package org.graylog2.scribe.benchmarks;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.apache.thrift.protocol.TBinaryProtocol;
+import org.apache.thrift.transport.TFramedTransport;
+import org.apache.thrift.transport.TSocket;
+import org.graylog2.plugin.InputHost;
+import org.graylog2.plugin.Message;
+import org.graylog2.plugin.buffers.BatchBuffer;
+import org.graylog2.plugin.configuration.Configuration;
+import org.graylog2.plugin.inputs.MessageInput;
+import scribe.thrift.LogEntry;
+import scribe.thrift.ResultCode;
+import scribe.thrift.scribe;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Drives sustained Log() traffic at a Scribe server and reports throughput, latency percentiles and the TRY_LATER
+ * rate every second, then for the whole run.
+ * <p/>
+ * Without ScribeLoadGenerator.HOST a ScribeGELFInput is started in process, in front of a fake process buffer that
+ * holds ScribeLoadGenerator.BUFFER_SIZE messages and drains ScribeLoadGenerator.DRAIN_RATE messages a second (0 for
+ * a buffer that never fills). System properties named after the input's settings, e.g.
+ * {@code -Dscribe_server_engine=threaded_selector}, configure that input.
+ * <p/>
+ * Run with {@code java -cp scribe-benchmarks/target/benchmarks.jar org.graylog2.scribe.benchmarks.ScribeLoadGenerator}.
+ */
+public class ScribeLoadGenerator {
+    private static final String HOST = System.getProperty("ScribeLoadGenerator.HOST");
+    private static final int PORT = Integer.getInteger("ScribeLoadGenerator.PORT", 14630);
+    private static final int CONNECTIONS = Integer.getInteger("ScribeLoadGenerator.CONNECTIONS", 8);
+    private static final int BATCH_SIZE = Integer.getInteger("ScribeLoadGenerator.BATCH_SIZE", 500);
+    private static final int MESSAGE_SIZE = Integer.getInteger("ScribeLoadGenerator.MESSAGE_SIZE", 512);
+    private static final String CATEGORIES = System.getProperty("ScribeLoadGenerator.CATEGORIES", "app:1"); // category:weight,...
+    private static final int DURATION = Integer.getInteger("ScribeLoadGenerator.DURATION", 60); // seconds
+    private static final long TRY_LATER_SLEEP = Long.getLong("ScribeLoadGenerator.TRY_LATER_SLEEP", 100L); // ms, as a relay's retry interval
+    private static final int BUFFER_SIZE = Integer.getInteger("ScribeLoadGenerator.BUFFER_SIZE", 65536);
+    private static final int DRAIN_RATE = Integer.getInteger("ScribeLoadGenerator.DRAIN_RATE", 0);
+
+    // Distinct batches each connection cycles through
+    private static final int BATCHES_PER_CONNECTION = 16;
+
+    private final Recorder latencies = new Recorder(TimeUnit.SECONDS.toMicros(60), 3);
+    private final AtomicLong messages = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong tryLaters = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+
+    private volatile boolean running = true;
+
+    public static void main(String[] args) throws Exception {
+        new ScribeLoadGenerator().run();
+        System.exit(0);
+    }
+
+    private void run() throws Exception {
+        MessageInput input = null;
+        FakeProcessBuffer processBuffer = null;
+        String host = HOST;
+
+        if (host == null) {
+            host = "127.0.0.1";
+            processBuffer = new FakeProcessBuffer(BUFFER_SIZE, DRAIN_RATE);
+            input = startInput(processBuffer);
+        }
+
+        awaitPort(host, PORT);
+
+        System.out.println("Sending batches of " + BATCH_SIZE + " x " + MESSAGE_SIZE + " byte messages to " + host + ":" + PORT
+                + " over " + CONNECTIONS + " connection(s) for " + DURATION + "s, categories " + CATEGORIES);
+
+        List<Thread> senders = new ArrayList<Thread>();
+        Random random = new Random(42);
+
+        for (int i = 0; i < CONNECTIONS; i++) {
+            Thread sender = new Thread(new Sender(host, PORT, createBatches(random)), "ScribeLoadGenerator-" + i);
+            sender.start();
+            senders.add(sender);
+        }
+
+        report(DURATION);
+
+        running = false;
+        for (Thread sender : senders) {
+            sender.join();
+        }
+
+        if (input != null) {
+            input.stop();
+            processBuffer.stop();
+        }
+    }
+
+    private void report(int seconds) throws InterruptedException {
+        Histogram total = null;
+        long lastMessages = 0;
+        long lastBatches = 0;
+        long lastTryLaters = 0;
+
+        System.out.println(String.format("%6s %12s %10s %10s %10s %10s %10s %10s",
+                "time", "msgs/s", "batches/s", "try_later", "p50 us", "p99 us", "p99.9 us", "max us"));
+
+        for (int second = 1; second <= seconds; second++) {
+            Thread.sleep(1000);
+
+            Histogram interval = latencies.getIntervalHistogram();
+            long currentMessages = messages.get();
+            long currentBatches = batches.get();
+            long currentTryLaters = tryLaters.get();
+
+            print(String.valueOf(second), currentMessages - lastMessages, currentBatches - lastBatches,
+                    tryLaterPercent(currentBatches - lastBatches, currentTryLaters - lastTryLaters), interval);
+
+            if (total == null) {
+                total = interval.copy();
+            } else {
+                total.add(interval);
+            }
+
+            lastMessages = currentMessages;
+            lastBatches = currentBatches;
+            lastTryLaters = currentTryLaters;
+        }
+
+        print("total", messages.get() / seconds, batches.get() / seconds, tryLaterPercent(batches.get(), tryLaters.get()), total);
+        System.out.println("errors: " + errors.get());
+    }
+
+    private static double tryLaterPercent(long batches, long tryLaters) {
+        long calls = batches + tryLaters;
+        return calls == 0 ? 0.0 : 100.0 * tryLaters / calls;
+    }
+
+    private void print(String time, long messages, long batches, double tryLaterPercent, Histogram latency) {
+        System.out.println(String.format("%6s %12d %10d %9.1f%% %10d %10d %10d %10d",
+                time, messages, batches, tryLaterPercent,
+                latency.getValueAtPercentile(50), latency.getValueAtPercentile(99),
+                latency.getValueAtPercentile(99.9), latency.getMaxValue()));
+    }
+
+    private List<List<LogEntry>> createBatches(Random random) {
+        List<String> categories = new ArrayList<String>();
+        List<Integer> weights = new ArrayList<Integer>();
+        int totalWeight = 0;
+
+        for (String category : CATEGORIES.split(",")) {
+            int separator = category.lastIndexOf(':');
+            int weight = separator < 0 ? 1 : Integer.parseInt(category.substring(separator + 1).trim());
+
+            categories.add((separator < 0 ? category : category.substring(0, separator)).trim());
+            weights.add(weight);
+            totalWeight += weight;
+        }
+
+        List<List<LogEntry>> batches = new ArrayList<List<LogEntry>>();
+
+        for (int b = 0; b < BATCHES_PER_CONNECTION; b++) {
+            List<LogEntry> batch = new ArrayList<LogEntry>(BATCH_SIZE);
+
+            for (int i = 0; i < BATCH_SIZE; i++) {
+                int pick = random.nextInt(totalWeight);
+                int c = 0;
+
+                while (pick >= weights.get(c)) {
+                    pick -= weights.get(c++);
+                }
+
+                batch.add(new LogEntry(categories.get(c), createMessage(categories.get(c), b * BATCH_SIZE + i)));
+            }
+
+            batches.add(batch);
+        }
+
+        return batches;
+    }
+
+    /**
+     * @return a GELF message padded to roughly MESSAGE_SIZE bytes
+     */
+    private static String createMessage(String category, int sequence) {
+        StringBuilder message = new StringBuilder(MESSAGE_SIZE + 64)
+                .append("{\"version\":\"1.0\",\"host\":\"loadgen\",\"facility\":\"").append(category)
+                .append("\",\"short_message\":\"Load test message ").append(sequence)
+                .append("\",\"timestamp\":").append(System.currentTimeMillis() / 1000)
+                .append(",\"level\":6,\"_sequence\":").append(sequence)
+                .append(",\"full_message\":\"");
+
+        while (message.length() < MESSAGE_SIZE - 2) {
+            message.append('x');
+        }
+
+        return message.append("\"}").toString();
+    }
+
+    private static MessageInput startInput(FakeProcessBuffer processBuffer) throws Exception {
+        Map<String, Object> settings = new HashMap<String, Object>();
+        settings.put("scribe_host", "127.0.0.1");
+        settings.put("scribe_port", PORT);
+        settings.put("scribe_max_message_length", 16384000);
+        settings.put("scribe_worker_threads", 5);
+
+        for (String name : System.getProperties().stringPropertyNames()) {
+            if (name.startsWith("scribe_")) {
+                String value = System.getProperty(name);
+
+                if (value.matches("-?\\d+")) {
+                    settings.put(name, Integer.valueOf(value));
+                } else if (value.equals("true") || value.equals("false")) {
+                    settings.put(name, Boolean.valueOf(value));
+                } else {
+                    settings.put(name, value);
+                }
+            }
+        }
+
+        System.out.println("Starting in-process input with " + settings);
+
+        InputHost inputHost = ProcessorBenchmark.createInputHost(processBuffer.proxy());
+        final MessageInput input = (MessageInput) Class.forName("ScribeGELFInput").newInstance();
+        input.initialize(new Configuration(settings), inputHost);
+
+        Thread server = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    input.launch();
+
+                } catch (Exception e) {
+                    e.printStackTrace();
+
+                }
+            }
+        }, "ScribeLoadGenerator-input");
+        server.setDaemon(true);
+        server.start();
+
+        return input;
+    }
+
+    private static void awaitPort(String host, int port) throws InterruptedException {
+        for (int i = 0; ; i++) {
+            try {
+                new Socket(host, port).close();
+                return;
+
+            } catch (Exception e) {
+                if (i == 100) {
+                    throw new IllegalStateException("Nothing listening on " + host + ":" + port, e);
+                }
+
+                Thread.sleep(100);
+
+            }
+        }
+    }
+
+    private class Sender implements Runnable {
+        private final String host;
+        private final int port;
+        private final List<List<LogEntry>> batches;
+
+        Sender(String host, int port, List<List<LogEntry>> batches) {
+            this.host = host;
+            this.port = port;
+            this.batches = batches;
+        }
+
+        @Override
+        public void run() {
+            TFramedTransport transport = null;
+            int next = 0;
+
+            while (running) {
+                try {
+                    if (transport == null) {
+                        transport = new TFramedTransport(new TSocket(host, port, 60000));
+                        transport.open();
+                    }
+
+                    scribe.Client client = new scribe.Client(new TBinaryProtocol(transport, false, false));
+
+                    while (running) {
+                        List<LogEntry> batch = batches.get(next++ % batches.size());
+
+                        long start = System.nanoTime();
+                        ResultCode result = client.Log(batch);
+                        latencies.recordValue(Math.min(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start), TimeUnit.SECONDS.toMicros(60)));
+
+                        if (result == ResultCode.OK) {
+                            ScribeLoadGenerator.this.batches.incrementAndGet();
+                            messages.addAndGet(batch.size());
+
+                        } else {
+                            tryLaters.incrementAndGet();
+                            Thread.sleep(TRY_LATER_SLEEP);
+
+                        }
+                    }
+
+                } catch (InterruptedException e) {
+                    break;
+
+                } catch (Exception e) {
+                    errors.incrementAndGet();
+
+                    if (transport != null) {
+                        transport.close();
+                        transport = null;
+                    }
+
+                }
+            }
+
+            if (transport != null) {
+                transport.close();
+            }
+        }
+    }
+
+    /**
+     * Process buffer that takes batches while it has room and drains at a fixed rate, standing in for the server's
+     * processing.
+     */
+    private static class FakeProcessBuffer implements InvocationHandler {
+        private final int size;
+        private final int drainRate;
+        private final AtomicLong usage = new AtomicLong();
+        private final Thread drainer;
+
+        FakeProcessBuffer(int size, int drainRate) {
+            this.size = size;
+            this.drainRate = drainRate;
+
+            drainer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    drain();
+                }
+            }, "ScribeLoadGenerator-drain");
+            drainer.setDaemon(true);
+            drainer.start();
+        }
+
+        BatchBuffer proxy() {
+            return (BatchBuffer) Proxy.newProxyInstance(BatchBuffer.class.getClassLoader(), new Class[]{BatchBuffer.class}, this);
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            if ("getBufferSize".equals(method.getName())) {
+                return size;
+            }
+
+            if ("hasCapacity".equals(method.getName())) {
+                return usage.get() + (Integer) args[0] <= size;
+            }
+
+            if ("getUsage".equals(method.getName())) {
+                return usage.get();
+            }
+
+            if ("insertFailFast".equals(method.getName()) && drainRate > 0) {
+                usage.addAndGet(((Message[]) args[0]).length);
+            }
+
+            return null;
+        }
+
+        void stop() {
+            drainer.interrupt();
+        }
+
+        private void drain() {
+            while (drainRate > 0) {
+                try {
+                    Thread.sleep(10);
+
+                } catch (InterruptedException e) {
+                    return;
+
+                }
+
+                long current;
+                do {
+                    current = usage.get();
+                } while (!usage.compareAndSet(current, Math.max(0, current - drainRate / 100)));
+            }
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package org.graylog2.scribe.benchmarks;
+
+import org.apache.thrift.TException;
+import org.apache.thrift.protocol.TBinaryProtocol;
+import org.apache.thrift.protocol.TProtocol;
+import org.apache.thrift.transport.TFramedTransport;
+import org.apache.thrift.transport.TMemoryBuffer;
+import org.apache.thrift.transport.TMemoryInputTransport;
+import org.graylog2.scribe.logbackappender.GELFILoggingEventConverter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import scribe.thrift.LogEntry;
+import scribe.thrift.scribe;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of a Log() call's Thrift encoding with TBinaryProtocol over TFramedTransport, as the generated client writes it
+ * and the generated processor reads it. One operation is one batch.
+ * <p/>
+ * Run with {@code java -jar scribe-benchmarks/target/benchmarks.jar ThriftCodecBenchmark -prof gc}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ThriftCodecBenchmark {
+    @Param({"1", "100", "1000"})
+    public int batchSize;
+
+    private List<LogEntry> entries;
+    private scribe.Client client;
+
+    private byte[] frame;
+    private TMemoryInputTransport input;
+    private TProtocol inputProtocol;
+
+    @Setup
+    public void setUp() throws TException {
+        entries = createEntries(batchSize);
+
+        TBinaryProtocol output = new TBinaryProtocol(new TFramedTransport(new DiscardingTransport()), false, false);
+        client = new scribe.Client(output, output);
+
+        frame = encodeLogCall(entries);
+        input = new TMemoryInputTransport();
+        inputProtocol = new TBinaryProtocol(new TFramedTransport(input), false, false);
+    }
+
+    @Benchmark
+    public void write() throws TException {
+        client.send_Log(entries);
+    }
+
+    @Benchmark
+    public scribe.Log_args read() throws TException {
+        input.reset(frame);
+
+        inputProtocol.readMessageBegin();
+        scribe.Log_args args = new scribe.Log_args();
+        args.read(inputProtocol);
+        inputProtocol.readMessageEnd();
+
+        return args;
+    }
+
+    /**
+     * @return a batch of GELF messages as the appender produces them, cycling through the event types
+     */
+    static List<LogEntry> createEntries(int batchSize) {
+        GELFILoggingEventConverter converter = new GELFILoggingEventConverter("benchmark", true, true,
+                new HashMap<String, String>(), 160, "bench-host", "4242");
+        String[] types = {"plain", "mdc", "plain", "mdc", "throwable"};
+        List<LogEntry> entries = new ArrayList<LogEntry>(batchSize);
+
+        for (int i = 0; i < batchSize; i++) {
+            String type = types[i % types.length];
+            entries.add(new LogEntry("benchmark." + type, converter.toGelf(GELFConverterBenchmark.createEvent(type))));
+        }
+
+        return entries;
+    }
+
+    /**
+     * @return the framed bytes of a Log() call carrying the entries, as a server receives them
+     */
+    static byte[] encodeLogCall(List<LogEntry> entries) throws TException {
+        TMemoryBuffer buffer = new TMemoryBuffer(1024);
+        TBinaryProtocol protocol = new TBinaryProtocol(new TFramedTransport(buffer), false, false);
+        new scribe.Client(protocol, protocol).send_Log(entries);
+
+        byte[] frame = new byte[buffer.length()];
+        System.arraycopy(buffer.getArray(), 0, frame, 0, frame.length);
+        return frame;
+    }
+}